@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.benchmarks;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import jenkins.plugins.continuum.CommandPayload;
+import jenkins.plugins.continuum.ContinuumConstants;
+import jenkins.plugins.continuum.InitiatePipelineInputBuilder;
+
+/**
+ * Serialization of an initiate_pipeline payload, whose details hold the given number of environment variables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CommandInputBuilderBenchmark {
+
+    @Param({"10", "1000"})
+    public int variables;
+
+    private final InitiatePipelineInputBuilder builder = new InitiatePipelineInputBuilder();
+    private Map<String, Object> commandParameters;
+
+    @Setup
+    public void setUp() {
+        Map<String, String> env = new LinkedHashMap<String, String>();
+        for (int i = 0; i < this.variables; i++) {
+            env.put("VARIABLE_" + i, "/var/lib/jenkins/workspace/folder/job@" + i + "/target/classes");
+        }
+        Map<String, Object> automation = new LinkedHashMap<String, Object>();
+        automation.put("version", "1.0");
+        automation.put("type", "jenkins");
+        automation.put("environmentVariables", env);
+        Map<String, Object> details = new LinkedHashMap<String, Object>();
+        details.put("automation", automation);
+        this.commandParameters = new HashMap<String, Object>();
+        this.commandParameters.put(ContinuumConstants.COMMAND_PARAMETER__PROJECT, "project");
+        this.commandParameters.put(ContinuumConstants.COMMAND_PARAMETER__GROUP, "group");
+        this.commandParameters.put(ContinuumConstants.COMMAND_PARAMETER__DEFINITION, "definition");
+        this.commandParameters.put(ContinuumConstants.COMMAND_PARAMETER__DETAILS, details);
+    }
+
+    @Benchmark
+    public String toContinuumAPI() {
+        return this.builder.toContinuumAPI(null, this.commandParameters);
+    }
+
+    @Benchmark
+    public CommandPayload toPayload() throws Exception {
+        return this.builder.toPayload(null, this.commandParameters);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import jenkins.plugins.continuum.CommandPayload;
+import jenkins.plugins.continuum.ContinuumClient;
+import jenkins.plugins.continuum.ContinuumConstants;
+import jenkins.plugins.continuum.ResponseReaders;
+
+/**
+ * Round trips of initiate_pipeline calls through the pooled client, to an in-process HTTP server
+ * answering immediately, so that the client side dominates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ContinuumClientBenchmark {
+
+    private static final byte[] RESPONSE = "{\"Method\": \"initiate_pipeline\", \"Response\": {\"_id\": \"5a1b2c3d\"}}"
+            .getBytes(Charset.forName("UTF-8"));
+
+    static {
+        // otherwise the server sends the headers and the body in separate packets, and the client waits
+        // for the delayed acknowledgement of the first one, i.e. about 40ms per call
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private String serverUrl;
+    private CommandPayload payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) >= 0) {
+                    // consume the request
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, RESPONSE.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(RESPONSE);
+                out.close();
+            }
+        });
+        this.serverThreads = Executors.newFixedThreadPool(8);
+        this.server.setExecutor(this.serverThreads);
+        this.server.start();
+        this.serverUrl = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/";
+        this.payload = CommandPayload.of("{\"project\": \"project\", \"group\": \"group\", \"definition\": \"definition\"}");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.server.stop(0);
+        this.serverThreads.shutdownNow();
+    }
+
+    @Benchmark
+    public String post() throws Exception {
+        return ContinuumClient.post(this.serverUrl, "token", ContinuumConstants.COMMAND_NAME__INITIATE_PIPELINE,
+                this.payload, ResponseReaders.PIPELINE_ID);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String postConcurrently() throws Exception {
+        return post();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import hudson.EnvVars;
+import jenkins.plugins.continuum.EnvVarFilter;
+
+/**
+ * Selection of the environment variables sent as pipeline details, as done by the steps' getEnvVars,
+ * from a build environment of 200 variables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EnvVarFilterBenchmark {
+
+    @Param({"*", "BUILD_URL, JOB_NAME, GIT_COMMIT", "GIT_*, /JOB_(NAME|URL)/, !GIT_AUTHOR_*"})
+    public String spec;
+
+    @Param({"false", "true"})
+    public boolean replaceDots;
+
+    private EnvVars env;
+
+    @Setup
+    public void setUp() {
+        this.env = new EnvVars();
+        for (int i = 0; i < 180; i++) {
+            this.env.put("VARIABLE_" + i, "/var/lib/jenkins/workspace/folder/job@" + i);
+        }
+        String[] names = {"BUILD_URL", "JOB_NAME", "JOB_URL", "GIT_COMMIT", "GIT_BRANCH", "GIT_URL",
+                "GIT_AUTHOR_NAME", "GIT_AUTHOR_EMAIL", "maven.repo.local", "java.home"};
+        for (int i = 0; i < 20; i++) {
+            this.env.put(names[i % names.length] + (i < names.length ? "" : "_" + i), "value " + i);
+        }
+    }
+
+    @Benchmark
+    public EnvVarFilter.Selection select() {
+        return EnvVarFilter.get(this.spec).select(this.env, this.replaceDots);
+    }
+}
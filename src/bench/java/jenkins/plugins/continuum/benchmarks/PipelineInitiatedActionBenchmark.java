@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import jenkins.plugins.continuum.actions.PipelineInitiatedAction;
+
+/**
+ * Registration and lookups of pipeline ids in a build holding the given number of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PipelineInitiatedActionBenchmark {
+
+    private static final String SERVER_URL = "https://continuum.example.com/";
+
+    @Param({"10", "10000"})
+    public int pipelineIds;
+
+    private PipelineInitiatedAction action;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        this.action = new PipelineInitiatedAction(SERVER_URL, "pi-0");
+        for (int i = 1; i < this.pipelineIds; i++) {
+            this.action.addPipelineId(SERVER_URL, "pi-" + i);
+        }
+        this.next = this.pipelineIds;
+    }
+
+    @Benchmark
+    public boolean addPipelineId() {
+        // an existing id every other call, so that the action does not grow without bounds
+        int id = (this.next++ & 1) == 0 ? this.next % this.pipelineIds : this.pipelineIds + this.next % 1000;
+        return this.action.addPipelineId(SERVER_URL, "pi-" + id);
+    }
+
+    @Benchmark
+    public String getLastPipelineId() {
+        return this.action.getLastPipelineId(SERVER_URL);
+    }
+
+    @Benchmark
+    public boolean containsPipelineId() {
+        return this.action.getPipelineIds(SERVER_URL).contains("pi-" + (this.pipelineIds / 2));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker of a Continuum server. After a number of consecutive failures the circuit opens,
+ * and calls fail immediately instead of waiting for a server that is down. Once the open duration
+ * has elapsed, the circuit is half-open: a single trial call is let through, which closes the circuit
+ * if it succeeds, or opens it again if it fails.
+ * <p>
+ * Only server failures count: connection errors, timeouts, 5xx and 429 responses.
+ * Other responses show that the server is up.
+ */
+public final class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    /** Number of consecutive failures that opens the circuit, 0 disables the circuit breaker. */
+    static final int FAILURE_THRESHOLD = Integer.getInteger(CircuitBreaker.class.getName() + ".failureThreshold", 5);
+
+    /** Seconds the circuit stays open before a trial call is let through. */
+    static final long OPEN_DURATION = Long.getLong(CircuitBreaker.class.getName() + ".openDuration", 30L);
+
+    private static final ConcurrentMap<String, CircuitBreaker> circuitBreakers =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /**
+     * State of the circuit.
+     */
+    public enum State {
+        /** Calls go through. */
+        CLOSED,
+        /** Calls fail immediately. */
+        OPEN,
+        /** A single trial call goes through. */
+        HALF_OPEN
+    }
+
+    private final String key;
+    private final int failureThreshold;
+    /** Nanoseconds the circuit stays open. */
+    private final long openDuration;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    CircuitBreaker(String key, int failureThreshold, long openDuration, TimeUnit unit) {
+        this.key = key;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = unit.toNanos(openDuration);
+    }
+
+    /**
+     * Gets the circuit breaker of the given server key, see {@link ContinuumClient#getServerKey}.
+     */
+    public static CircuitBreaker get(String key) {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(key);
+        if (circuitBreaker == null) {
+            CircuitBreaker newCircuitBreaker = new CircuitBreaker(key, FAILURE_THRESHOLD, OPEN_DURATION, TimeUnit.SECONDS);
+            circuitBreaker = circuitBreakers.putIfAbsent(key, newCircuitBreaker);
+            if (circuitBreaker == null) {
+                circuitBreaker = newCircuitBreaker;
+            }
+        }
+        return circuitBreaker;
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * Checks that a call may be made, and if the circuit is half-open, makes it the trial call.
+     * The outcome of the call must then be reported to {@link #onSuccess}, {@link #onFailure} or {@link #release}.
+     *
+     * @throws CircuitOpenException if the circuit is open
+     */
+    synchronized void beforeRequest() throws CircuitOpenException {
+        if (this.state == State.OPEN) {
+            long elapsed = System.nanoTime() - this.openedAt;
+            if (elapsed < this.openDuration) {
+                throw new CircuitOpenException("Continuum server " + this.key + " is unavailable after "
+                        + this.failureThreshold + " consecutive failures, not calling it for "
+                        + TimeUnit.NANOSECONDS.toSeconds(this.openDuration - elapsed) + "s");
+            }
+            this.state = State.HALF_OPEN;
+            this.trialInFlight = false;
+        }
+        if (this.state == State.HALF_OPEN) {
+            if (this.trialInFlight) {
+                throw new CircuitOpenException("Continuum server " + this.key
+                        + " is unavailable, waiting for a trial call to succeed");
+            }
+            this.trialInFlight = true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        if (this.state != State.CLOSED) {
+            LOGGER.info("Continuum server " + this.key + " is available again");
+        }
+        this.state = State.CLOSED;
+        this.failures = 0;
+        this.trialInFlight = false;
+    }
+
+    /**
+     * Reports a failed call. Errors that don't come from the server are not counted.
+     */
+    void onFailure(Exception e) {
+        if (isServerFailure(e)) {
+            onServerFailure();
+        }
+        else if (e instanceof ContinuumResponseException) {
+            // the server answered
+            onSuccess();
+        }
+        else {
+            release();
+        }
+    }
+
+    /**
+     * Reports a call that ended without an outcome, e.g. cancelled.
+     */
+    synchronized void release() {
+        this.trialInFlight = false;
+    }
+
+    private synchronized void onServerFailure() {
+        if (this.failureThreshold <= 0) {
+            return;
+        }
+        this.failures++;
+        if (this.state == State.HALF_OPEN || this.failures >= this.failureThreshold) {
+            if (this.state != State.OPEN) {
+                LOGGER.warning("Continuum server " + this.key + " is unavailable after " + this.failures
+                        + " consecutive failures, calls fail for "
+                        + TimeUnit.NANOSECONDS.toSeconds(this.openDuration) + "s");
+            }
+            this.state = State.OPEN;
+            this.openedAt = System.nanoTime();
+            this.trialInFlight = false;
+        }
+    }
+
+    static boolean isServerFailure(Exception e) {
+        if (e instanceof ContinuumResponseException) {
+            int status = ((ContinuumResponseException) e).getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        // not sent at all
+        return e instanceof IOException && !(e instanceof CircuitOpenException)
+                && !(e instanceof RateLimitedException);
+    }
+}
@@ -16,11 +16,11 @@
 
 package jenkins.plugins.continuum;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
 
 import hudson.model.Run;
-import net.sf.json.JSONObject;
 
 /**
  * Base class for continuum command input builders
@@ -33,11 +33,23 @@ public abstract class CommandInputBuilder implements BuildToContinuumAPI {
         return toJsonString(commandParameters);
     }
 
+    /**
+     * Serializes the command parameters like {@link #toContinuumAPI}, straight into the payload bytes.
+     */
+    public CommandPayload toPayload(Run build, Map<String, Object> commandParameters) throws IOException {
+        verifyRequiredParameters(commandParameters);
+        return CommandPayload.of(commandParameters);
+    }
+
     protected abstract Set<String> getRequiredParamaterNames();
 
     protected String toJsonString(Map<String, Object> commandParameters) {
-        JSONObject response = JSONObject.fromObject(commandParameters);
-        return response.toString();
+        try {
+            return CommandPayload.of(commandParameters).toString();
+        } catch (IOException e) {
+            // only thrown by the output stream, which is in memory
+            throw new IllegalStateException(e);
+        }
     }
 
     protected void verifyRequiredParameters(Map<String, Object> commandParameters) {
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONSerializer;
+import net.sf.json.util.JSONUtils;
+
+/**
+ * JSON body of a Continuum command, serialized once as UTF-8 bytes and sent as is by every attempt.
+ */
+public final class CommandPayload {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final byte[] bytes;
+    private final int length;
+    /** Content-Encoding of the bytes, null if they are not compressed. */
+    private final String contentEncoding;
+    /** The last compressed copy of the payload, kept for the retries. */
+    private volatile CommandPayload compressed;
+
+    CommandPayload(byte[] bytes, int length) {
+        this(bytes, length, null);
+    }
+
+    private CommandPayload(byte[] bytes, int length, String contentEncoding) {
+        this.bytes = bytes;
+        this.length = length;
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * Wraps a payload that is already serialized.
+     */
+    public static CommandPayload of(String json) {
+        byte[] bytes = json.getBytes(UTF_8);
+        return new CommandPayload(bytes, bytes.length);
+    }
+
+    /**
+     * Serializes the command parameters, streaming them straight into the payload bytes.
+     * Values are written the way json-lib would: maps as objects, collections and arrays as arrays,
+     * and strings that are JSON documents as the documents.
+     */
+    public static CommandPayload of(Map<String, Object> commandParameters) throws IOException {
+        Buffer buffer = new Buffer();
+        JsonGenerator generator = JSON_FACTORY.createGenerator(buffer, JsonEncoding.UTF8);
+        try {
+            writeValue(generator, commandParameters);
+        } finally {
+            generator.close();
+        }
+        return new CommandPayload(buffer.array(), buffer.size());
+    }
+
+    /** Number of bytes of the payload. */
+    public int getLength() {
+        return this.length;
+    }
+
+    public String getContentEncoding() {
+        return this.contentEncoding;
+    }
+
+    /**
+     * Compresses the payload, once for all the attempts to send it.
+     *
+     * @param encoding gzip or deflate
+     */
+    CommandPayload compress(String encoding) throws IOException {
+        CommandPayload result = this.compressed;
+        if (result == null || !encoding.equals(result.contentEncoding)) {
+            Buffer buffer = new Buffer(Math.max(256, this.length / 4));
+            DeflaterOutputStream out = RequestCompression.GZIP.equals(encoding)
+                    ? new GZIPOutputStream(buffer, 8192) : new DeflaterOutputStream(buffer);
+            try {
+                out.write(this.bytes, 0, this.length);
+            } finally {
+                out.close();
+            }
+            result = new CommandPayload(buffer.array(), buffer.size(), encoding);
+            this.compressed = result;
+        }
+        return result;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(this.bytes, 0, this.length);
+    }
+
+    /**
+     * Creates the request entity, which sends the payload bytes without copying them.
+     */
+    public HttpEntity toEntity() {
+        ByteArrayEntity entity = new ByteArrayEntity(this.bytes, 0, this.length, ContentType.APPLICATION_JSON);
+        entity.setContentEncoding(this.contentEncoding);
+        return entity;
+    }
+
+    /**
+     * Decodes the payload, e.g. to log it. A compressed payload is only described.
+     */
+    @Override
+    public String toString() {
+        if (this.contentEncoding != null) {
+            return "<" + this.length + " bytes of " + this.contentEncoding + ">";
+        }
+        return new String(this.bytes, 0, this.length, UTF_8);
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null || value instanceof JSONNull) {
+            generator.writeNull();
+        }
+        else if (value instanceof String) {
+            writeString(generator, (String) value);
+        }
+        else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).intValue());
+        }
+        else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        }
+        else if (value instanceof Double || value instanceof Float) {
+            generator.writeNumber(((Number) value).doubleValue());
+        }
+        else if (value instanceof BigDecimal) {
+            generator.writeNumber((BigDecimal) value);
+        }
+        else if (value instanceof BigInteger) {
+            generator.writeNumber((BigInteger) value);
+        }
+        else if (value instanceof Map) {
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                generator.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        }
+        else if (value instanceof Iterable) {
+            generator.writeStartArray();
+            for (Object element : (Iterable<?>) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        }
+        else if (value instanceof Object[]) {
+            generator.writeStartArray();
+            for (Object element : (Object[]) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        }
+        else {
+            generator.writeString(value.toString());
+        }
+    }
+
+    private static void writeString(JsonGenerator generator, String value) throws IOException {
+        if (JSONUtils.mayBeJSON(value)) {
+            // json-lib, which used to serialize the payloads, sends such strings as JSON
+            Object json;
+            try {
+                json = JSONSerializer.toJSON(value);
+            } catch (JSONException e) {
+                json = null;
+            }
+            if (json != null) {
+                writeValue(generator, json);
+                return;
+            }
+        }
+        generator.writeString(value);
+    }
+
+    /**
+     * Gives access to its array, so that the payload does not need a copy of it.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            this(1024);
+        }
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return this.buf;
+        }
+    }
+}
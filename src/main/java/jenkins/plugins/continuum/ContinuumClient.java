@@ -17,37 +17,308 @@
 package jenkins.plugins.continuum;
 
 import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContexts;
-import org.apache.http.util.EntityUtils;
+
+import hudson.init.Terminator;
+import jenkins.model.Jenkins;
+import jenkins.plugins.continuum.steps.ServerExecutors;
+import jenkins.util.Timer;
 
 /**
  * Client to make Continuum REST API calls
  */
 public final class ContinuumClient {
 
+    private static final Logger LOGGER = Logger.getLogger(ContinuumClient.class.getName());
+
     /**
      * HTTP Connection and read timeout default.
      */
     private static final Integer DEFAULT_TIMEOUT = 10000;
 
+    /**
+     * Maximum number of pooled connections to a single Continuum server (route).
+     */
+    static final int MAX_CONNECTIONS_PER_ROUTE =
+            Integer.getInteger(ContinuumClient.class.getName() + ".maxConnectionsPerRoute", 20);
+
+    /**
+     * Maximum number of pooled connections held by the client of a single Continuum server.
+     */
+    static final int MAX_CONNECTIONS_TOTAL =
+            Integer.getInteger(ContinuumClient.class.getName() + ".maxConnectionsTotal", 50);
+
+    /**
+     * Seconds after which an idle pooled connection is evicted.
+     */
+    static final long IDLE_CONNECTION_TIMEOUT =
+            Long.getLong(ContinuumClient.class.getName() + ".idleConnectionTimeout", 30L);
+
+    /**
+     * Seconds to keep a connection alive when the server does not send a Keep-Alive header.
+     */
+    static final long KEEP_ALIVE_TIMEOUT =
+            Long.getLong(ContinuumClient.class.getName() + ".keepAliveTimeout", 30L);
+
+    /**
+     * Number of I/O dispatcher threads of the non-blocking client, shared by all Continuum servers.
+     */
+    static final int IO_THREADS =
+            Integer.getInteger(ContinuumClient.class.getName() + ".ioThreads",
+                    Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Maximum number of connections held by the non-blocking client, across all Continuum servers.
+     */
+    static final int MAX_ASYNC_CONNECTIONS_TOTAL =
+            Integer.getInteger(ContinuumClient.class.getName() + ".maxAsyncConnectionsTotal", 200);
+
+    /**
+     * Maximum number of unread response bytes skipped to keep the connection, above that it is closed.
+     */
+    private static final long MAX_DRAIN = 64 * 1024;
+
+    /**
+     * Milliseconds of inactivity after which a pooled connection is re-validated before reuse.
+     */
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+
+    /**
+     * Response encodings accepted, both clients decompress them.
+     */
+    private static final String ACCEPT_ENCODING = "gzip,deflate";
+
+    /**
+     * Shared by all connection pools, so that the SSL context (and its TLS session cache) is reused.
+     */
+    private static final TLSSocketFactory TLS_SOCKET_FACTORY = new TLSSocketFactory();
+
+    private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = new ConnectionKeepAliveStrategy() {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            long maxDuration = TimeUnit.SECONDS.toMillis(KEEP_ALIVE_TIMEOUT);
+            return duration > 0 ? Math.min(duration, maxDuration) : maxDuration;
+        }
+    };
+
+    /**
+     * Long-lived clients, one per Continuum server (scheme, host and port).
+     */
+    private static final ConcurrentMap<String, CloseableHttpClient> httpClients =
+            new ConcurrentHashMap<String, CloseableHttpClient>();
+
+    /**
+     * Non-blocking client shared by all Continuum servers, created on first use.
+     */
+    private static AsyncClient asyncClient;
+
+    /**
+     * The Jenkins instance being shut down, null if none. The clients are usable again by the next
+     * instance, after a restart in the same JVM or in the next test.
+     */
+    private static volatile WeakReference<Jenkins> shutdownJenkins;
+
+    /**
+     * Posts the command, retrying it according to the {@link RetryPolicy#DEFAULT default retry policy}.
+     *
+     * @return the response body
+     * @throws ContinuumResponseException if the server answered with an error
+     * @throws CircuitOpenException if the server is not called because it keeps failing
+     * @throws RateLimitedException if the request would wait too long for the rate limiter of the server
+     */
     public static String post(String serverUrl, String apiToken, String command, String payload) throws Exception {
+        return post(serverUrl, apiToken, command, CommandPayload.of(payload), ResponseReaders.BODY);
+    }
+
+    /**
+     * Posts the command like {@link #post(String, String, String, String)}, reading the response with the given reader.
+     */
+    public static <T> T post(String serverUrl, String apiToken, String command, CommandPayload payload,
+            ResponseReader<T> reader) throws Exception {
+        ContinuumEvents.Span event = ContinuumEvents.call(command, serverUrl);
+        try {
+            T response = postWithRetries(serverUrl, apiToken, command, payload, reader);
+            event.complete(payload.getLength(), ContinuumEvents.OUTCOME_OK);
+            return response;
+        } catch (Exception e) {
+            event.complete(payload.getLength(), ContinuumMetrics.getStatus(e));
+            throw e;
+        }
+    }
+
+    private static <T> T postWithRetries(String serverUrl, String apiToken, String command, CommandPayload payload,
+            ResponseReader<T> reader) throws Exception {
+        CloseableHttpClient httpClient = getHttpClient(serverUrl);
+        CircuitBreaker circuitBreaker = CircuitBreaker.get(getServerKey(serverUrl));
+        RateLimiter rateLimiter = RateLimiter.get(getServerKey(serverUrl));
+        ContinuumMetrics.Call metrics = ContinuumMetrics.request(serverUrl, command);
+        for (int retries = 0; ; retries++) {
+            // the circuit breaker first, a request it rejects does not take a token
+            long wait;
+            try {
+                circuitBreaker.beforeRequest();
+                wait = reserve(rateLimiter, circuitBreaker);
+            } catch (IOException e) {
+                metrics.end(metrics.begin(), e);
+                throw e;
+            }
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    rateLimiter.release();
+                    circuitBreaker.release();
+                    throw e;
+                }
+            }
+            long startedAt = metrics.begin();
+            CloseableHttpResponse httpResponse = null;
+            CommandPayload requestPayload = RequestCompression.getRequestPayload(serverUrl, payload);
+            try {
+                httpResponse = httpClient.execute(createPost(serverUrl, apiToken, command, requestPayload));
+                T response = handleResponse(httpResponse, reader);
+                circuitBreaker.onSuccess();
+                rateLimiter.onResponse(System.nanoTime() - startedAt, null);
+                metrics.end(startedAt, null);
+                return response;
+            } catch (Exception e) {
+                rateLimiter.onResponse(System.nanoTime() - startedAt, e);
+                metrics.end(startedAt, e);
+                circuitBreaker.onFailure(e);
+                if (RequestCompression.isRejected(serverUrl, requestPayload, e)) {
+                    // sent again right away, uncompressed, without counting as a retry
+                    retries--;
+                    continue;
+                }
+                if (!RetryPolicy.DEFAULT.isRetryable(command, e, retries)) {
+                    throw e;
+                }
+                long delay = RetryPolicy.DEFAULT.getDelay(retries, e);
+                LOGGER.log(Level.FINE, "Retrying Continuum " + command + " in " + delay + "ms", e);
+                Thread.sleep(delay);
+            } finally {
+                closeQuietly(httpResponse);
+            }
+        }
+    }
+
+    /**
+     * Takes a token for a request the circuit breaker let through, releasing the circuit breaker if the
+     * request would wait too long.
+     */
+    private static long reserve(RateLimiter rateLimiter, CircuitBreaker circuitBreaker) throws RateLimitedException {
+        try {
+            return rateLimiter.reserve();
+        } catch (RateLimitedException e) {
+            circuitBreaker.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Posts the command without blocking the calling thread. The callback is notified
+     * on an I/O dispatcher thread, so it must not block either. Failed calls are retried
+     * like with {@link #post}, the delays are waited out on a timer.
+     *
+     * @return the future of the response body, cancelling it aborts the request
+     */
+    public static Future<String> postAsync(String serverUrl, String apiToken, String command, String payload,
+            FutureCallback<String> callback) {
+        return postAsync(serverUrl, apiToken, command, CommandPayload.of(payload), ResponseReaders.BODY, callback);
+    }
+
+    /**
+     * Posts the command like {@link #postAsync(String, String, String, String, FutureCallback)},
+     * reading the response with the given reader.
+     */
+    public static <T> Future<T> postAsync(String serverUrl, String apiToken, String command, CommandPayload payload,
+            ResponseReader<T> reader, FutureCallback<T> callback) {
+        ResponseFuture<T> result = new ResponseFuture<T>(serverUrl, apiToken, command, payload, reader, callback);
+        result.execute();
+        return result;
+    }
+
+    /**
+     * Queues a write (e.g. pipeline data) to be sent with the other pending writes to the same server,
+     * see {@link WriteQueue}. The callback is notified on an I/O dispatcher thread.
+     *
+     * @param group the writes of the same group are sent in the order they were queued
+     * @param coalesceKey identifies the value set by the write, so that a pending write of the same value
+     *            is replaced by this one; null if the write must always be sent
+     * @return the future of the response body
+     */
+    public static Future<String> postQueued(String serverUrl, String apiToken, String command, CommandPayload payload,
+            String group, String coalesceKey, FutureCallback<String> callback) {
+        return WriteQueue.add(serverUrl, apiToken, command, payload, group, coalesceKey, callback);
+    }
+
+    /**
+     * Whether writes should go through {@link #postQueued}.
+     */
+    public static boolean isWriteQueueEnabled() {
+        return WriteQueue.ENABLED;
+    }
+
+    private static HttpPost createPost(String serverUrl, String apiToken, String command, CommandPayload payload) {
         StringBuffer apiUrl = new StringBuffer(serverUrl);
         if (!serverUrl.endsWith("/")) {
             apiUrl = apiUrl.append("/");
@@ -57,36 +328,149 @@ public final class ContinuumClient {
                 .append(command)
                 ;
 
-        CloseableHttpClient httpClient = getHttpClient();
-        CloseableHttpResponse httpResponse = null;
+        HttpPost post = new HttpPost(apiUrl.toString());
+        if (apiToken != null) {
+            post.addHeader(HttpHeaders.AUTHORIZATION, "Token " + apiToken);
+        }
+        post.addHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPT_ENCODING);
+        post.setEntity(payload.toEntity());
+        return post;
+    }
+
+    private static <T> T handleResponse(HttpResponse httpResponse, ResponseReader<T> reader) throws IOException {
+        int responseCode = httpResponse.getStatusLine().getStatusCode();
+        if ((responseCode / 100) != 2) {
+            Map<String, String> error = readResponse(httpResponse, ResponseReaders.ERROR);
+            if (error == null) {
+                error = Collections.emptyMap();
+            }
+            throw new ContinuumResponseException(responseCode, httpResponse.getStatusLine().getReasonPhrase(),
+                    error.get(ResponseReaders.FIELD_ERROR_CODE), error.get(ResponseReaders.FIELD_ERROR_MESSAGE),
+                    error.get(ResponseReaders.FIELD_ERROR_DETAIL), getRetryAfter(httpResponse));
+        }
+        return readResponse(httpResponse, reader);
+    }
 
+    /**
+     * Reads the Retry-After header, in seconds or as an HTTP date.
+     *
+     * @return the delay in milliseconds, or -1 if there is no valid header
+     */
+    private static long getRetryAfter(HttpResponse httpResponse) {
+        Header header = httpResponse.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
         try {
-            HttpPost post = new HttpPost(apiUrl.toString());
-            if (apiToken != null) {
-                post.addHeader(HttpHeaders.AUTHORIZATION, "Token " + apiToken);
-            }
-            post.setEntity(new StringEntity(payload, ContentType.APPLICATION_JSON));
-            httpResponse = httpClient.execute(post);
-            int responseCode = httpResponse.getStatusLine().getStatusCode();
-            // Always read response to ensure the inputstream is closed
-            String response = readResponse(httpResponse.getEntity());
-            if ((responseCode / 100) != 2) {
-                // TODO parse error
-                throw new IOException(httpResponse.getStatusLine().getReasonPhrase());
+            return Math.max(0L, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(0L, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Gets the pooled client for the given Continuum server, creating it on first use.
+     * The returned client is shared and must not be closed by the caller.
+     */
+    protected static CloseableHttpClient getHttpClient(String serverUrl) {
+        if (isShutdown()) {
+            throw new RejectedExecutionException("Continuum client has been shut down");
+        }
+        String key = getServerKey(serverUrl);
+        CloseableHttpClient httpClient = httpClients.get(key);
+        if (httpClient == null) {
+            CloseableHttpClient newClient = createHttpClient();
+            httpClient = httpClients.putIfAbsent(key, newClient);
+            if (httpClient == null) {
+                httpClient = newClient;
             }
-            return response;
-        } finally {
-            closeQuietly(httpResponse);
-            closeQuietly(httpClient);
+            else {
+                // Lost the race, another thread registered a client for the same server
+                closeQuietly(newClient);
+            }
+        }
+        return httpClient;
+    }
+
+    /**
+     * Gets the non-blocking client, creating and starting it on first use.
+     */
+    static synchronized CloseableHttpAsyncClient getHttpAsyncClient() {
+        if (isShutdown()) {
+            throw new RejectedExecutionException("Continuum client has been shut down");
+        }
+        if (asyncClient == null) {
+            asyncClient = new AsyncClient();
+        }
+        return asyncClient.client;
+    }
+
+    /**
+     * Whether the running Jenkins instance is shutting down, the clients then refusing new requests.
+     */
+    public static boolean isShutdown() {
+        WeakReference<Jenkins> shutdownJenkins = ContinuumClient.shutdownJenkins;
+        if (shutdownJenkins == null) {
+            return false;
         }
+        Jenkins jenkins = shutdownJenkins.get();
+        return jenkins != null && jenkins == Jenkins.getInstance();
     }
 
-    protected static CloseableHttpClient getHttpClient() {
+    /**
+     * Closes all pooled clients and their connections. Called when Jenkins shuts down.
+     */
+    @Terminator
+    public static void shutdown() {
+        // first, so that the requests failing from now on stay pending in the outbox
+        shutdownJenkins = new WeakReference<Jenkins>(Jenkins.getInstance());
+        Outbox.close();
+        PipelineIndex.close();
+        WriteQueue.shutdown();
+        ServerExecutors.shutdown();
+        for (String key : httpClients.keySet()) {
+            closeQuietly(httpClients.remove(key));
+        }
+        synchronized (ContinuumClient.class) {
+            if (asyncClient != null) {
+                asyncClient.close();
+                asyncClient = null;
+            }
+        }
+    }
+
+    /**
+     * Gets the key that identifies a Continuum server, i.e. its scheme, host and port.
+     */
+    public static String getServerKey(String serverUrl) {
+        HttpHost host = URIUtils.extractHost(URI.create(serverUrl));
+        return host != null ? host.toURI() : serverUrl;
+    }
+
+    protected static CloseableHttpClient createHttpClient() {
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", TLS_SOCKET_FACTORY)
+                .build();
+        PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+        connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
         HttpClientBuilder httpClientBuilder = HttpClients.custom()
                 .setDefaultRequestConfig(
                         RequestConfig.custom()
-                        .setConnectTimeout(DEFAULT_TIMEOUT).setSocketTimeout(DEFAULT_TIMEOUT).build())
-                .setSSLSocketFactory(new TLSSocketFactory());
+                        .setConnectTimeout(DEFAULT_TIMEOUT).setSocketTimeout(DEFAULT_TIMEOUT)
+                        .setConnectionRequestTimeout(DEFAULT_TIMEOUT).build())
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(KEEP_ALIVE_STRATEGY)
+                // Connections carry no user state (the API token is a header), so any of them can be reused
+                .disableConnectionState()
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
 
         /* TODO handle proxy
         if (Jenkins.getInstance() != null) {
@@ -107,8 +491,99 @@ public final class ContinuumClient {
         return httpClientBuilder.build();
     }
 
-    private static String readResponse(HttpEntity entity) throws IOException {
-        return entity != null ? EntityUtils.toString(entity) : null;
+    /**
+     * Reads the response, then releases the connection back to the pool by reading the rest of the content.
+     * If there is too much left to read, the connection is closed instead.
+     */
+    private static <T> T readResponse(HttpResponse httpResponse, ResponseReader<T> reader) throws IOException {
+        HttpEntity entity = httpResponse.getEntity();
+        if (entity == null) {
+            return null;
+        }
+        T result;
+        UnclosableEntity readerEntity = new UnclosableEntity(entity);
+        try {
+            // the reader may close the content, which would read all the rest of it
+            result = reader.read(decode(readerEntity));
+        } finally {
+            // repeatable content is not read from the connection
+            if (entity.isStreaming()) {
+                // the stream read by the reader, which knows whether the end of the content was reached
+                InputStream in = readerEntity.getContentStream();
+                if (drain(in)) {
+                    in.close();
+                }
+                else if (httpResponse instanceof Closeable) {
+                    closeQuietly((Closeable) httpResponse);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decompresses the content of a compressed response. The blocking clients do it already,
+     * the non-blocking one does not.
+     */
+    private static HttpEntity decode(HttpEntity entity) {
+        Header contentEncoding = entity.getContentEncoding();
+        if (contentEncoding != null) {
+            String encoding = contentEncoding.getValue().trim();
+            if (RequestCompression.GZIP.equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+                return new GzipDecompressingEntity(entity);
+            }
+            if (RequestCompression.DEFLATE.equalsIgnoreCase(encoding)) {
+                return new DeflateDecompressingEntity(entity);
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * Skips the rest of the content, up to {@link #MAX_DRAIN} bytes.
+     *
+     * @return true if the end of the content was reached
+     */
+    private static boolean drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        long drained = 0;
+        while (drained < MAX_DRAIN) {
+            int n = in.read(buffer);
+            if (n < 0) {
+                return true;
+            }
+            drained += n;
+        }
+        return false;
+    }
+
+    /**
+     * Entity whose content is not closed by the reader, so that {@link #readResponse} decides
+     * whether to drain it or to close the connection.
+     */
+    private static final class UnclosableEntity extends HttpEntityWrapper {
+        private InputStream content;
+
+        UnclosableEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(getContentStream()) {
+                @Override
+                public void close() {
+                    // closed by readResponse
+                }
+            };
+        }
+
+        InputStream getContentStream() throws IOException {
+            if (this.content == null) {
+                this.content = super.getContent();
+            }
+            return this.content;
+        }
     }
 
     private static void closeQuietly(Closeable closeable) {
@@ -121,6 +596,285 @@ public final class ContinuumClient {
         }
     }
 
+    /**
+     * Future of a non-blocking request and its retries, completed from the I/O dispatcher thread.
+     */
+    private static class ResponseFuture<T> extends BasicFuture<T> {
+
+        private final String serverUrl;
+        private final String apiToken;
+        private final String command;
+        private final CommandPayload payload;
+        private final ResponseReader<T> reader;
+        private final CircuitBreaker circuitBreaker;
+        private final RateLimiter rateLimiter;
+        private final ContinuumMetrics.Call metrics;
+        private final ContinuumEvents.Span event;
+        private volatile int retries;
+        /** The payload sent by the request in flight, maybe compressed. */
+        private volatile CommandPayload requestPayload;
+        /** The HTTP request in flight, or the scheduled retry. */
+        private volatile Future<?> request;
+        /** Whether the request waiting for the rate limiter holds a token and the circuit breaker. */
+        private final AtomicBoolean reserved = new AtomicBoolean();
+
+        ResponseFuture(String serverUrl, String apiToken, String command, CommandPayload payload, ResponseReader<T> reader,
+                FutureCallback<T> callback) {
+            super(callback);
+            this.serverUrl = serverUrl;
+            this.apiToken = apiToken;
+            this.command = command;
+            this.payload = payload;
+            this.reader = reader;
+            this.circuitBreaker = CircuitBreaker.get(getServerKey(serverUrl));
+            this.rateLimiter = RateLimiter.get(getServerKey(serverUrl));
+            this.metrics = ContinuumMetrics.request(serverUrl, command);
+            this.event = ContinuumEvents.call(command, serverUrl);
+        }
+
+        /**
+         * Sends the request once the rate limiter lets it through.
+         */
+        void execute() {
+            // the circuit breaker first, a request it rejects does not take a token
+            long wait;
+            try {
+                this.circuitBreaker.beforeRequest();
+                wait = reserve(this.rateLimiter, this.circuitBreaker);
+            } catch (IOException e) {
+                this.metrics.end(this.metrics.begin(), e);
+                failed(e);
+                return;
+            }
+            if (wait <= 0) {
+                send();
+                return;
+            }
+            this.reserved.set(true);
+            this.request = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!reserved.compareAndSet(true, false)) {
+                        // cancelled, and released
+                        return;
+                    }
+                    if (isDone()) {
+                        rateLimiter.release();
+                        circuitBreaker.release();
+                        return;
+                    }
+                    try {
+                        send();
+                    } catch (RuntimeException e) {
+                        failed(e);
+                    }
+                }
+            }, wait, TimeUnit.NANOSECONDS);
+            if (isCancelled()) {
+                this.request.cancel(false);
+                release();
+            }
+        }
+
+        /**
+         * Gives back the token and the circuit breaker of a request cancelled while it waited to be sent.
+         */
+        private void release() {
+            if (this.reserved.compareAndSet(true, false)) {
+                this.rateLimiter.release();
+                this.circuitBreaker.release();
+            }
+        }
+
+        /**
+         * Sends the request, once the circuit breaker let it through and the rate limiter gave it a token.
+         */
+        private void send() {
+            long startedAt = this.metrics.begin();
+            this.requestPayload = RequestCompression.getRequestPayload(this.serverUrl, this.payload);
+            HttpPost post = createPost(this.serverUrl, this.apiToken, this.command, this.requestPayload);
+            try {
+                this.request = getHttpAsyncClient().execute(post, newResponseCallback(startedAt));
+            } catch (RuntimeException e) {
+                this.metrics.end(startedAt, e);
+                this.circuitBreaker.release();
+                throw e;
+            }
+            if (isCancelled()) {
+                this.request.cancel(true);
+            }
+        }
+
+        /**
+         * @param startedAt the start of the request, to measure it
+         */
+        FutureCallback<HttpResponse> newResponseCallback(final long startedAt) {
+            return new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    T result;
+                    try {
+                        result = handleResponse(response, reader);
+                    } catch (Exception e) {
+                        rateLimiter.onResponse(System.nanoTime() - startedAt, e);
+                        metrics.end(startedAt, e);
+                        onError(e);
+                        return;
+                    }
+                    rateLimiter.onResponse(System.nanoTime() - startedAt, null);
+                    metrics.end(startedAt, null);
+                    circuitBreaker.onSuccess();
+                    ResponseFuture.this.completed(result);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    rateLimiter.onResponse(System.nanoTime() - startedAt, e);
+                    metrics.end(startedAt, e);
+                    onError(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    metrics.discard();
+                    circuitBreaker.release();
+                    ResponseFuture.this.cancel(true);
+                }
+            };
+        }
+
+        private void onError(Exception e) {
+            this.circuitBreaker.onFailure(e);
+            if (!isDone() && RequestCompression.isRejected(this.serverUrl, this.requestPayload, e)) {
+                // sent again right away, uncompressed, without counting as a retry
+                retry();
+                return;
+            }
+            if (isDone() || !RetryPolicy.DEFAULT.isRetryable(this.command, e, this.retries)) {
+                failed(e);
+                return;
+            }
+            long delay = RetryPolicy.DEFAULT.getDelay(this.retries, e);
+            LOGGER.log(Level.FINE, "Retrying Continuum " + this.command + " in " + delay + "ms", e);
+            this.retries++;
+            this.request = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retry();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void retry() {
+            if (isDone()) {
+                return;
+            }
+            try {
+                execute();
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        @Override
+        public boolean completed(T result) {
+            boolean completed = super.completed(result);
+            if (completed) {
+                this.event.complete(this.payload.getLength(), ContinuumEvents.OUTCOME_OK);
+            }
+            return completed;
+        }
+
+        @Override
+        public boolean failed(Exception e) {
+            boolean failed = super.failed(e);
+            if (failed) {
+                this.event.complete(this.payload.getLength(), ContinuumMetrics.getStatus(e));
+            }
+            return failed;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            Future<?> r = this.request;
+            if (r != null) {
+                r.cancel(mayInterruptIfRunning);
+            }
+            release();
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                this.event.complete(this.payload.getLength(), "cancelled");
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * The non-blocking client and its connection pool, whose idle connections are evicted periodically.
+     */
+    private static class AsyncClient {
+
+        private final CloseableHttpAsyncClient client;
+        private final PoolingNHttpClientConnectionManager connectionManager;
+        private final Future<?> evictor;
+
+        AsyncClient() {
+            SSLContext sslContext = SSLContexts.createDefault();
+            Registry<SchemeIOSessionStrategy> sessionStrategyRegistry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                    .register("http", NoopIOSessionStrategy.INSTANCE)
+                    .register("https", new SSLIOSessionStrategy(sslContext, getTLSProtocols(sslContext), null,
+                            SSLIOSessionStrategy.getDefaultHostnameVerifier()))
+                    .build();
+            IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                    .setIoThreadCount(IO_THREADS)
+                    .setConnectTimeout(DEFAULT_TIMEOUT)
+                    .setSoTimeout(DEFAULT_TIMEOUT)
+                    .build();
+            try {
+                this.connectionManager = new PoolingNHttpClientConnectionManager(
+                        new DefaultConnectingIOReactor(ioReactorConfig), sessionStrategyRegistry);
+            } catch (IOReactorException e) {
+                throw new IllegalStateException("Unable to start the Continuum I/O reactor", e);
+            }
+            this.connectionManager.setMaxTotal(MAX_ASYNC_CONNECTIONS_TOTAL);
+            this.connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+
+            this.client = HttpAsyncClients.custom()
+                    .setDefaultRequestConfig(
+                            RequestConfig.custom()
+                            .setConnectTimeout(DEFAULT_TIMEOUT).setSocketTimeout(DEFAULT_TIMEOUT)
+                            .setConnectionRequestTimeout(DEFAULT_TIMEOUT).build())
+                    .setConnectionManager(this.connectionManager)
+                    .setKeepAliveStrategy(KEEP_ALIVE_STRATEGY)
+                    .disableConnectionState()
+                    .build();
+            this.client.start();
+
+            this.evictor = Timer.get().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    connectionManager.closeExpiredConnections();
+                    connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+                }
+            }, IDLE_CONNECTION_TIMEOUT, IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+        }
+
+        void close() {
+            this.evictor.cancel(false);
+            closeQuietly(this.client);
+        }
+    }
+
+    private static String[] getTLSProtocols(SSLContext sslContext) {
+        List<String> protocols = new ArrayList<String>(5);
+        for (String supportedProtocol : sslContext.getSupportedSSLParameters().getProtocols()) {
+            if (!supportedProtocol.startsWith("SSL")) {
+                protocols.add(supportedProtocol);
+            }
+        }
+        return protocols.toArray(new String[protocols.size()]);
+    }
+
     private static class TLSSocketFactory extends SSLConnectionSocketFactory {
 
         public TLSSocketFactory() {
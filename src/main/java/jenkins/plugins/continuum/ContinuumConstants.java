@@ -27,6 +27,7 @@ public final class ContinuumConstants {
     public static final String COMMAND_PARAMETER__PROJECT = "project"; 
     public static final String COMMAND_PARAMETER__VALUE = "value";
     
+    public static final String COMMAND_NAME__GET_PIPELINE_INSTANCE = "get_pipelineinstance";
     public static final String COMMAND_NAME__INITIATE_PIPELINE = "initiate_pipeline";
     public static final String COMMAND_NAME__POST_PI_DATA = "post_pi_data";
     public static final String COMMAND_NAME__SET_PI_DATA = "set_pi_data";
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java Flight Recorder events of the Continuum calls, the serialization of their payloads and the resolution
+ * of their credentials, see {@link FlightEvents}. They are only recorded when a recording enables them,
+ * and cost a check of a flag otherwise.
+ * <p>
+ * JFR needs JDK 8u272 or later, on older JVMs (or with {@link #DISABLED}) nothing is emitted
+ * and the event classes are never loaded.
+ */
+public final class ContinuumEvents {
+
+    private static final Logger LOGGER = Logger.getLogger(ContinuumEvents.class.getName());
+
+    /** Whether not to emit any event, even in recordings that enable them. */
+    static final boolean DISABLED = Boolean.getBoolean(ContinuumEvents.class.getName() + ".disabled");
+
+    /** Outcome of the spans that succeeded. */
+    public static final String OUTCOME_OK = "ok";
+
+    private static final boolean AVAILABLE = !DISABLED && isFlightRecorderAvailable();
+
+    /** Span that records nothing. */
+    static final Span NONE = new Span() {
+        @Override
+        public void complete(long payloadBytes, String outcome) {
+        }
+    };
+
+    private ContinuumEvents() {
+    }
+
+    /**
+     * A measured operation, emitted as an event when it completes.
+     */
+    public interface Span {
+        /**
+         * Ends the operation.
+         *
+         * @param payloadBytes the size of the payload, -1 if unknown
+         * @param outcome {@link #OUTCOME_OK}, or the status of the failure, see {@link ContinuumMetrics#getStatus}
+         */
+        void complete(long payloadBytes, String outcome);
+    }
+
+    /**
+     * Starts measuring a call to Continuum, from its first attempt to its response or its last failure.
+     */
+    public static Span call(String command, String serverUrl) {
+        return AVAILABLE ? FlightEvents.call(command, serverUrl) : NONE;
+    }
+
+    /**
+     * Starts measuring the serialization of a command payload.
+     */
+    public static Span serialization(String command) {
+        return AVAILABLE ? FlightEvents.serialization(command) : NONE;
+    }
+
+    /**
+     * Starts measuring the resolution of the credentials of a command.
+     */
+    public static Span credentials(String command, String serverUrl) {
+        return AVAILABLE ? FlightEvents.credentials(command, serverUrl) : NONE;
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Object available = Class.forName("jdk.jfr.FlightRecorder").getMethod("isAvailable").invoke(null);
+            return Boolean.TRUE.equals(available);
+        } catch (Throwable e) {
+            // JVM without JFR
+            LOGGER.log(Level.FINE, "Java Flight Recorder not available", e);
+            return false;
+        }
+    }
+}
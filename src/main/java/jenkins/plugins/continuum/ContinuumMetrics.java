@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Latency, in-flight and error metrics of the Continuum calls, per server (scheme, host and port) and command.
+ * Two kinds of calls are measured: the HTTP requests made by {@link ContinuumClient}, each attempt separately,
+ * and the step executions, from their start to their completion including the time waiting for a thread.
+ * <p>
+ * The metrics are exported in the Prometheus text format by
+ * {@link jenkins.plugins.continuum.actions.ContinuumMetricsAction}, and to the Jenkins metrics plugin
+ * when it is installed.
+ */
+public final class ContinuumMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(ContinuumMetrics.class.getName());
+
+    /** Upper bounds of the latency histogram buckets, in milliseconds. */
+    static final long[] BUCKETS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+    /** Maximum number of measured server and command pairs, further servers are measured as {@link #OTHER_SERVER}. */
+    static final int MAX_SERIES = Integer.getInteger(ContinuumMetrics.class.getName() + ".maxSeries", 500);
+
+    /** Server of the calls measured once {@link #MAX_SERIES} is reached. */
+    static final String OTHER_SERVER = "other";
+
+    /** Status of the failures that are not Continuum responses, e.g. timeouts. */
+    static final String STATUS_IO = "io";
+
+    /** Status of the calls not made because the circuit breaker of the server is open. */
+    static final String STATUS_CIRCUIT_OPEN = "circuit_open";
+
+    /** Status of the calls not made because they would have waited too long for the rate limiter. */
+    static final String STATUS_RATE_LIMITED = "rate_limited";
+
+    private static final ConcurrentMap<Key, Call> requests = new ConcurrentHashMap<Key, Call>();
+    private static final ConcurrentMap<Key, Call> steps = new ConcurrentHashMap<Key, Call>();
+
+    private static volatile boolean metricsPluginUnavailable;
+
+    private ContinuumMetrics() {
+    }
+
+    /**
+     * Gets the metrics of the HTTP requests of a command to a server.
+     */
+    public static Call request(String serverUrl, String command) {
+        return get(requests, "request", serverUrl, command);
+    }
+
+    /**
+     * Gets the metrics of the step executions sending a command to a server.
+     */
+    public static Call step(String serverUrl, String command) {
+        return get(steps, "step", serverUrl, command);
+    }
+
+    /** Snapshot of the request metrics, sorted by server and command. */
+    public static List<Call> getRequests() {
+        return sorted(requests);
+    }
+
+    /** Snapshot of the step metrics, sorted by server and command. */
+    public static List<Call> getSteps() {
+        return sorted(steps);
+    }
+
+    /** Upper bounds of the histogram buckets, in milliseconds. */
+    public static long[] getBuckets() {
+        return BUCKETS.clone();
+    }
+
+    /**
+     * Gets the status a failure is counted under: the HTTP status code of Continuum responses,
+     * otherwise {@link #STATUS_CIRCUIT_OPEN}, {@link #STATUS_RATE_LIMITED} or {@link #STATUS_IO}.
+     */
+    public static String getStatus(Exception e) {
+        if (e instanceof ContinuumResponseException) {
+            return String.valueOf(((ContinuumResponseException) e).getStatusCode());
+        }
+        if (e instanceof RateLimitedException) {
+            return STATUS_RATE_LIMITED;
+        }
+        return e instanceof CircuitOpenException ? STATUS_CIRCUIT_OPEN : STATUS_IO;
+    }
+
+    private static Call get(ConcurrentMap<Key, Call> calls, String type, String serverUrl, String command) {
+        Key key = new Key(getServer(serverUrl), command);
+        Call call = calls.get(key);
+        if (call == null) {
+            if (calls.size() >= MAX_SERIES) {
+                key = new Key(OTHER_SERVER, command);
+                call = calls.get(key);
+                if (call != null) {
+                    return call;
+                }
+            }
+            Call newCall = new Call(key.server, command);
+            call = calls.putIfAbsent(key, newCall);
+            if (call == null) {
+                call = newCall;
+                register(type, call);
+            }
+        }
+        return call;
+    }
+
+    private static String getServer(String serverUrl) {
+        if (serverUrl == null || serverUrl.length() == 0) {
+            return OTHER_SERVER;
+        }
+        try {
+            return ContinuumClient.getServerKey(serverUrl);
+        } catch (IllegalArgumentException e) {
+            // not a URL, its calls fail right away
+            return OTHER_SERVER;
+        }
+    }
+
+    private static List<Call> sorted(Map<Key, Call> calls) {
+        Map<String, Call> byName = new TreeMap<String, Call>();
+        for (Call call : calls.values()) {
+            byName.put(call.server + ' ' + call.command, call);
+        }
+        return Collections.unmodifiableList(new ArrayList<Call>(byName.values()));
+    }
+
+    /**
+     * Registers the call with the metrics plugin, if it is installed.
+     */
+    private static void register(String type, Call call) {
+        if (metricsPluginUnavailable) {
+            return;
+        }
+        try {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null || jenkins.getPlugin("metrics") == null) {
+                return;
+            }
+            call.recorder = MetricsPluginRecorder.register(type, call);
+        } catch (LinkageError e) {
+            metricsPluginUnavailable = true;
+            LOGGER.log(Level.FINE, "Metrics plugin not available", e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Unable to register the Continuum metrics of " + call.server, e);
+        }
+    }
+
+    /**
+     * Receives each measure of a call, to forward it to another metrics library.
+     */
+    interface Recorder {
+        /**
+         * @param status the status of the failure, null if the call succeeded
+         */
+        void record(long nanos, String status);
+    }
+
+    /**
+     * Metrics of the calls of a command to a server.
+     */
+    public static final class Call {
+        private final String server;
+        private final String command;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        /** Number of calls per bucket, not cumulative, the last bucket counts the calls above all the bounds. */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+        private volatile Recorder recorder;
+
+        Call(String server, String command) {
+            this.server = server;
+            this.command = command;
+        }
+
+        /**
+         * Counts a call in flight until {@link #end}.
+         *
+         * @return the start of the call
+         */
+        public long begin() {
+            this.inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /**
+         * Records a call started by {@link #begin}.
+         *
+         * @param startedAt the start of the call, as returned by {@link #begin} or an earlier {@link System#nanoTime()}
+         * @param failure the failure of the call, null if it succeeded
+         */
+        public void end(long startedAt, Exception failure) {
+            this.inFlight.decrementAndGet();
+            long nanos = Math.max(0L, System.nanoTime() - startedAt);
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+                bucket++;
+            }
+            this.buckets.incrementAndGet(bucket);
+            this.totalNanos.addAndGet(nanos);
+            String status = null;
+            if (failure != null) {
+                status = getStatus(failure);
+                AtomicLong count = this.errors.get(status);
+                if (count == null) {
+                    AtomicLong newCount = new AtomicLong();
+                    count = this.errors.putIfAbsent(status, newCount);
+                    if (count == null) {
+                        count = newCount;
+                    }
+                }
+                count.incrementAndGet();
+            }
+            Recorder r = this.recorder;
+            if (r != null) {
+                r.record(nanos, status);
+            }
+        }
+
+        /**
+         * Ends a call begun by {@link #begin} without recording it, e.g. because it was cancelled.
+         */
+        public void discard() {
+            this.inFlight.decrementAndGet();
+        }
+
+        /** The server (scheme, host and port), or {@link ContinuumMetrics#OTHER_SERVER}. */
+        public String getServer() {
+            return this.server;
+        }
+
+        public String getCommand() {
+            return this.command;
+        }
+
+        /** Number of calls begun and not ended yet. */
+        public int getInFlight() {
+            return this.inFlight.get();
+        }
+
+        /**
+         * Cumulative number of calls per bucket of {@link ContinuumMetrics#getBuckets()},
+         * the last element is the number of all the calls.
+         */
+        public long[] getCumulativeCounts() {
+            long[] counts = new long[this.buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += this.buckets.get(i);
+                counts[i] = total;
+            }
+            return counts;
+        }
+
+        /** Total duration of the calls, in nanoseconds. */
+        public long getTotalNanos() {
+            return this.totalNanos.get();
+        }
+
+        /** Number of failed calls per status, see {@link ContinuumMetrics#getStatus}. */
+        public Map<String, Long> getErrors() {
+            Map<String, Long> result = new TreeMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> e : this.errors.entrySet()) {
+                result.put(e.getKey(), e.getValue().get());
+            }
+            return result;
+        }
+    }
+
+    private static final class Key {
+        private final String server;
+        private final String command;
+
+        Key(String server, String command) {
+            this.server = server;
+            this.command = command;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.server.equals(other.server) && this.command.equals(other.command);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.server.hashCode() + this.command.hashCode();
+        }
+    }
+}
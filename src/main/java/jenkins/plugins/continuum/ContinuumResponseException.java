@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.io.IOException;
+
+/**
+ * Non-2xx response of the Continuum server, with the error fields of its body when it has any.
+ */
+public class ContinuumResponseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final String errorCode;
+    private final String errorMessage;
+    private final String errorDetail;
+    private final long retryAfter;
+
+    /**
+     * @param retryAfter milliseconds the server asked to wait before retrying, -1 if it did not say
+     */
+    public ContinuumResponseException(int statusCode, String reasonPhrase, String errorCode, String errorMessage,
+            String errorDetail, long retryAfter) {
+        super(errorMessage == null ? reasonPhrase : reasonPhrase + ": " + errorMessage);
+        this.statusCode = statusCode;
+        this.errorCode = errorCode;
+        this.errorMessage = errorMessage;
+        this.errorDetail = errorDetail;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /** The Continuum error code, null if the response had none. */
+    public String getErrorCode() {
+        return this.errorCode;
+    }
+
+    /** The Continuum error message, null if the response had none. */
+    public String getErrorMessage() {
+        return this.errorMessage;
+    }
+
+    /** The details of the Continuum error, null if the response had none. */
+    public String getErrorDetail() {
+        return this.errorDetail;
+    }
+
+    /**
+     * Gets the delay from the Retry-After header, in milliseconds.
+     *
+     * @return the delay, or -1 if the response had no Retry-After header
+     */
+    public long getRetryAfter() {
+        return this.retryAfter;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.Secret;
+
+/**
+ * Controller-wide cache of the credentials resolved by the steps, keyed on the item, the credentials id
+ * and the server URL, so that a step does not look up and scan all the credentials of its item.
+ * <p>
+ * The cache is cleared whenever something other than a build is saved, which covers the credentials
+ * stored globally, in folders and by users. Entries also expire after {@link #TTL} seconds,
+ * for credentials providers that don't save through Jenkins.
+ */
+public final class CredentialsCache {
+
+    private static final Logger LOGGER = Logger.getLogger(CredentialsCache.class.getName());
+
+    /** Seconds a resolved credential is reused, 0 disables the cache. */
+    static final long TTL = Long.getLong(CredentialsCache.class.getName() + ".ttl", 300L);
+
+    /** Maximum number of cached credentials, the cache is cleared when it is reached. */
+    static final int MAX_ENTRIES = Integer.getInteger(CredentialsCache.class.getName() + ".maxEntries", 1000);
+
+    private static final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    /** Incremented by each invalidation, so that a lookup racing with it is not cached. */
+    private static final AtomicLong generation = new AtomicLong();
+
+    /** getSecret accessors of the credentials classes, {@link #NO_ACCESSOR} if a class has none. */
+    private static final ConcurrentMap<Class<?>, Method> secretAccessors = new ConcurrentHashMap<Class<?>, Method>();
+    private static final Method NO_ACCESSOR;
+
+    static {
+        try {
+            NO_ACCESSOR = Object.class.getMethod("toString");
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private CredentialsCache() {
+    }
+
+    /**
+     * Gets the credentials with the given id, available to the item for the server.
+     *
+     * @return the credentials, or null if there are none with this id
+     */
+    public static StandardCredentials getCredentials(Item owner, String credentialsId, String serverUrl) {
+        if (isBlank(credentialsId)) {
+            return null;
+        }
+        if (TTL <= 0) {
+            return lookupCredentials(owner, credentialsId, serverUrl);
+        }
+        Key key = new Key(owner == null ? null : owner.getFullName(), credentialsId, serverUrl);
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry == null || now - entry.resolvedAt > TimeUnit.SECONDS.toNanos(TTL)) {
+            long lookupGeneration = generation.get();
+            entry = new Entry(lookupCredentials(owner, credentialsId, serverUrl), now);
+            if (entries.size() >= MAX_ENTRIES) {
+                entries.clear();
+            }
+            entries.put(key, entry);
+            if (generation.get() != lookupGeneration) {
+                // the credentials changed during the lookup
+                entries.remove(key, entry);
+            }
+        }
+        return entry.credentials;
+    }
+
+    /**
+     * Gets the API token of the credentials: the password of username/password credentials,
+     * otherwise the secret of credentials having a getSecret method (e.g. secret text).
+     *
+     * @return the token, or null if the credentials have none
+     */
+    public static String getApiToken(StandardCredentials credentials) {
+        if (credentials == null) {
+            return null;
+        }
+        if (credentials instanceof StandardUsernamePasswordCredentials) {
+            Secret secret = ((StandardUsernamePasswordCredentials) credentials).getPassword();
+            return secret == null ? null : secret.getPlainText();
+        }
+        Method accessor = getSecretAccessor(credentials.getClass());
+        if (accessor == NO_ACCESSOR) {
+            return null;
+        }
+        try {
+            Object secret = accessor.invoke(credentials);
+            return secret instanceof Secret ? ((Secret) secret).getPlainText() : null;
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Unable to get the secret of " + credentials.getId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Forgets all the resolved credentials.
+     */
+    public static void invalidate() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    private static StandardCredentials lookupCredentials(Item owner, String credentialsId, String serverUrl) {
+        URIRequirementBuilder rBuilder = isBlank(serverUrl) ?
+                URIRequirementBuilder.create() : URIRequirementBuilder.fromUri(serverUrl);
+        List<StandardCredentials> credentials = CredentialsProvider.lookupCredentials(
+                StandardCredentials.class, owner, null, rBuilder.build());
+        for (StandardCredentials c : credentials) {
+            if (c.getId().equals(credentialsId)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private static Method getSecretAccessor(Class<?> type) {
+        Method accessor = secretAccessors.get(type);
+        if (accessor == null) {
+            try {
+                accessor = type.getMethod("getSecret");
+            } catch (NoSuchMethodException e) {
+                accessor = NO_ACCESSOR;
+            }
+            secretAccessors.putIfAbsent(type, accessor);
+        }
+        return accessor;
+    }
+
+    /**
+     * Clears the cache when credentials may have changed, i.e. when anything but a build is saved.
+     */
+    @Extension
+    public static class InvalidatingListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (!(o instanceof Run)) {
+                invalidate();
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String itemName;
+        private final String credentialsId;
+        private final String serverUrl;
+
+        Key(String itemName, String credentialsId, String serverUrl) {
+            this.itemName = itemName;
+            this.credentialsId = credentialsId;
+            this.serverUrl = serverUrl;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return equal(this.itemName, other.itemName) && this.credentialsId.equals(other.credentialsId)
+                    && equal(this.serverUrl, other.serverUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = this.credentialsId.hashCode();
+            hash = 31 * hash + (this.itemName == null ? 0 : this.itemName.hashCode());
+            return 31 * hash + (this.serverUrl == null ? 0 : this.serverUrl.hashCode());
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private static final class Entry {
+        private final StandardCredentials credentials;
+        private final long resolvedAt;
+
+        Entry(StandardCredentials credentials, long resolvedAt) {
+            this.credentials = credentials;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
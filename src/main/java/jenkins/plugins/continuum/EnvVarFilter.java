@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Selects the environment variables sent as pipeline details, from a comma-separated list of patterns:
+ * <ul>
+ * <li>a variable name, e.g. {@code BUILD_URL}</li>
+ * <li>a glob, where {@code *} matches any characters and {@code ?} a single one, e.g. {@code GIT_*}</li>
+ * <li>a regular expression between slashes, matching the whole name, e.g. {@code /JOB_(NAME|URL)/}</li>
+ * <li>any of the above prefixed with {@code !}, to exclude the matching variables</li>
+ * </ul>
+ * {@code *} alone selects all the variables, and so does a list of exclusions only.
+ * <p>
+ * Filters are compiled once per list and shared. The selection is capped: values longer than
+ * {@link #MAX_VALUE_BYTES} are truncated, and variables are left out once {@link #MAX_TOTAL_BYTES} is reached.
+ */
+public final class EnvVarFilter {
+
+    /** Maximum UTF-8 bytes of a variable value, longer values are truncated. */
+    static final int MAX_VALUE_BYTES = Integer.getInteger(EnvVarFilter.class.getName() + ".maxValueBytes", 16384);
+
+    /** Maximum UTF-8 bytes of all the selected names and values, further variables are left out. */
+    static final int MAX_TOTAL_BYTES = Integer.getInteger(EnvVarFilter.class.getName() + ".maxTotalBytes", 262144);
+
+    /** Replaces the dots of the variable names, which Continuum does not accept in field names. */
+    public static final char DOT_REPLACEMENT = '_';
+
+    /** Filters of the lists used so far, cleared if steps use too many different lists. */
+    private static final ConcurrentMap<String, EnvVarFilter> filters = new ConcurrentHashMap<String, EnvVarFilter>();
+    private static final int MAX_FILTERS = 256;
+
+    private static final String ALL = "*";
+    private static final String EXCLUDE = "!";
+
+    private final String spec;
+    private final boolean includeAll;
+    private final Set<String> includedNames;
+    private final Pattern includedPattern;
+    private final Set<String> excludedNames;
+    private final Pattern excludedPattern;
+
+    private EnvVarFilter(String spec) {
+        this.spec = spec;
+        Set<String> included = new HashSet<String>();
+        Set<String> excluded = new HashSet<String>();
+        List<String> includedRegexes = new ArrayList<String>();
+        List<String> excludedRegexes = new ArrayList<String>();
+        boolean all = false;
+        for (String item : spec.trim().split("\\s*,\\s*")) {
+            boolean exclude = item.startsWith(EXCLUDE);
+            String pattern = exclude ? item.substring(EXCLUDE.length()).trim() : item;
+            if (pattern.length() == 0) {
+                continue;
+            }
+            if (!exclude && ALL.equals(pattern)) {
+                all = true;
+                continue;
+            }
+            String regex = toRegex(pattern);
+            if (regex == null) {
+                (exclude ? excluded : included).add(pattern);
+            }
+            else {
+                (exclude ? excludedRegexes : includedRegexes).add(regex);
+            }
+        }
+        this.includeAll = all || (included.isEmpty() && includedRegexes.isEmpty()
+                && (!excluded.isEmpty() || !excludedRegexes.isEmpty()));
+        this.includedNames = included;
+        this.includedPattern = compile(includedRegexes);
+        this.excludedNames = excluded;
+        this.excludedPattern = compile(excludedRegexes);
+    }
+
+    /**
+     * Gets the filter of a comma-separated list of patterns.
+     *
+     * @throws IllegalArgumentException if a regular expression is not valid
+     */
+    public static EnvVarFilter get(String spec) {
+        EnvVarFilter filter = filters.get(spec);
+        if (filter == null) {
+            filter = new EnvVarFilter(spec);
+            if (filters.size() >= MAX_FILTERS) {
+                filters.clear();
+            }
+            filters.put(spec, filter);
+        }
+        return filter;
+    }
+
+    /** Whether the variable is selected, regardless of the size caps. */
+    public boolean matches(String name) {
+        if (this.excludedNames.contains(name)
+                || (this.excludedPattern != null && this.excludedPattern.matcher(name).matches())) {
+            return false;
+        }
+        return this.includeAll || this.includedNames.contains(name)
+                || (this.includedPattern != null && this.includedPattern.matcher(name).matches());
+    }
+
+    /**
+     * Selects the variables. The variables themselves are returned, not a copy, when all of them are selected
+     * unchanged.
+     *
+     * @param replaceDots whether to replace the dots of the names with {@link #DOT_REPLACEMENT}
+     */
+    public Selection select(Map<String, String> variables, boolean replaceDots) {
+        Map<String, String> result = null;
+        int index = 0;
+        long totalBytes = 0;
+        int truncated = 0;
+        int omitted = 0;
+        for (Map.Entry<String, String> variable : variables.entrySet()) {
+            String name = variable.getKey();
+            String value = variable.getValue();
+            boolean include = matches(name);
+            String useName = name;
+            String useValue = value;
+            if (include) {
+                useName = replaceDots ? name.replace('.', DOT_REPLACEMENT) : name;
+                useValue = truncate(value);
+                long bytes = utf8Length(useName) + (useValue == null ? 0 : utf8Length(useValue));
+                if (omitted > 0 || totalBytes + bytes > MAX_TOTAL_BYTES) {
+                    // keep the variables in order, once one is left out so are the following ones
+                    include = false;
+                    omitted++;
+                }
+                else {
+                    totalBytes += bytes;
+                    if (useValue != value) {
+                        truncated++;
+                    }
+                }
+            }
+            if (result == null && (!include || useName != name || useValue != value)) {
+                // first change, copy the variables selected unchanged so far
+                result = new LinkedHashMap<String, String>();
+                Iterator<Map.Entry<String, String>> previous = variables.entrySet().iterator();
+                for (int i = 0; i < index; i++) {
+                    Map.Entry<String, String> p = previous.next();
+                    result.put(p.getKey(), p.getValue());
+                }
+            }
+            if (include && result != null) {
+                result.put(useName, useValue);
+            }
+            index++;
+        }
+        return new Selection(result == null ? variables : Collections.unmodifiableMap(result), truncated, omitted);
+    }
+
+    @Override
+    public String toString() {
+        return this.spec;
+    }
+
+    /**
+     * Gets the regular expression of a glob or of a regular expression between slashes,
+     * null if the pattern is a plain name.
+     */
+    private static String toRegex(String pattern) {
+        if (pattern.length() > 2 && pattern.startsWith("/") && pattern.endsWith("/")) {
+            String regex = pattern.substring(1, pattern.length() - 1);
+            try {
+                Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid environment variable pattern " + pattern, e);
+            }
+            return regex;
+        }
+        if (pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder(pattern.length() + 8);
+        int start = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(pattern.substring(start, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < pattern.length()) {
+            regex.append(Pattern.quote(pattern.substring(start)));
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Compiles the expressions into a single alternation, null if there are none.
+     */
+    private static Pattern compile(List<String> regexes) {
+        if (regexes.isEmpty()) {
+            return null;
+        }
+        StringBuilder alternation = new StringBuilder();
+        for (String regex : regexes) {
+            if (alternation.length() > 0) {
+                alternation.append('|');
+            }
+            alternation.append("(?:").append(regex).append(')');
+        }
+        return Pattern.compile(alternation.toString());
+    }
+
+    /**
+     * Truncates the value to {@link #MAX_VALUE_BYTES}, without splitting a surrogate pair.
+     */
+    private static String truncate(String value) {
+        // a char takes 3 bytes at most
+        if (value == null || value.length() <= MAX_VALUE_BYTES / 3) {
+            return value;
+        }
+        long bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            bytes += utf8Length(value.charAt(i));
+            if (bytes > MAX_VALUE_BYTES) {
+                int end = i > 0 && Character.isHighSurrogate(value.charAt(i - 1)) ? i - 1 : i;
+                return value.substring(0, end);
+            }
+        }
+        return value;
+    }
+
+    private static long utf8Length(String s) {
+        long bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bytes += utf8Length(s.charAt(i));
+        }
+        return bytes;
+    }
+
+    /** Surrogates take 2 bytes each, i.e. 4 per pair. */
+    private static int utf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        }
+        if (c < 0x800 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * Variables selected by a filter.
+     */
+    public static final class Selection {
+        private final Map<String, String> variables;
+        private final int truncated;
+        private final int omitted;
+
+        Selection(Map<String, String> variables, int truncated, int omitted) {
+            this.variables = variables;
+            this.truncated = truncated;
+            this.omitted = omitted;
+        }
+
+        /** The selected variables, not to be modified. */
+        public Map<String, String> getVariables() {
+            return this.variables;
+        }
+
+        /** Number of values truncated to {@link EnvVarFilter#MAX_VALUE_BYTES}. */
+        public int getTruncated() {
+            return this.truncated;
+        }
+
+        /** Number of matching variables left out once {@link EnvVarFilter#MAX_TOTAL_BYTES} was reached. */
+        public int getOmitted() {
+            return this.omitted;
+        }
+    }
+}
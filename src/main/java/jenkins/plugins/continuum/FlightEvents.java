@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder events, only loaded by {@link ContinuumEvents} when JFR is available.
+ * Their duration is the one of the event, from its creation to {@link ContinuumEvents.Span#complete}.
+ */
+final class FlightEvents {
+
+    private FlightEvents() {
+    }
+
+    static ContinuumEvents.Span call(String command, String serverUrl) {
+        CallEvent event = new CallEvent();
+        if (!event.isEnabled()) {
+            return ContinuumEvents.NONE;
+        }
+        event.command = command;
+        event.server = serverUrl;
+        event.begin();
+        return event;
+    }
+
+    static ContinuumEvents.Span serialization(String command) {
+        SerializationEvent event = new SerializationEvent();
+        if (!event.isEnabled()) {
+            return ContinuumEvents.NONE;
+        }
+        event.command = command;
+        event.begin();
+        return event;
+    }
+
+    static ContinuumEvents.Span credentials(String command, String serverUrl) {
+        CredentialsEvent event = new CredentialsEvent();
+        if (!event.isEnabled()) {
+            return ContinuumEvents.NONE;
+        }
+        event.command = command;
+        event.server = serverUrl;
+        event.begin();
+        return event;
+    }
+
+    @Name("jenkins.plugins.continuum.Call")
+    @Label("Continuum Call")
+    @Description("Command posted to Continuum, including its retries")
+    @Category({ "Jenkins", "Continuum" })
+    @StackTrace(false)
+    static final class CallEvent extends Event implements ContinuumEvents.Span {
+        @Label("Command")
+        String command;
+
+        @Label("Server")
+        String server;
+
+        @Label("Payload Size")
+        @DataAmount
+        long payloadBytes;
+
+        @Label("Outcome")
+        @Description("ok, the HTTP status of the failure, io, circuit_open or rate_limited")
+        String outcome;
+
+        @Override
+        public void complete(long payloadBytes, String outcome) {
+            end();
+            if (shouldCommit()) {
+                this.payloadBytes = payloadBytes;
+                this.outcome = outcome;
+                commit();
+            }
+        }
+    }
+
+    @Name("jenkins.plugins.continuum.Serialization")
+    @Label("Continuum Payload Serialization")
+    @Description("Serialization of the payload of a Continuum command")
+    @Category({ "Jenkins", "Continuum" })
+    @StackTrace(false)
+    static final class SerializationEvent extends Event implements ContinuumEvents.Span {
+        @Label("Command")
+        String command;
+
+        @Label("Payload Size")
+        @DataAmount
+        long payloadBytes;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Override
+        public void complete(long payloadBytes, String outcome) {
+            end();
+            if (shouldCommit()) {
+                this.payloadBytes = payloadBytes;
+                this.outcome = outcome;
+                commit();
+            }
+        }
+    }
+
+    @Name("jenkins.plugins.continuum.Credentials")
+    @Label("Continuum Credentials Resolution")
+    @Description("Resolution of the API token of a Continuum command")
+    @Category({ "Jenkins", "Continuum" })
+    @StackTrace(false)
+    static final class CredentialsEvent extends Event implements ContinuumEvents.Span {
+        @Label("Command")
+        String command;
+
+        @Label("Server")
+        String server;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Override
+        public void complete(long payloadBytes, String outcome) {
+            end();
+            if (shouldCommit()) {
+                this.outcome = outcome;
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only file of binary records, after a header of a magic number and a format version.
+ * <p>
+ * The owner of the journal appends a record for each change of its state, and counts the records that
+ * no longer matter as garbage. Once they outnumber the live ones, the journal is compacted: rewritten
+ * from the state of the owner, then swapped with the old file. The journal is also compacted after it is
+ * read, which drops a record cut short by a crash. A journal that cannot be read is moved aside, so that
+ * the owner starts a new one rather than appending to it.
+ * <p>
+ * Not thread-safe, the owner guards it.
+ */
+final class Journal {
+
+    private static final Logger LOGGER = Logger.getLogger(Journal.class.getName());
+
+    /**
+     * Reads the records of a journal into the state of its owner.
+     */
+    interface Reader {
+        /**
+         * Reads a record, whose type was just read.
+         *
+         * @throws IOException if the record cannot be read, e.g. if its type is unknown
+         */
+        void read(int type, DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Writes the state of the owner of a journal as records.
+     */
+    interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final File file;
+    private final int magic;
+    private final int version;
+    private DataOutputStream out;
+    /** Number of records in the file that are only there until the next compaction. */
+    private int garbage;
+
+    Journal(File file, int magic, int version) {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+    }
+
+    File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Opens the journal to append records, writing the header of a new file.
+     */
+    DataOutputStream open() throws IOException {
+        if (this.out == null) {
+            boolean exists = this.file.isFile() && this.file.length() > 0;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file, true)));
+            if (!exists) {
+                this.out.writeInt(this.magic);
+                this.out.writeInt(this.version);
+            }
+        }
+        return this.out;
+    }
+
+    void close() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to close " + this.file, e);
+            }
+            this.out = null;
+        }
+    }
+
+    /**
+     * Reads the records, then compacts the journal.
+     *
+     * @throws IOException if the journal cannot be read, in which case it is moved aside, the owner
+     *             starting again from an empty state
+     */
+    void load(Reader reader, Writer writer) throws IOException {
+        if (!this.file.isFile()) {
+            return;
+        }
+        IOException failure = null;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        try {
+            if (in.readInt() != this.magic) {
+                throw new IOException("Not a journal of the expected kind: " + this.file);
+            }
+            int fileVersion = in.readInt();
+            if (fileVersion != this.version) {
+                throw new IOException("Unsupported version " + fileVersion + " of " + this.file);
+            }
+            int type;
+            while ((type = in.read()) >= 0) {
+                reader.read(type, in);
+            }
+        } catch (EOFException e) {
+            LOGGER.log(Level.FINE, "Truncated record at the end of " + this.file, e);
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            in.close();
+        }
+        if (failure != null) {
+            File corrupt = new File(this.file.getPath() + ".corrupt");
+            if (corrupt.exists() && !corrupt.delete() || !this.file.renameTo(corrupt)) {
+                throw new IOException("Unable to read " + this.file + ", nor to move it aside", failure);
+            }
+            throw new IOException("Unable to read " + this.file + ", moved to " + corrupt, failure);
+        }
+        compact(writer);
+    }
+
+    /**
+     * Counts records that are no longer needed, and will be dropped by the next compaction.
+     */
+    void addGarbage(int records) {
+        this.garbage += records;
+    }
+
+    int getGarbage() {
+        return this.garbage;
+    }
+
+    /**
+     * Compacts the journal if the records no longer needed reach the threshold and outnumber the live ones.
+     */
+    void compactIfNeeded(int threshold, int live, Writer writer) throws IOException {
+        if (this.garbage >= threshold && this.garbage > live) {
+            compact(writer);
+        }
+    }
+
+    /**
+     * Rewrites the journal with the live records only, replacing the old file once written.
+     */
+    void compact(Writer writer) throws IOException {
+        close();
+        File tmp = new File(this.file.getPath() + ".tmp");
+        DataOutputStream o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            o.writeInt(this.magic);
+            o.writeInt(this.version);
+            writer.write(o);
+        } finally {
+            o.close();
+        }
+        if (!tmp.renameTo(this.file)) {
+            // renameTo does not replace an existing file on every platform
+            if (!this.file.delete() || !tmp.renameTo(this.file)) {
+                throw new IOException("Unable to replace " + this.file + " with " + tmp);
+            }
+        }
+        this.garbage = 0;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Forwards the measures of a call to the registry of the metrics plugin, as
+ * {@code continuum.<type>.<server>.<command>.duration} (timer), {@code .errors} (meter) and {@code .in-flight} (gauge).
+ * <p>
+ * Only loaded when the optional metrics plugin is installed.
+ */
+final class MetricsPluginRecorder implements ContinuumMetrics.Recorder {
+
+    private final Timer duration;
+    private final Meter errors;
+
+    private MetricsPluginRecorder(Timer duration, Meter errors) {
+        this.duration = duration;
+        this.errors = errors;
+    }
+
+    static MetricsPluginRecorder register(String type, final ContinuumMetrics.Call call) {
+        MetricRegistry registry = Metrics.metricRegistry();
+        String prefix = MetricRegistry.name("continuum", type, call.getServer(), call.getCommand());
+        String inFlight = MetricRegistry.name(prefix, "in-flight");
+        if (!registry.getGauges().containsKey(inFlight)) {
+            registry.register(inFlight, new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return call.getInFlight();
+                }
+            });
+        }
+        return new MetricsPluginRecorder(registry.timer(MetricRegistry.name(prefix, "duration")),
+                registry.meter(MetricRegistry.name(prefix, "errors")));
+    }
+
+    @Override
+    public void record(long nanos, String status) {
+        this.duration.update(nanos, TimeUnit.NANOSECONDS);
+        if (status != null) {
+            this.errors.mark();
+        }
+    }
+}
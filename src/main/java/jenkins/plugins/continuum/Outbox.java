@@ -0,0 +1,411 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Append-only journal, under JENKINS_HOME, of the Continuum commands that steps are about to send.
+ * A step records all its commands before sending the first one, and completes each of them once handled,
+ * so that the commands still pending after a restart can be sent again when the step resumes.
+ * <p>
+ * Only the commands that can be sent again are recorded. Records are binary: a pending record holds
+ * the command and its payload, both the API token and the payload encrypted since the payload may hold
+ * credentials, and whether a failure marks the build unstable;
+ * a done record only the id of the command it completes. Once the records of completed commands outnumber
+ * the pending ones, the journal is compacted by rewriting the pending records only.
+ */
+public final class Outbox {
+
+    private static final Logger LOGGER = Logger.getLogger(Outbox.class.getName());
+
+    /** Whether step commands are journaled, to be sent again after a restart. */
+    static final boolean ENABLED =
+            Boolean.parseBoolean(System.getProperty(Outbox.class.getName() + ".enabled", "true"));
+
+    /** Number of records of completed commands after which the journal may be compacted. */
+    static final int COMPACT_THRESHOLD = Integer.getInteger(Outbox.class.getName() + ".compactThreshold", 1000);
+
+    private static final String FILE_NAME = "continuum-outbox.journal";
+
+    /** "CTMO", followed by the format version */
+    private static final int MAGIC = 0x43544d4f;
+    private static final int VERSION = 1;
+
+    private static final String UTF_8 = "UTF-8";
+
+    private static final byte RECORD_PENDING = 1;
+    private static final byte RECORD_DONE = 2;
+
+    private static Outbox instance;
+
+    /** Commands completed but not yet marked in the journal, guarded by itself. */
+    private static final List<Entry> completed = new ArrayList<Entry>();
+    /** Whether a task is scheduled to mark the completed commands, guarded by {@link #completed}. */
+    private static boolean completing;
+
+    private final Journal journal;
+    private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    private long nextId = 1;
+
+    private final Journal.Reader reader = new Journal.Reader() {
+        @Override
+        public void read(int type, DataInputStream in) throws IOException {
+            readRecord(type, in);
+        }
+    };
+
+    private final Journal.Writer writer = new Journal.Writer() {
+        @Override
+        public void write(DataOutputStream out) throws IOException {
+            for (Entry entry : pending.values()) {
+                out.writeByte(RECORD_PENDING);
+                writeEntry(out, entry);
+            }
+        }
+    };
+
+    Outbox(File file) {
+        this.journal = new Journal(file, MAGIC, VERSION);
+    }
+
+    /**
+     * Whether commands should be recorded before they are sent.
+     */
+    public static boolean isEnabled() {
+        return ENABLED && !ContinuumClient.isShutdown();
+    }
+
+    /**
+     * Whether Jenkins is shutting down. Commands failing from now on are left pending, to be sent again
+     * after the restart, and the steps sending them should not complete.
+     */
+    public static boolean isClosed() {
+        return ContinuumClient.isShutdown();
+    }
+
+    /**
+     * Records the commands of a step before they are sent.
+     *
+     * @return false if the commands could not be recorded, in which case they will not be sent again
+     */
+    public static boolean record(List<Entry> entries) {
+        Outbox outbox = get();
+        if (outbox == null) {
+            return false;
+        }
+        try {
+            outbox.append(entries);
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to record Continuum commands in " + outbox.journal.getFile(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Marks a command as handled, it will not be sent again.
+     */
+    public static void complete(Entry entry) {
+        complete(Collections.singletonList(entry));
+    }
+
+    /**
+     * Marks commands as handled. Commands that are already completed are ignored.
+     * <p>
+     * The commands are marked in the journal on the timer, together with the ones completed meanwhile,
+     * so that the I/O threads handling the responses never write to disk.
+     */
+    public static void complete(Iterable<Entry> entries) {
+        if (ContinuumClient.isShutdown()) {
+            // the commands stay pending, to be sent again after the restart
+            return;
+        }
+        boolean schedule;
+        synchronized (completed) {
+            for (Entry entry : entries) {
+                completed.add(entry);
+            }
+            schedule = !completing && !completed.isEmpty();
+            completing |= schedule;
+        }
+        if (schedule) {
+            Timer.get().execute(new Runnable() {
+                @Override
+                public void run() {
+                    Outbox outbox = get();
+                    if (outbox != null) {
+                        outbox.removeCompleted();
+                    }
+                    else {
+                        synchronized (completed) {
+                            completed.clear();
+                            completing = false;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the pending commands of a step execution, in the order they were recorded.
+     */
+    public static List<Entry> getPending(String executionId) {
+        Outbox outbox = get();
+        if (outbox == null) {
+            return Collections.emptyList();
+        }
+        return outbox.getEntries(executionId);
+    }
+
+    /**
+     * Closes the journal, leaving the pending commands in it. Called when Jenkins shuts down, the next
+     * instance opening it again.
+     */
+    static synchronized void close() {
+        if (instance != null) {
+            // the commands completed before the shutdown are not sent again
+            instance.removeCompleted();
+            instance.closeFile();
+            instance = null;
+        }
+    }
+
+    private static synchronized Outbox get() {
+        if (!ENABLED || ContinuumClient.isShutdown()) {
+            return null;
+        }
+        if (instance == null) {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null) {
+                return null;
+            }
+            Outbox outbox = new Outbox(new File(jenkins.getRootDir(), FILE_NAME));
+            try {
+                outbox.load();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to read the Continuum outbox, pending commands will not be sent "
+                        + "again", e);
+                outbox.pending.clear();
+            }
+            instance = outbox;
+        }
+        return instance;
+    }
+
+    synchronized void append(List<Entry> entries) throws IOException {
+        DataOutputStream o = this.journal.open();
+        for (Entry entry : entries) {
+            entry.id = this.nextId++;
+            o.writeByte(RECORD_PENDING);
+            writeEntry(o, entry);
+        }
+        o.flush();
+        for (Entry entry : entries) {
+            this.pending.put(entry.id, entry);
+        }
+    }
+
+    private synchronized void removeCompleted() {
+        List<Entry> entries;
+        synchronized (completed) {
+            entries = new ArrayList<Entry>(completed);
+            completed.clear();
+            completing = false;
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        try {
+            remove(entries);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to complete Continuum commands in " + this.journal.getFile(), e);
+        }
+    }
+
+    synchronized void remove(Iterable<Entry> entries) throws IOException {
+        DataOutputStream o = null;
+        for (Entry entry : entries) {
+            if (this.pending.remove(entry.id) != null) {
+                if (o == null) {
+                    o = this.journal.open();
+                }
+                o.writeByte(RECORD_DONE);
+                o.writeLong(entry.id);
+                // both the pending and the done records are now garbage
+                this.journal.addGarbage(2);
+            }
+        }
+        if (o != null) {
+            o.flush();
+            this.journal.compactIfNeeded(COMPACT_THRESHOLD, this.pending.size(), this.writer);
+        }
+    }
+
+    synchronized List<Entry> getEntries(String executionId) {
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : this.pending.values()) {
+            if (entry.executionId.equals(executionId)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    synchronized void closeFile() {
+        this.journal.close();
+    }
+
+    /**
+     * Reads the pending commands, then compacts the journal, which also drops a record truncated by a crash.
+     * A command that cannot be decrypted is dropped, the others are kept.
+     */
+    synchronized void load() throws IOException {
+        this.journal.load(this.reader, this.writer);
+    }
+
+    private void readRecord(int type, DataInputStream in) throws IOException {
+        if (type == RECORD_PENDING) {
+            Entry entry = readEntry(in);
+            if (entry == null) {
+                LOGGER.log(Level.WARNING, "Unable to decrypt a Continuum command in the outbox, e.g. as the secret "
+                        + "key of Jenkins changed, it will not be sent again");
+                return;
+            }
+            this.pending.put(entry.id, entry);
+            this.nextId = Math.max(this.nextId, entry.id + 1);
+        }
+        else if (type == RECORD_DONE) {
+            this.pending.remove(in.readLong());
+        }
+        else {
+            throw new IOException("Unknown record type " + type + " in the Continuum outbox journal");
+        }
+    }
+
+    private static void writeEntry(DataOutputStream o, Entry entry) throws IOException {
+        o.writeLong(entry.id);
+        o.writeUTF(entry.executionId);
+        o.writeUTF(entry.serverUrl);
+        o.writeUTF(entry.command);
+        o.writeUTF(entry.apiToken == null ? "" : Secret.fromString(entry.apiToken).getEncryptedValue());
+        o.writeUTF(entry.group == null ? "" : entry.group);
+        o.writeBoolean(entry.markUnstable);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(entry.payload.getLength());
+        entry.payload.writeTo(payload);
+        byte[] encryptedPayload = Secret.fromString(payload.toString(UTF_8)).getEncryptedValue().getBytes(UTF_8);
+        // the payload may exceed the 64KB that writeUTF supports
+        o.writeInt(encryptedPayload.length);
+        o.write(encryptedPayload);
+    }
+
+    /**
+     * @return the entry, or {@code null} if its token or payload cannot be decrypted
+     */
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        String executionId = in.readUTF();
+        String serverUrl = in.readUTF();
+        String command = in.readUTF();
+        String encryptedToken = in.readUTF();
+        String group = in.readUTF();
+        boolean markUnstable = in.readBoolean();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        Secret decrypted = Secret.decrypt(new String(payload, UTF_8));
+        Secret token = encryptedToken.length() == 0 ? null : Secret.decrypt(encryptedToken);
+        if (decrypted == null || token == null && encryptedToken.length() > 0) {
+            return null;
+        }
+        payload = decrypted.getPlainText().getBytes(UTF_8);
+        Entry entry = new Entry(executionId, serverUrl, command, token == null ? null : token.getPlainText(),
+                group.length() == 0 ? null : group, new CommandPayload(payload, payload.length), markUnstable);
+        entry.id = id;
+        return entry;
+    }
+
+    /**
+     * A command of a step, as sent to Continuum.
+     */
+    public static final class Entry {
+        private final String executionId;
+        private final String serverUrl;
+        private final String command;
+        private final String apiToken;
+        private final String group;
+        private final CommandPayload payload;
+        private final boolean markUnstable;
+        private long id;
+
+        public Entry(String executionId, String serverUrl, String command, String apiToken, String group,
+                CommandPayload payload, boolean markUnstable) {
+            this.executionId = executionId;
+            this.serverUrl = serverUrl;
+            this.command = command;
+            this.apiToken = apiToken;
+            this.group = group;
+            this.payload = payload;
+            this.markUnstable = markUnstable;
+        }
+
+        public String getExecutionId() {
+            return this.executionId;
+        }
+
+        public String getServerUrl() {
+            return this.serverUrl;
+        }
+
+        public String getCommand() {
+            return this.command;
+        }
+
+        public String getApiToken() {
+            return this.apiToken;
+        }
+
+        /** The group of the command, e.g. the pipeline it writes to. */
+        public String getGroup() {
+            return this.group;
+        }
+
+        public CommandPayload getPayload() {
+            return this.payload;
+        }
+
+        /** Whether a failure to send the command marks the build unstable, as the markUnstable step parameter. */
+        public boolean isMarkUnstable() {
+            return this.markUnstable;
+        }
+    }
+}
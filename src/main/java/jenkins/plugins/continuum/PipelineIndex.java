@@ -0,0 +1,537 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Controller-wide index of the builds that initiated the Continuum pipelines, to find the build
+ * of a pipeline id without looking into every build.
+ * <p>
+ * The index is held in hash maps, loaded from an append-only journal under JENKINS_HOME: a record per
+ * pipeline id registered, and a record per build or job deleted or job renamed. Once the records that no
+ * longer matter outnumber the pipeline ids, the journal is compacted by rewriting the pipeline ids only.
+ * Only the pipelines initiated since the index exists are in it.
+ */
+public final class PipelineIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(PipelineIndex.class.getName());
+
+    /** Whether the pipeline ids are indexed. */
+    static final boolean ENABLED =
+            Boolean.parseBoolean(System.getProperty(PipelineIndex.class.getName() + ".enabled", "true"));
+
+    /** Number of journal records no longer needed after which the journal may be compacted. */
+    static final int COMPACT_THRESHOLD = Integer.getInteger(PipelineIndex.class.getName() + ".compactThreshold", 10000);
+
+    private static final String FILE_NAME = "continuum-pipelines.journal";
+
+    /** "CTMI", followed by the format version */
+    private static final int MAGIC = 0x43544d49;
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_PIPELINE = 1;
+    private static final byte RECORD_BUILD_DELETED = 2;
+    private static final byte RECORD_JOB_DELETED = 3;
+    private static final byte RECORD_JOB_RENAMED = 4;
+
+    private static PipelineIndex instance;
+
+    private final Journal journal;
+    /** The pipelines per id, chained when the same id is initiated on several servers. */
+    private final Map<String, Pipeline> pipelines = new HashMap<String, Pipeline>();
+    /** The jobs per full name, to remove the pipelines of their builds. */
+    private final Map<String, JobBuilds> jobs = new HashMap<String, JobBuilds>();
+    private int size;
+
+    private final Journal.Reader reader = new Journal.Reader() {
+        @Override
+        public void read(int type, DataInputStream in) throws IOException {
+            readRecord(type, in);
+        }
+    };
+
+    private final Journal.Writer writer = new Journal.Writer() {
+        @Override
+        public void write(DataOutputStream out) throws IOException {
+            for (JobBuilds job : jobs.values()) {
+                for (Build build : job.builds.values()) {
+                    for (Pipeline pipeline : build.pipelines) {
+                        out.writeByte(RECORD_PIPELINE);
+                        writePipeline(out, job.name, build.number, pipeline.serverUrl, pipeline.pipelineId);
+                    }
+                }
+            }
+        }
+    };
+
+    PipelineIndex(File file) {
+        this.journal = new Journal(file, MAGIC, VERSION);
+    }
+
+    /**
+     * Indexes a pipeline initiated by a build.
+     */
+    public static void add(Run<?, ?> run, String serverUrl, String pipelineId) {
+        PipelineIndex index = get();
+        if (index == null) {
+            return;
+        }
+        try {
+            index.put(run.getParent().getFullName(), run.getNumber(), serverUrl, pipelineId);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to index the Continuum pipeline " + pipelineId, e);
+        }
+    }
+
+    /**
+     * Gets the build that initiated a pipeline.
+     *
+     * @return the build, null if the pipeline is not indexed or its build no longer exists
+     */
+    public static Run<?, ?> getRun(String serverUrl, String pipelineId) {
+        Location location = getLocation(serverUrl, pipelineId);
+        if (location == null) {
+            return null;
+        }
+        Jenkins jenkins = Jenkins.getInstance();
+        Job<?, ?> job = jenkins == null ? null : jenkins.getItemByFullName(location.getJobName(), Job.class);
+        return job == null ? null : job.getBuildByNumber(location.getBuildNumber());
+    }
+
+    /**
+     * Gets the job and the number of the build that initiated a pipeline, without loading the build.
+     *
+     * @return the location of the build, null if the pipeline is not indexed
+     */
+    public static Location getLocation(String serverUrl, String pipelineId) {
+        PipelineIndex index = get();
+        return index == null ? null : index.find(serverUrl, pipelineId);
+    }
+
+    /**
+     * Gets the builds that initiated a pipeline id, on any server.
+     */
+    public static List<Location> getLocations(String pipelineId) {
+        PipelineIndex index = get();
+        return index == null ? Collections.<Location>emptyList() : index.findAll(pipelineId);
+    }
+
+    /**
+     * Closes the index file. Called when Jenkins shuts down, the next instance loading it again.
+     */
+    static synchronized void close() {
+        if (instance != null) {
+            instance.closeFile();
+            instance = null;
+        }
+    }
+
+    private static synchronized PipelineIndex get() {
+        if (!ENABLED || ContinuumClient.isShutdown()) {
+            return null;
+        }
+        if (instance == null) {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null) {
+                return null;
+            }
+            PipelineIndex index = new PipelineIndex(new File(jenkins.getRootDir(), FILE_NAME));
+            try {
+                index.load();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to read the Continuum pipeline index, it is started again", e);
+                index.clear();
+            }
+            instance = index;
+        }
+        return instance;
+    }
+
+    synchronized void put(String jobName, int buildNumber, String serverUrl, String pipelineId) throws IOException {
+        if (!index(jobName, buildNumber, serverUrl, pipelineId)) {
+            return;
+        }
+        DataOutputStream o = this.journal.open();
+        o.writeByte(RECORD_PIPELINE);
+        writePipeline(o, jobName, buildNumber, serverUrl, pipelineId);
+        o.flush();
+    }
+
+    synchronized Location find(String serverUrl, String pipelineId) {
+        for (Pipeline p = this.pipelines.get(pipelineId); p != null; p = p.next) {
+            if (p.serverUrl.equals(serverUrl)) {
+                return p.getLocation();
+            }
+        }
+        return null;
+    }
+
+    synchronized List<Location> findAll(String pipelineId) {
+        List<Location> result = new ArrayList<Location>(1);
+        for (Pipeline p = this.pipelines.get(pipelineId); p != null; p = p.next) {
+            result.add(p.getLocation());
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return this.size;
+    }
+
+    synchronized void removeBuild(String jobName, int buildNumber) throws IOException {
+        if (!unindexBuild(jobName, buildNumber)) {
+            return;
+        }
+        DataOutputStream o = this.journal.open();
+        o.writeByte(RECORD_BUILD_DELETED);
+        o.writeUTF(jobName);
+        o.writeInt(buildNumber);
+        o.flush();
+        this.journal.addGarbage(1);
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes the builds of a job, or of all the jobs of a folder.
+     */
+    synchronized void removeJob(String fullName) throws IOException {
+        if (!unindexJob(fullName)) {
+            return;
+        }
+        DataOutputStream o = this.journal.open();
+        o.writeByte(RECORD_JOB_DELETED);
+        o.writeUTF(fullName);
+        o.flush();
+        this.journal.addGarbage(1);
+        compactIfNeeded();
+    }
+
+    synchronized void renameJob(String oldFullName, String newFullName) throws IOException {
+        if (!rename(oldFullName, newFullName)) {
+            return;
+        }
+        DataOutputStream o = this.journal.open();
+        o.writeByte(RECORD_JOB_RENAMED);
+        o.writeUTF(oldFullName);
+        o.writeUTF(newFullName);
+        o.flush();
+        this.journal.addGarbage(1);
+        compactIfNeeded();
+    }
+
+    /**
+     * @return whether the pipeline was not indexed yet
+     */
+    private boolean index(String jobName, int buildNumber, String serverUrl, String pipelineId) {
+        Pipeline first = this.pipelines.get(pipelineId);
+        for (Pipeline p = first; p != null; p = p.next) {
+            if (p.serverUrl.equals(serverUrl)) {
+                return false;
+            }
+        }
+        JobBuilds job = this.jobs.get(jobName);
+        if (job == null) {
+            job = new JobBuilds(jobName);
+            this.jobs.put(jobName, job);
+        }
+        Build build = job.builds.get(buildNumber);
+        if (build == null) {
+            build = new Build(job, buildNumber);
+            job.builds.put(buildNumber, build);
+        }
+        Pipeline pipeline = new Pipeline(serverUrl, pipelineId, build, first);
+        build.pipelines.add(pipeline);
+        this.pipelines.put(pipelineId, pipeline);
+        this.size++;
+        return true;
+    }
+
+    private boolean unindexBuild(String jobName, int buildNumber) {
+        JobBuilds job = this.jobs.get(jobName);
+        Build build = job == null ? null : job.builds.remove(buildNumber);
+        if (build == null) {
+            return false;
+        }
+        if (job.builds.isEmpty()) {
+            this.jobs.remove(jobName);
+        }
+        unindex(build);
+        return true;
+    }
+
+    private boolean unindexJob(String fullName) {
+        boolean removed = false;
+        String folderPrefix = fullName + '/';
+        for (Iterator<Map.Entry<String, JobBuilds>> it = this.jobs.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, JobBuilds> e = it.next();
+            if (e.getKey().equals(fullName) || e.getKey().startsWith(folderPrefix)) {
+                for (Build build : e.getValue().builds.values()) {
+                    unindex(build);
+                }
+                it.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private void unindex(Build build) {
+        for (Pipeline pipeline : build.pipelines) {
+            Pipeline first = this.pipelines.get(pipeline.pipelineId);
+            if (first == pipeline) {
+                if (pipeline.next == null) {
+                    this.pipelines.remove(pipeline.pipelineId);
+                }
+                else {
+                    this.pipelines.put(pipeline.pipelineId, pipeline.next);
+                }
+            }
+            else {
+                for (Pipeline p = first; p != null; p = p.next) {
+                    if (p.next == pipeline) {
+                        p.next = pipeline.next;
+                        break;
+                    }
+                }
+            }
+            this.size--;
+            // the record of the pipeline is no longer needed
+            this.journal.addGarbage(1);
+        }
+    }
+
+    private boolean rename(String oldFullName, String newFullName) {
+        JobBuilds job = this.jobs.remove(oldFullName);
+        if (job == null) {
+            return false;
+        }
+        job.name = newFullName;
+        JobBuilds existing = this.jobs.put(newFullName, job);
+        if (existing != null) {
+            // builds of a deleted job of the same name, that were not removed
+            for (Build build : existing.builds.values()) {
+                if (job.builds.containsKey(build.number)) {
+                    unindex(build);
+                }
+                else {
+                    build.job = job;
+                    job.builds.put(build.number, build);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void clear() {
+        this.pipelines.clear();
+        this.jobs.clear();
+        this.size = 0;
+    }
+
+    synchronized void closeFile() {
+        this.journal.close();
+    }
+
+    /**
+     * Reads the journal, then compacts it, which also drops a record truncated by a crash.
+     */
+    synchronized void load() throws IOException {
+        this.journal.load(this.reader, this.writer);
+    }
+
+    private void readRecord(int type, DataInputStream in) throws IOException {
+        if (type == RECORD_PIPELINE) {
+            String jobName = in.readUTF();
+            int buildNumber = in.readInt();
+            String serverUrl = in.readUTF();
+            index(jobName, buildNumber, serverUrl, in.readUTF());
+        }
+        else if (type == RECORD_BUILD_DELETED) {
+            String jobName = in.readUTF();
+            unindexBuild(jobName, in.readInt());
+        }
+        else if (type == RECORD_JOB_DELETED) {
+            unindexJob(in.readUTF());
+        }
+        else if (type == RECORD_JOB_RENAMED) {
+            String oldFullName = in.readUTF();
+            rename(oldFullName, in.readUTF());
+        }
+        else {
+            throw new IOException("Unknown record type " + type + " in the Continuum pipeline index");
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        this.journal.compactIfNeeded(COMPACT_THRESHOLD, this.size, this.writer);
+    }
+
+    private static void writePipeline(DataOutputStream o, String jobName, int buildNumber, String serverUrl,
+            String pipelineId) throws IOException {
+        o.writeUTF(jobName);
+        o.writeInt(buildNumber);
+        o.writeUTF(serverUrl);
+        o.writeUTF(pipelineId);
+    }
+
+    /**
+     * Removes the pipelines of the deleted builds from the index.
+     */
+    @Extension
+    public static class BuildListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            PipelineIndex index = get();
+            if (index == null) {
+                return;
+            }
+            try {
+                index.removeBuild(run.getParent().getFullName(), run.getNumber());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to remove " + run + " from the Continuum pipeline index", e);
+            }
+        }
+    }
+
+    /**
+     * Follows the jobs that are renamed or moved, and removes the pipelines of the deleted jobs and folders.
+     */
+    @Extension
+    public static class JobListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            PipelineIndex index = get();
+            if (index == null) {
+                return;
+            }
+            try {
+                index.removeJob(item.getFullName());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to remove " + item.getFullName()
+                        + " from the Continuum pipeline index", e);
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            PipelineIndex index = get();
+            if (index == null) {
+                return;
+            }
+            try {
+                index.renameJob(oldFullName, newFullName);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to rename " + oldFullName + " in the Continuum pipeline index", e);
+            }
+        }
+    }
+
+    /**
+     * Where a pipeline was initiated: the server, and the job and number of the build.
+     */
+    public static final class Location {
+        private final String serverUrl;
+        private final String jobName;
+        private final int buildNumber;
+
+        Location(String serverUrl, String jobName, int buildNumber) {
+            this.serverUrl = serverUrl;
+            this.jobName = jobName;
+            this.buildNumber = buildNumber;
+        }
+
+        public String getServerUrl() {
+            return this.serverUrl;
+        }
+
+        /** The full name of the job. */
+        public String getJobName() {
+            return this.jobName;
+        }
+
+        public int getBuildNumber() {
+            return this.buildNumber;
+        }
+
+        @Override
+        public String toString() {
+            return this.jobName + " #" + this.buildNumber;
+        }
+    }
+
+    /**
+     * The indexed builds of a job, sharing its name.
+     */
+    private static final class JobBuilds {
+        private String name;
+        private final Map<Integer, Build> builds = new HashMap<Integer, Build>();
+
+        JobBuilds(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class Build {
+        private JobBuilds job;
+        private final int number;
+        private final List<Pipeline> pipelines = new ArrayList<Pipeline>(1);
+
+        Build(JobBuilds job, int number) {
+            this.job = job;
+            this.number = number;
+        }
+    }
+
+    private static final class Pipeline {
+        private final String serverUrl;
+        private final String pipelineId;
+        private final Build build;
+        /** The pipeline of the same id on another server. */
+        private Pipeline next;
+
+        Pipeline(String serverUrl, String pipelineId, Build build, Pipeline next) {
+            this.serverUrl = serverUrl;
+            this.pipelineId = pipelineId;
+            this.build = build;
+            this.next = next;
+        }
+
+        Location getLocation() {
+            return new Location(this.serverUrl, this.build.job.name, this.build.number);
+        }
+    }
+}
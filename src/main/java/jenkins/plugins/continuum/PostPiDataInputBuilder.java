@@ -16,10 +16,17 @@
 
 package jenkins.plugins.continuum;
 
+import static org.apache.commons.lang.StringUtils.isBlank;
+
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
 /**
  * Input builder for 'set_pi_data' and 'post_pi_data' commands
  */
@@ -34,4 +41,48 @@ public class PostPiDataInputBuilder extends CommandInputBuilder {
         return Collections.unmodifiableSet(result);
     }
 
+    /**
+     * Collects the workspace data to send in a single pass: the 'key'/'value' pair, if any,
+     * followed by the entries of 'data', a JSON object of key/value pairs.
+     * Values are parsed once, so that JSON documents are sent as objects rather than strings,
+     * whether given as the 'value' or as a string value of 'data'.
+     *
+     * @throws IllegalArgumentException if 'data' is not a JSON object or has a blank key
+     */
+    public static Map<String, Object> toDataEntries(String key, String value, String data) {
+        Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        if (!isBlank(key)) {
+            entries.put(key, parseValue(value));
+        }
+        if (!isBlank(data)) {
+            JSONObject dataObject;
+            try {
+                dataObject = JSONObject.fromObject(data);
+            }
+            catch (JSONException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            for (Object dataKey : dataObject.keySet()) {
+                String k = String.valueOf(dataKey);
+                if (isBlank(k)) {
+                    throw new IllegalArgumentException("Blank key in workspace data");
+                }
+                Object dataValue = dataObject.get(dataKey);
+                entries.put(k, dataValue instanceof String ? parseValue((String) dataValue) : dataValue);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Parses the value as a JSON object, falling back to the raw string.
+     */
+    public static Object parseValue(String value) {
+        try {
+            return JSONObject.fromObject(value);
+        }
+        catch (Exception e) {
+            return value;
+        }
+    }
 }
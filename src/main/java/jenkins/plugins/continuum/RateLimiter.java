@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adaptive rate limiter of the requests to a Continuum server: a token bucket whose rate follows the load
+ * of the server, so that hundreds of builds starting at once don't overload it.
+ * <p>
+ * Each request, and each retry, takes a token, waiting for one if the bucket is empty. The bucket holds
+ * one second of requests. The rate is halved (see {@link #DECREASE}) when the server answers 429 or 503,
+ * or when a response is much slower than usual (see {@link #LATENCY_FACTOR}), and grows back by
+ * {@link #INCREASE} requests per second each second without such a signal, up to {@link #MAX_RATE}.
+ * The rate is decreased at most once per second, the responses to the requests already sent
+ * carrying the same signal. A request that would wait longer than {@link #MAX_WAIT} fails at once instead,
+ * giving its token back.
+ */
+public final class RateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(RateLimiter.class.getName());
+
+    /** Whether the requests are rate limited. */
+    static final boolean ENABLED = Boolean.parseBoolean(
+            System.getProperty(RateLimiter.class.getName() + ".enabled", "true"));
+
+    /** Requests per second to a server, before and at most after any signal. */
+    static final double MAX_RATE = getDouble("maxRate", 100.0);
+
+    /** Minimum requests per second to a server. */
+    static final double MIN_RATE = getDouble("minRate", 1.0);
+
+    /** Requests per second added to the rate each second without an overload signal. */
+    static final double INCREASE = getDouble("increase", 2.0);
+
+    /** Factor of the rate on an overload signal. */
+    static final double DECREASE = getDouble("decrease", 0.5);
+
+    /** Response latency, relative to the average one, that signals an overload, 0 to ignore the latency. */
+    static final double LATENCY_FACTOR = getDouble("latencyFactor", 3.0);
+
+    /** Maximum milliseconds a request waits for a token, 0 to wait as long as needed. */
+    static final long MAX_WAIT = Long.getLong(RateLimiter.class.getName() + ".maxWait", RetryPolicy.MAX_RETRY_AFTER);
+
+    /** Responses faster than this never signal an overload. */
+    private static final long MIN_SLOW_LATENCY = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Responses averaged before the latency can signal an overload. */
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    /** Weight of a response in the average latency. */
+    private static final double LATENCY_WEIGHT = 0.05;
+
+    private static final long ADJUST_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ConcurrentMap<String, RateLimiter> rateLimiters = new ConcurrentHashMap<String, RateLimiter>();
+
+    private final String key;
+    private final double minRate;
+    private final double maxRate;
+    private final double increase;
+    private final double decrease;
+    private final double latencyFactor;
+    /** Maximum nanoseconds a request waits for a token, 0 for no maximum. */
+    private final long maxWait;
+
+    /** Requests per second. */
+    private double rate;
+    /** Tokens in the bucket, negative when requests wait for tokens to come. */
+    private double tokens;
+    private long refilledAt;
+    private long adjustedAt;
+    /** Average latency of the responses, in nanoseconds. */
+    private double latency;
+    private int latencySamples;
+
+    private long throttled;
+    private long waitedNanos;
+    private long decreases;
+
+    RateLimiter(String key, double minRate, double maxRate, double increase, double decrease, double latencyFactor,
+            long maxWait, long now) {
+        this.key = key;
+        this.minRate = Math.max(0.001, minRate);
+        this.maxRate = Math.max(this.minRate, maxRate);
+        this.increase = increase;
+        this.decrease = Math.min(1.0, Math.max(0.0, decrease));
+        this.latencyFactor = latencyFactor;
+        this.maxWait = Math.max(0L, maxWait);
+        this.rate = this.maxRate;
+        this.tokens = getCapacity();
+        this.refilledAt = now;
+        // a first overload signal is acted upon right away
+        this.adjustedAt = now - ADJUST_PERIOD;
+    }
+
+    /**
+     * Gets the rate limiter of the given server key, see {@link ContinuumClient#getServerKey}.
+     */
+    public static RateLimiter get(String key) {
+        RateLimiter rateLimiter = rateLimiters.get(key);
+        if (rateLimiter == null) {
+            RateLimiter newRateLimiter = new RateLimiter(key, MIN_RATE, MAX_RATE, INCREASE, DECREASE, LATENCY_FACTOR,
+                    TimeUnit.MILLISECONDS.toNanos(MAX_WAIT), System.nanoTime());
+            rateLimiter = rateLimiters.putIfAbsent(key, newRateLimiter);
+            if (rateLimiter == null) {
+                rateLimiter = newRateLimiter;
+            }
+        }
+        return rateLimiter;
+    }
+
+    /**
+     * Gets a snapshot of the rate limiters, sorted by server.
+     */
+    public static List<Stats> getStats() {
+        Map<String, RateLimiter> byKey = new TreeMap<String, RateLimiter>(rateLimiters);
+        List<Stats> result = new ArrayList<Stats>(byKey.size());
+        for (RateLimiter rateLimiter : byKey.values()) {
+            result.add(rateLimiter.getSnapshot());
+        }
+        return result;
+    }
+
+    public synchronized double getRate() {
+        return this.rate;
+    }
+
+    synchronized Stats getSnapshot() {
+        return new Stats(this.key, this.rate, this.throttled, this.waitedNanos, this.decreases);
+    }
+
+    /**
+     * Takes a token for a request.
+     *
+     * @return the nanoseconds to wait before sending the request, 0 if it can be sent right away
+     * @throws RateLimitedException if the request would wait longer than the maximum, the token is then
+     *             given back
+     */
+    long reserve() throws RateLimitedException {
+        return ENABLED ? reserve(System.nanoTime()) : 0L;
+    }
+
+    synchronized long reserve(long now) throws RateLimitedException {
+        refill(now);
+        this.tokens -= 1.0;
+        if (this.tokens >= 0.0) {
+            return 0L;
+        }
+        long wait = (long) (-this.tokens * TimeUnit.SECONDS.toNanos(1) / this.rate);
+        if (this.maxWait > 0 && wait > this.maxWait) {
+            this.tokens += 1.0;
+            throw new RateLimitedException("Too many requests waiting for Continuum server " + this.key + " at "
+                    + this.rate + " requests/s, the next one would wait " + TimeUnit.NANOSECONDS.toMillis(wait)
+                    + "ms");
+        }
+        this.throttled++;
+        this.waitedNanos += wait;
+        return wait;
+    }
+
+    /**
+     * Gives back the token of a request that was not sent, e.g. interrupted while it waited.
+     */
+    void release() {
+        if (ENABLED) {
+            release(System.nanoTime());
+        }
+    }
+
+    synchronized void release(long now) {
+        refill(now);
+        this.tokens = Math.min(getCapacity(), this.tokens + 1.0);
+    }
+
+    /**
+     * Reports the outcome of a request, to adjust the rate.
+     *
+     * @param latency the nanoseconds from the request to its response or failure
+     * @param failure the failure of the request, null if it succeeded
+     */
+    void onResponse(long latency, Exception failure) {
+        if (ENABLED) {
+            onResponse(System.nanoTime(), latency, failure);
+        }
+    }
+
+    synchronized void onResponse(long now, long latency, Exception failure) {
+        boolean overloaded;
+        if (failure instanceof ContinuumResponseException) {
+            int status = ((ContinuumResponseException) failure).getStatusCode();
+            overloaded = status == 429 || status == 503 || isSlow(latency);
+        }
+        else if (failure == null) {
+            overloaded = isSlow(latency);
+        }
+        else {
+            // no response, left to the circuit breaker
+            return;
+        }
+        if (now - this.adjustedAt < ADJUST_PERIOD) {
+            return;
+        }
+        refill(now);
+        if (overloaded) {
+            this.rate = Math.max(this.minRate, this.rate * this.decrease);
+            this.decreases++;
+            LOGGER.log(Level.FINE, "Continuum server {0} is overloaded, sending {1} requests/s",
+                    new Object[] { this.key, this.rate });
+        }
+        else {
+            double seconds = (double) (now - this.adjustedAt) / TimeUnit.SECONDS.toNanos(1);
+            this.rate = Math.min(this.maxRate, this.rate + this.increase * seconds);
+        }
+        // the requests already waiting keep their turn
+        this.tokens = Math.min(getCapacity(), this.tokens);
+        this.adjustedAt = now;
+    }
+
+    /**
+     * Whether a response is much slower than the average, which it is then added to.
+     */
+    private boolean isSlow(long latency) {
+        boolean slow = this.latencyFactor > 0 && this.latencySamples >= MIN_LATENCY_SAMPLES
+                && latency > MIN_SLOW_LATENCY && latency > this.latency * this.latencyFactor;
+        if (this.latencySamples == 0) {
+            this.latency = latency;
+        }
+        else {
+            this.latency += (latency - this.latency) * LATENCY_WEIGHT;
+        }
+        if (this.latencySamples < MIN_LATENCY_SAMPLES) {
+            this.latencySamples++;
+        }
+        return slow;
+    }
+
+    private void refill(long now) {
+        if (now > this.refilledAt) {
+            this.tokens = Math.min(getCapacity(),
+                    this.tokens + this.rate * (now - this.refilledAt) / TimeUnit.SECONDS.toNanos(1));
+            this.refilledAt = now;
+        }
+    }
+
+    private double getCapacity() {
+        return Math.max(1.0, this.rate);
+    }
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = System.getProperty(RateLimiter.class.getName() + '.' + name);
+        if (value != null) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring " + RateLimiter.class.getName() + '.' + name + "=" + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Rate and throttling of the requests to a Continuum server.
+     */
+    public static final class Stats {
+        private final String key;
+        private final double rate;
+        private final long throttledCount;
+        private final long waitedNanos;
+        private final long decreaseCount;
+
+        Stats(String key, double rate, long throttledCount, long waitedNanos, long decreaseCount) {
+            this.key = key;
+            this.rate = rate;
+            this.throttledCount = throttledCount;
+            this.waitedNanos = waitedNanos;
+            this.decreaseCount = decreaseCount;
+        }
+
+        /** The server (scheme, host and port) the requests are sent to. */
+        public String getKey() {
+            return this.key;
+        }
+
+        /** Requests per second currently allowed. */
+        public double getRate() {
+            return this.rate;
+        }
+
+        /** Number of requests that waited for a token. */
+        public long getThrottledCount() {
+            return this.throttledCount;
+        }
+
+        /** Total nanoseconds the requests waited for a token. */
+        public long getWaitedNanos() {
+            return this.waitedNanos;
+        }
+
+        /** Number of times the rate was decreased. */
+        public long getDecreaseCount() {
+            return this.decreaseCount;
+        }
+    }
+}
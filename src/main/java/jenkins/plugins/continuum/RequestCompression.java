@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpStatus;
+
+/**
+ * Decides which request bodies are compressed, and learns which Continuum servers don't accept them.
+ * <p>
+ * Requests are only compressed to the servers listed in {@link #SERVERS}, since a server that doesn't decode
+ * Content-Encoding may fail them with any error. To those servers, payloads of at least {@link #THRESHOLD} bytes
+ * are sent with the configured Content-Encoding. A server answering a compressed request with 415 (Unsupported
+ * Media Type) or 400 (Bad Request) is marked as not supporting compression, the request is sent again right away
+ * uncompressed, and so are the following ones until Jenkins restarts.
+ */
+final class RequestCompression {
+
+    private static final Logger LOGGER = Logger.getLogger(RequestCompression.class.getName());
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    /** Content-Encoding of compressed requests: gzip, deflate, or none to disable compression. */
+    static final String ENCODING = getEncoding(System.getProperty(RequestCompression.class.getName() + ".encoding", GZIP));
+
+    /** Minimum number of payload bytes for a request to be compressed. */
+    static final int THRESHOLD = Integer.getInteger(RequestCompression.class.getName() + ".threshold", 16384);
+
+    /** Comma-separated URLs of the servers accepting compressed requests, * for all of them. None by default. */
+    static final String SERVERS = System.getProperty(RequestCompression.class.getName() + ".servers", "");
+
+    private static final String ALL_SERVERS = "*";
+
+    /** Keys of the servers requests are compressed to, see {@link ContinuumClient#getServerKey}. */
+    private static final Set<String> enabledServers = getServers(SERVERS);
+
+    /** Keys of the servers that rejected a compressed request, see {@link ContinuumClient#getServerKey}. */
+    private static final Set<String> unsupportedServers =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private RequestCompression() {
+    }
+
+    /**
+     * Compresses the requests to a server, as if it was listed in {@link #SERVERS}.
+     */
+    static void enable(String serverUrl) {
+        enabledServers.add(ContinuumClient.getServerKey(serverUrl));
+    }
+
+    /**
+     * Gets the payload to send to the server: compressed if it is large enough, the server accepts
+     * compressed requests and compressing actually makes it smaller, otherwise the payload itself.
+     */
+    static CommandPayload getRequestPayload(String serverUrl, CommandPayload payload) {
+        if (ENCODING == null || payload.getLength() < THRESHOLD || payload.getContentEncoding() != null
+                || enabledServers.isEmpty()) {
+            return payload;
+        }
+        String key = ContinuumClient.getServerKey(serverUrl);
+        if (!(enabledServers.contains(key) || enabledServers.contains(ALL_SERVERS))
+                || unsupportedServers.contains(key)) {
+            return payload;
+        }
+        try {
+            CommandPayload compressed = payload.compress(ENCODING);
+            return compressed.getLength() < payload.getLength() ? compressed : payload;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to compress a Continuum request, sending it uncompressed", e);
+            return payload;
+        }
+    }
+
+    /**
+     * Checks whether a request failed because it was compressed, in which case the server is marked
+     * as not supporting compressed requests.
+     *
+     * @param requestPayload the payload that was sent, as returned by {@link #getRequestPayload}
+     * @return true if the request should be sent again uncompressed
+     */
+    static boolean isRejected(String serverUrl, CommandPayload requestPayload, Exception e) {
+        if (requestPayload.getContentEncoding() == null || !(e instanceof ContinuumResponseException)) {
+            return false;
+        }
+        int status = ((ContinuumResponseException) e).getStatusCode();
+        if (status != HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE && status != HttpStatus.SC_BAD_REQUEST) {
+            return false;
+        }
+        String key = ContinuumClient.getServerKey(serverUrl);
+        if (unsupportedServers.add(key)) {
+            LOGGER.info("Continuum server " + key + " does not accept compressed requests, sending them uncompressed");
+        }
+        return true;
+    }
+
+    private static Set<String> getServers(String servers) {
+        Set<String> keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        for (String server : servers.split(",")) {
+            server = server.trim();
+            if (ALL_SERVERS.equals(server)) {
+                keys.add(ALL_SERVERS);
+            }
+            else if (server.length() > 0) {
+                try {
+                    keys.add(ContinuumClient.getServerKey(server));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warning("Ignoring the Continuum server " + server + ", it is not a URL");
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static String getEncoding(String encoding) {
+        if (GZIP.equalsIgnoreCase(encoding)) {
+            return GZIP;
+        }
+        if (DEFLATE.equalsIgnoreCase(encoding)) {
+            return DEFLATE;
+        }
+        if (!"none".equalsIgnoreCase(encoding)) {
+            LOGGER.warning("Unknown Continuum request encoding " + encoding + ", requests are not compressed");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * Reads what a caller needs from the body of a successful Continuum response.
+ * See {@link ResponseReaders} for the common ones.
+ *
+ * @param <T> the type of the result
+ */
+public interface ResponseReader<T> {
+
+    /**
+     * Reads the response body. The reader may stop before the end of the content,
+     * the client takes care of the rest and of releasing the connection.
+     *
+     * @param entity the response body, never null
+     */
+    T read(HttpEntity entity) throws IOException;
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.util.EntityUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Readers of Continuum responses. Except for {@link #BODY}, they pull what they need straight from
+ * the response stream, without materializing the body or its JSON tree, and stop reading once they have it.
+ */
+public final class ResponseReaders {
+
+    /** Top-level fields of a Continuum error response. */
+    public static final String FIELD_ERROR_CODE = "ErrorCode";
+    public static final String FIELD_ERROR_MESSAGE = "ErrorMessage";
+    public static final String FIELD_ERROR_DETAIL = "ErrorDetail";
+
+    private static final String FIELD_RESPONSE = "Response";
+    private static final String FIELD_ID = "_id";
+    private static final String FIELD_STATUS = "status";
+
+    private static final Set<String> ERROR_FIELDS = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList(FIELD_ERROR_CODE, FIELD_ERROR_MESSAGE, FIELD_ERROR_DETAIL)));
+
+    /** Thread-safe, the client drains and closes the streams itself. */
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    /** Reads the whole body as a string. */
+    public static final ResponseReader<String> BODY = new ResponseReader<String>() {
+        @Override
+        public String read(HttpEntity entity) throws IOException {
+            return EntityUtils.toString(entity);
+        }
+    };
+
+    /** Reads the id of the pipeline instance from an initiate_pipeline response, null if there is none. */
+    public static final ResponseReader<String> PIPELINE_ID = new ResponseReader<String>() {
+        @Override
+        public String read(HttpEntity entity) throws IOException {
+            JsonParser parser = JSON_FACTORY.createParser(entity.getContent());
+            try {
+                return readResponseField(parser, FIELD_ID);
+            } finally {
+                parser.close();
+            }
+        }
+    };
+
+    /** Reads the status of the pipeline instance from a get_pipelineinstance response, null if there is none. */
+    public static final ResponseReader<String> PIPELINE_STATUS = new ResponseReader<String>() {
+        @Override
+        public String read(HttpEntity entity) throws IOException {
+            JsonParser parser = JSON_FACTORY.createParser(entity.getContent());
+            try {
+                return readResponseField(parser, FIELD_STATUS);
+            } finally {
+                parser.close();
+            }
+        }
+    };
+
+    /**
+     * Reads the error fields ({@link #FIELD_ERROR_CODE}, {@link #FIELD_ERROR_MESSAGE}, {@link #FIELD_ERROR_DETAIL})
+     * of an error response. A body that is not JSON has no fields.
+     */
+    static final ResponseReader<Map<String, String>> ERROR = new ResponseReader<Map<String, String>>() {
+        @Override
+        public Map<String, String> read(HttpEntity entity) throws IOException {
+            Map<String, String> fields = new HashMap<String, String>(4);
+            JsonParser parser = JSON_FACTORY.createParser(entity.getContent());
+            try {
+                readErrorFields(parser, fields);
+            } catch (JsonProcessingException e) {
+                // not a Continuum error, keep what was read
+            } finally {
+                parser.close();
+            }
+            return fields;
+        }
+    };
+
+    private ResponseReaders() {
+    }
+
+    /**
+     * Wraps a reader to measure the size of the responses it reads: their Content-Length if they have one,
+     * otherwise the (decompressed) bytes read.
+     *
+     * @param bytes set to the size of each response read
+     */
+    public static <T> ResponseReader<T> counting(final ResponseReader<T> reader, final AtomicLong bytes) {
+        return new ResponseReader<T>() {
+            @Override
+            public T read(HttpEntity entity) throws IOException {
+                long length = entity.getContentLength();
+                if (length >= 0) {
+                    bytes.set(length);
+                    return reader.read(entity);
+                }
+                CountingEntity counting = new CountingEntity(entity);
+                try {
+                    return reader.read(counting);
+                } finally {
+                    bytes.set(counting.count.get());
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads a scalar field of the {@code Response} object.
+     */
+    private static String readResponseField(JsonParser parser, String responseField) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (FIELD_RESPONSE.equals(name) && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (responseField.equals(field) && value.isScalarValue()) {
+                        return value == JsonToken.VALUE_NULL ? null : parser.getText();
+                    }
+                    parser.skipChildren();
+                }
+                return null;
+            }
+            parser.skipChildren();
+        }
+        return null;
+    }
+
+    private static void readErrorFields(JsonParser parser, Map<String, String> fields) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return;
+        }
+        while (fields.size() < ERROR_FIELDS.size() && parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (ERROR_FIELDS.contains(name) && value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+                String text = parser.getText();
+                if (text.length() > 0) {
+                    fields.put(name, text);
+                }
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from the content of the entity.
+     */
+    private static final class CountingEntity extends HttpEntityWrapper {
+        private final AtomicLong count = new AtomicLong();
+        private InputStream content;
+
+        CountingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (this.content == null) {
+                this.content = new FilterInputStream(super.getContent()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            count.incrementAndGet();
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int n = super.read(buffer, offset, length);
+                        if (n > 0) {
+                            count.addAndGet(n);
+                        }
+                        return n;
+                    }
+                };
+            }
+            return this.content;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+/**
+ * When and how long to wait before retrying a failed Continuum call.
+ * <p>
+ * Any command is retried when the server did not process it: it could not be reached,
+ * or it answered 429 (Too Many Requests) or 503 (Service Unavailable). Idempotent commands are also retried
+ * when the outcome is unknown, e.g. after a read timeout. The delay grows exponentially, with full jitter
+ * so that the builds failing together don't retry together, unless the server sent a Retry-After header.
+ */
+public final class RetryPolicy {
+
+    /** Maximum number of retries of a call. */
+    static final int MAX_RETRIES = Integer.getInteger(RetryPolicy.class.getName() + ".maxRetries", 3);
+
+    /** Milliseconds before the first retry, doubled for each following one. */
+    static final long INITIAL_DELAY = Long.getLong(RetryPolicy.class.getName() + ".initialDelay", 500L);
+
+    /** Maximum milliseconds between two retries. */
+    static final long MAX_DELAY = Long.getLong(RetryPolicy.class.getName() + ".maxDelay", 10000L);
+
+    /** Maximum milliseconds to honour from a Retry-After header. */
+    static final long MAX_RETRY_AFTER = Long.getLong(RetryPolicy.class.getName() + ".maxRetryAfter", 60000L);
+
+    /** The policy configured with system properties. */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(MAX_RETRIES, INITIAL_DELAY, MAX_DELAY, MAX_RETRY_AFTER);
+
+    /** Never retries. */
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0L, 0L, 0L);
+
+    /** Commands that have the same effect when processed twice. */
+    private static final Set<String> IDEMPOTENT_COMMANDS =
+            Collections.unmodifiableSet(new HashSet<String>(Collections.singleton(ContinuumConstants.COMMAND_NAME__SET_PI_DATA)));
+
+    private static final Random random = new Random();
+
+    private final int maxRetries;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final long maxRetryAfter;
+
+    public RetryPolicy(int maxRetries, long initialDelay, long maxDelay, long maxRetryAfter) {
+        this.maxRetries = maxRetries;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.maxRetryAfter = maxRetryAfter;
+    }
+
+    public int getMaxRetries() {
+        return this.maxRetries;
+    }
+
+    /**
+     * Whether a failed call should be retried.
+     *
+     * @param retries the number of retries already made
+     */
+    public boolean isRetryable(String command, Exception e, int retries) {
+        if (retries >= this.maxRetries) {
+            return false;
+        }
+        return isNotProcessed(e) || (IDEMPOTENT_COMMANDS.contains(command) && isOutcomeUnknown(e));
+    }
+
+    /**
+     * Gets the milliseconds to wait before the next retry.
+     *
+     * @param retries the number of retries already made
+     */
+    public long getDelay(int retries, Exception e) {
+        if (e instanceof ContinuumResponseException) {
+            long retryAfter = ((ContinuumResponseException) e).getRetryAfter();
+            if (retryAfter >= 0) {
+                return Math.min(retryAfter, this.maxRetryAfter);
+            }
+        }
+        long delay = this.initialDelay << Math.min(retries, 30);
+        if (delay <= 0 || delay > this.maxDelay) {
+            delay = this.maxDelay;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * delay);
+        }
+    }
+
+    private static boolean isNotProcessed(Exception e) {
+        if (e instanceof ContinuumResponseException) {
+            int status = ((ContinuumResponseException) e).getStatusCode();
+            return status == 429 || status == 503;
+        }
+        // ConnectException also covers HttpHostConnectException, i.e. connection refused
+        return e instanceof ConnectException || e instanceof ConnectTimeoutException
+                || e instanceof ConnectionPoolTimeoutException || e instanceof UnknownHostException
+                || e instanceof NoRouteToHostException;
+    }
+
+    private static boolean isOutcomeUnknown(Exception e) {
+        if (e instanceof ContinuumResponseException) {
+            int status = ((ContinuumResponseException) e).getStatusCode();
+            return status == 502 || status == 504;
+        }
+        return e instanceof SocketTimeoutException || e instanceof NoHttpResponseException
+                || e instanceof SocketException;
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+
+import jenkins.util.Timer;
+
+/**
+ * Controller-wide queue of the writes (e.g. pipeline data) to a Continuum server, shared by all running steps.
+ * Pending writes are flushed in batches, when there are enough of them or when the flush interval has elapsed.
+ * The groups (e.g. pipelines) of a batch are sent concurrently and independently, the writes of a group
+ * one after the other, in the order they were queued. The writes queued to a group while it is being sent
+ * wait for it, and are flushed once it is done; the other groups don't wait for it. At most
+ * {@link #FLUSH_SIZE} groups per server are sent at a time.
+ * <p>
+ * A pending write is replaced by a later one with the same coalesce key, unless the group has another kind
+ * of write queued in between. The waiters of both writes then complete with the response to the later one.
+ */
+final class WriteQueue {
+
+    /** Whether pipeline data writes go through the queue. */
+    static final boolean ENABLED = Boolean.getBoolean(WriteQueue.class.getName() + ".enabled");
+
+    /** Number of pending writes that triggers a flush without waiting for the interval. */
+    static final int FLUSH_SIZE = Integer.getInteger(WriteQueue.class.getName() + ".flushSize", 50);
+
+    /** Milliseconds a pending write waits for others to join its batch. */
+    static final long FLUSH_INTERVAL = Long.getLong(WriteQueue.class.getName() + ".flushInterval", 20L);
+
+    private static final ConcurrentMap<String, WriteQueue> queues = new ConcurrentHashMap<String, WriteQueue>();
+
+    /** Pending writes by group, in the order the groups were first written to. */
+    private final Map<String, List<Write>> pending = new LinkedHashMap<String, List<Write>>();
+    private int pendingCount;
+    /** The groups being sent. */
+    private final Set<String> sendingGroups = new HashSet<String>();
+    /** Whether a thread is flushing, and whether it must flush again once done. */
+    private boolean flushing;
+    private boolean flushAgain;
+    private Future<?> scheduledFlush;
+
+    private WriteQueue() {
+    }
+
+    /**
+     * Queues a write to the given Continuum server.
+     *
+     * @param group the writes of the same group are sent in order
+     * @param coalesceKey identifies the value set by the write, null if the write cannot be replaced
+     * @return the future of the response body, completed when this write (or one replacing it) is acknowledged
+     */
+    static Future<String> add(String serverUrl, String apiToken, String command, CommandPayload payload, String group,
+            String coalesceKey, FutureCallback<String> callback) {
+        if (ContinuumClient.isShutdown()) {
+            throw new RejectedExecutionException("Continuum client has been shut down");
+        }
+        String key = ContinuumClient.getServerKey(serverUrl);
+        WriteQueue queue = queues.get(key);
+        if (queue == null) {
+            WriteQueue newQueue = new WriteQueue();
+            queue = queues.putIfAbsent(key, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue.enqueue(new Write(serverUrl, apiToken, command, payload, coalesceKey), group, callback);
+    }
+
+    /**
+     * Fails the pending writes. Called when Jenkins shuts down.
+     */
+    static void shutdown() {
+        for (String key : queues.keySet()) {
+            WriteQueue queue = queues.remove(key);
+            if (queue != null) {
+                queue.failPending();
+            }
+        }
+    }
+
+    private Future<String> enqueue(Write write, String group, FutureCallback<String> callback) {
+        BasicFuture<String> future = new BasicFuture<String>(callback);
+        boolean flushNow;
+        synchronized (this) {
+            List<Write> writes = this.pending.get(group);
+            if (writes == null) {
+                writes = new ArrayList<Write>();
+                this.pending.put(group, writes);
+            }
+            Write replaced = findReplaced(writes, write);
+            if (replaced != null) {
+                replaced.replaceWith(write);
+                replaced.waiters.add(future);
+            }
+            else {
+                write.waiters.add(future);
+                writes.add(write);
+                this.pendingCount++;
+            }
+            flushNow = isFlushDue();
+        }
+        if (flushNow) {
+            flush();
+        }
+        return future;
+    }
+
+    /**
+     * Finds the pending write of the group that the new one replaces. Only writes that can be replaced,
+     * of other values, may have been queued after it, so that sending the new one earlier changes nothing.
+     */
+    private static Write findReplaced(List<Write> writes, Write write) {
+        if (write.coalesceKey == null) {
+            return null;
+        }
+        for (int i = writes.size() - 1; i >= 0; i--) {
+            Write w = writes.get(i);
+            if (w.coalesceKey == null) {
+                return null;
+            }
+            if (w.isReplacedBy(write)) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Schedules a flush if needed. Must be called while holding the lock.
+     *
+     * @return true if the caller must flush now
+     */
+    private boolean isFlushDue() {
+        if (this.pendingCount == 0) {
+            return false;
+        }
+        if (this.pendingCount >= FLUSH_SIZE || FLUSH_INTERVAL <= 0) {
+            if (this.scheduledFlush != null) {
+                this.scheduledFlush.cancel(false);
+                this.scheduledFlush = null;
+            }
+            return true;
+        }
+        if (this.scheduledFlush == null) {
+            this.scheduledFlush = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled();
+                }
+            }, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+
+    private void flushScheduled() {
+        synchronized (this) {
+            this.scheduledFlush = null;
+            if (this.pendingCount == 0) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Sends the next batch. A flush requested while a thread is flushing, e.g. by a group whose writes all
+     * failed right away, is done by that thread once its batch is sent, in a loop rather than recursively.
+     */
+    private void flush() {
+        synchronized (this) {
+            if (this.flushing) {
+                this.flushAgain = true;
+                return;
+            }
+            this.flushing = true;
+            this.flushAgain = true;
+        }
+        while (true) {
+            List<GroupSender> senders;
+            synchronized (this) {
+                if (!this.flushAgain) {
+                    this.flushing = false;
+                    return;
+                }
+                this.flushAgain = false;
+                senders = nextBatch();
+            }
+            for (GroupSender sender : senders) {
+                sender.sendNext();
+            }
+        }
+    }
+
+    /**
+     * Takes the next batch: whole groups, in order, until the flush size is reached. The groups being sent
+     * are skipped, their pending writes are sent after the ones in flight. Must be called while holding the lock.
+     */
+    private List<GroupSender> nextBatch() {
+        List<GroupSender> senders = new ArrayList<GroupSender>();
+        int count = 0;
+        Iterator<Map.Entry<String, List<Write>>> groups = this.pending.entrySet().iterator();
+        while (groups.hasNext() && count < FLUSH_SIZE && this.sendingGroups.size() < FLUSH_SIZE) {
+            Map.Entry<String, List<Write>> group = groups.next();
+            if (this.sendingGroups.add(group.getKey())) {
+                groups.remove();
+                count += group.getValue().size();
+                senders.add(new GroupSender(group.getKey(), group.getValue()));
+            }
+        }
+        this.pendingCount -= count;
+        return senders;
+    }
+
+    private void groupSent(String group) {
+        boolean flushNow;
+        synchronized (this) {
+            this.sendingGroups.remove(group);
+            flushNow = isFlushDue() || this.pending.containsKey(group);
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    private void failPending() {
+        List<Write> failed = new ArrayList<Write>();
+        synchronized (this) {
+            for (List<Write> writes : this.pending.values()) {
+                failed.addAll(writes);
+            }
+            this.pending.clear();
+            this.pendingCount = 0;
+            if (this.scheduledFlush != null) {
+                this.scheduledFlush.cancel(false);
+                this.scheduledFlush = null;
+            }
+        }
+        for (Write write : failed) {
+            write.failed(new RejectedExecutionException("Continuum client has been shut down"));
+        }
+    }
+
+    /**
+     * A queued write, and the steps waiting for it.
+     */
+    private static final class Write {
+        private final String serverUrl;
+        private final String apiToken;
+        private final String command;
+        private CommandPayload payload;
+        private final String coalesceKey;
+        private final List<BasicFuture<String>> waiters = new ArrayList<BasicFuture<String>>(1);
+
+        Write(String serverUrl, String apiToken, String command, CommandPayload payload, String coalesceKey) {
+            this.serverUrl = serverUrl;
+            this.apiToken = apiToken;
+            this.command = command;
+            this.payload = payload;
+            this.coalesceKey = coalesceKey;
+        }
+
+        boolean isReplacedBy(Write write) {
+            return this.coalesceKey.equals(write.coalesceKey) && this.command.equals(write.command)
+                    && this.serverUrl.equals(write.serverUrl)
+                    && (this.apiToken == null ? write.apiToken == null : this.apiToken.equals(write.apiToken));
+        }
+
+        void replaceWith(Write write) {
+            this.payload = write.payload;
+        }
+
+        boolean isAbandoned() {
+            for (BasicFuture<String> waiter : this.waiters) {
+                if (!waiter.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void completed(String response) {
+            for (BasicFuture<String> waiter : this.waiters) {
+                waiter.completed(response);
+            }
+        }
+
+        void failed(Exception e) {
+            for (BasicFuture<String> waiter : this.waiters) {
+                waiter.failed(e);
+            }
+        }
+    }
+
+    /**
+     * Sends the writes of a group one after the other. A failure only fails the steps waiting for that write.
+     */
+    private final class GroupSender implements FutureCallback<String> {
+        private final String group;
+        private final Iterator<Write> writes;
+        private volatile Write current;
+        /** Whether a thread is in {@link #sendNext}, and whether it must send the next write once done. */
+        private boolean sending;
+        private boolean sendAgain;
+
+        GroupSender(String group, List<Write> writes) {
+            this.group = group;
+            this.writes = writes.iterator();
+        }
+
+        /**
+         * Sends the next write. A write completing before it is even sent (e.g. the circuit breaker is open)
+         * has its next write sent by the loop of the thread sending it, not recursively.
+         */
+        void sendNext() {
+            synchronized (this) {
+                if (this.sending) {
+                    this.sendAgain = true;
+                    return;
+                }
+                this.sending = true;
+            }
+            while (send()) {
+                synchronized (this) {
+                    if (!this.sendAgain) {
+                        this.sending = false;
+                        return;
+                    }
+                    this.sendAgain = false;
+                }
+            }
+        }
+
+        /**
+         * @return false if the group is done
+         */
+        private boolean send() {
+            while (this.writes.hasNext()) {
+                Write write = this.writes.next();
+                if (write.isAbandoned()) {
+                    // all its steps were stopped while it was pending
+                    continue;
+                }
+                this.current = write;
+                try {
+                    ContinuumClient.postAsync(write.serverUrl, write.apiToken, write.command, write.payload,
+                            ResponseReaders.BODY, this);
+                    return true;
+                } catch (RuntimeException e) {
+                    write.failed(e);
+                }
+            }
+            groupSent(this.group);
+            return false;
+        }
+
+        @Override
+        public void completed(String response) {
+            this.current.completed(response);
+            sendNext();
+        }
+
+        @Override
+        public void failed(Exception e) {
+            this.current.failed(e);
+            sendNext();
+        }
+
+        @Override
+        public void cancelled() {
+            this.current.failed(new CancellationException("Continuum request cancelled"));
+            sendNext();
+        }
+    }
+}
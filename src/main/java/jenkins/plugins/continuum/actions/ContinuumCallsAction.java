@@ -0,0 +1,435 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.actions;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import jenkins.util.Timer;
+
+/**
+ * Timing of the Continuum calls made by the steps of a build, shown on a summary page of the build.
+ * <p>
+ * Only the totals per server and command, and the {@link #TOP_CALLS} slowest calls, are kept in the action
+ * and so in build.xml. Every call is also appended to {@value #DETAILS_FILE} in the build directory,
+ * served as tab-separated values at {@code details}. The calls are buffered and appended on the timer,
+ * since they are recorded by the I/O threads handling the responses.
+ */
+public class ContinuumCallsAction implements RunAction2 {
+
+    private static final Logger LOGGER = Logger.getLogger(ContinuumCallsAction.class.getName());
+
+    /** Number of slowest calls kept in the action. */
+    static final int TOP_CALLS = Integer.getInteger(ContinuumCallsAction.class.getName() + ".topCalls", 20);
+
+    /** File of all the calls, in the build directory. */
+    static final String DETAILS_FILE = "continuum-calls.tsv";
+
+    private static final String DETAILS_HEADER =
+            "time\tserver\tcommand\tpayload_bytes\tresponse_bytes\tqueue_ms\twire_ms\tstatus\n";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Serializes the creation of the actions, the runs being shared by the step threads. */
+    private static final Object CREATE_LOCK = new Object();
+
+    /** Replaced, never modified, so that the build can be saved while calls are recorded. */
+    private volatile List<Totals> totals = new ArrayList<Totals>();
+    private volatile List<Call> slowest = new ArrayList<Call>();
+
+    private transient Run<?, ?> run;
+
+    /** Details of the calls not yet appended to the file, guarded by this. */
+    private transient StringBuilder pendingDetails;
+    /** Serializes the writes to the file. */
+    private transient Object detailsLock;
+
+    /**
+     * Records a call in the action of the run, adding the action on the first call.
+     */
+    public static void record(Run<?, ?> run, Call call) {
+        ContinuumCallsAction action = run.getAction(ContinuumCallsAction.class);
+        if (action == null) {
+            synchronized (CREATE_LOCK) {
+                action = run.getAction(ContinuumCallsAction.class);
+                if (action == null) {
+                    action = new ContinuumCallsAction();
+                    run.addAction(action);
+                }
+            }
+        }
+        action.add(call);
+    }
+
+    /**
+     * Records a call: adds it to the totals and to the slowest calls, and appends it to {@value #DETAILS_FILE}.
+     */
+    public synchronized void add(Call call) {
+        List<Totals> newTotals = new ArrayList<Totals>(this.totals.size() + 1);
+        Totals commandTotals = null;
+        for (Totals t : this.totals) {
+            if (t.server.equals(call.server) && t.command.equals(call.command)) {
+                commandTotals = new Totals(t);
+                t = commandTotals;
+            }
+            newTotals.add(t);
+        }
+        if (commandTotals == null) {
+            commandTotals = new Totals(call.server, call.command);
+            newTotals.add(commandTotals);
+        }
+        commandTotals.add(call);
+        this.totals = newTotals;
+
+        List<Call> calls = this.slowest;
+        if (calls.size() < TOP_CALLS || call.getTotalMicros() > calls.get(calls.size() - 1).getTotalMicros()) {
+            List<Call> newSlowest = new ArrayList<Call>(calls.size() + 1);
+            int i = 0;
+            while (i < calls.size() && calls.get(i).getTotalMicros() >= call.getTotalMicros()) {
+                newSlowest.add(calls.get(i++));
+            }
+            newSlowest.add(call);
+            while (i < calls.size() && newSlowest.size() < TOP_CALLS) {
+                newSlowest.add(calls.get(i++));
+            }
+            this.slowest = newSlowest;
+        }
+
+        if (this.run != null) {
+            if (this.pendingDetails == null) {
+                this.pendingDetails = new StringBuilder();
+                Timer.get().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeDetails();
+                    }
+                });
+            }
+            this.pendingDetails.append(call.toDetails());
+        }
+    }
+
+    /**
+     * Appends the buffered calls to {@value #DETAILS_FILE}.
+     */
+    private void writeDetails() {
+        synchronized (getDetailsLock()) {
+            String details;
+            synchronized (this) {
+                if (this.pendingDetails == null) {
+                    return;
+                }
+                details = this.pendingDetails.toString();
+                this.pendingDetails = null;
+            }
+            File file = new File(this.run.getRootDir(), DETAILS_FILE);
+            try {
+                boolean created = !file.exists();
+                Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+                try {
+                    if (created) {
+                        writer.write(DETAILS_HEADER);
+                    }
+                    writer.write(details);
+                } finally {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to record Continuum calls in " + file, e);
+            }
+        }
+    }
+
+    private synchronized Object getDetailsLock() {
+        if (this.detailsLock == null) {
+            this.detailsLock = new Object();
+        }
+        return this.detailsLock;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public Run<?, ?> getRun() {
+        return this.run;
+    }
+
+    /** Totals per server and command, in the order of their first call. */
+    public List<Totals> getTotals() {
+        return Collections.unmodifiableList(this.totals);
+    }
+
+    /** Totals of all the calls. */
+    public Totals getTotal() {
+        Totals total = new Totals("", "");
+        for (Totals t : this.totals) {
+            total.add(t);
+        }
+        return total;
+    }
+
+    /** The slowest calls, slowest first. */
+    public List<Call> getSlowestCalls() {
+        return Collections.unmodifiableList(this.slowest);
+    }
+
+    /** Whether all the calls can be downloaded. */
+    public boolean isDetailsAvailable() {
+        Run<?, ?> r = this.run;
+        if (r == null) {
+            return false;
+        }
+        writeDetails();
+        return new File(r.getRootDir(), DETAILS_FILE).isFile();
+    }
+
+    /**
+     * Serves all the calls as tab-separated values.
+     */
+    public void doDetails(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Run<?, ?> r = this.run;
+        if (r != null) {
+            writeDetails();
+        }
+        File file = r == null ? null : new File(r.getRootDir(), DETAILS_FILE);
+        if (file == null || !file.isFile()) {
+            rsp.sendError(404);
+            return;
+        }
+        rsp.setContentType("text/tab-separated-values; charset=utf-8");
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = rsp.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Continuum Calls";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "continuum-calls";
+    }
+
+    /** Formats microseconds as milliseconds. */
+    static String formatMillis(long micros) {
+        return String.format(Locale.ROOT, "%.1f", micros / 1000.0);
+    }
+
+    /**
+     * A call to Continuum.
+     */
+    public static final class Call {
+        private final long time;
+        private final String server;
+        private final String command;
+        private final long payloadBytes;
+        private final long responseBytes;
+        private final long queueMicros;
+        private final long wireMicros;
+        private final String status;
+
+        /**
+         * @param time when the call was made, in milliseconds since the epoch
+         * @param responseBytes the size of the response, -1 if there was none
+         * @param queueMicros the time the call waited before being sent, e.g. for a thread
+         * @param wireMicros the time from sending the call to its response, including the retries
+         * @param status the status of the failure, null if the call succeeded
+         */
+        public Call(long time, String server, String command, long payloadBytes, long responseBytes,
+                long queueMicros, long wireMicros, String status) {
+            this.time = time;
+            this.server = server;
+            this.command = command;
+            this.payloadBytes = payloadBytes;
+            this.responseBytes = responseBytes;
+            this.queueMicros = queueMicros;
+            this.wireMicros = wireMicros;
+            this.status = status;
+        }
+
+        public long getTime() {
+            return this.time;
+        }
+
+        public String getServer() {
+            return this.server;
+        }
+
+        public String getCommand() {
+            return this.command;
+        }
+
+        public long getPayloadBytes() {
+            return this.payloadBytes;
+        }
+
+        public long getResponseBytes() {
+            return this.responseBytes;
+        }
+
+        public long getTotalMicros() {
+            return this.queueMicros + this.wireMicros;
+        }
+
+        public String getQueueMillis() {
+            return formatMillis(this.queueMicros);
+        }
+
+        public String getWireMillis() {
+            return formatMillis(this.wireMicros);
+        }
+
+        /** The status of the failure, null if the call succeeded. */
+        public String getStatus() {
+            return this.status;
+        }
+
+        String toDetails() {
+            return this.time + "\t" + this.server + '\t' + this.command + '\t' + this.payloadBytes + '\t'
+                    + this.responseBytes + '\t' + formatMillis(this.queueMicros) + '\t'
+                    + formatMillis(this.wireMicros) + '\t' + (this.status == null ? "ok" : this.status) + '\n';
+        }
+    }
+
+    /**
+     * Totals of the calls of a command to a server.
+     */
+    public static final class Totals {
+        private final String server;
+        private final String command;
+        private long calls;
+        private long failures;
+        private long payloadBytes;
+        private long responseBytes;
+        private long queueMicros;
+        private long wireMicros;
+        private long maxMicros;
+
+        Totals(String server, String command) {
+            this.server = server;
+            this.command = command;
+        }
+
+        Totals(Totals other) {
+            this(other.server, other.command);
+            add(other);
+        }
+
+        void add(Call call) {
+            this.calls++;
+            if (call.status != null) {
+                this.failures++;
+            }
+            this.payloadBytes += call.payloadBytes;
+            this.responseBytes += Math.max(0L, call.responseBytes);
+            this.queueMicros += call.queueMicros;
+            this.wireMicros += call.wireMicros;
+            this.maxMicros = Math.max(this.maxMicros, call.getTotalMicros());
+        }
+
+        void add(Totals other) {
+            this.calls += other.calls;
+            this.failures += other.failures;
+            this.payloadBytes += other.payloadBytes;
+            this.responseBytes += other.responseBytes;
+            this.queueMicros += other.queueMicros;
+            this.wireMicros += other.wireMicros;
+            this.maxMicros = Math.max(this.maxMicros, other.maxMicros);
+        }
+
+        public String getServer() {
+            return this.server;
+        }
+
+        public String getCommand() {
+            return this.command;
+        }
+
+        public long getCalls() {
+            return this.calls;
+        }
+
+        public long getFailures() {
+            return this.failures;
+        }
+
+        public long getPayloadBytes() {
+            return this.payloadBytes;
+        }
+
+        public long getResponseBytes() {
+            return this.responseBytes;
+        }
+
+        public String getQueueMillis() {
+            return formatMillis(this.queueMicros);
+        }
+
+        public String getWireMillis() {
+            return formatMillis(this.wireMicros);
+        }
+
+        public String getAverageMillis() {
+            return this.calls == 0 ? "-" : formatMillis((this.queueMicros + this.wireMicros) / this.calls);
+        }
+
+        public String getMaxMillis() {
+            return formatMillis(this.maxMicros);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.actions;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import jenkins.plugins.continuum.ContinuumMetrics;
+import jenkins.plugins.continuum.RateLimiter;
+import jenkins.plugins.continuum.steps.ServerExecutors;
+
+/**
+ * Exports the {@link ContinuumMetrics}, the load of the {@link ServerExecutors} and the rates of the
+ * {@link RateLimiter}s in the Prometheus text format, at {@code /continuum-metrics/}. Only administrators can read it.
+ * <p>
+ * Request durations are per attempt, step durations include the wait for a thread and all the attempts.
+ */
+@Extension
+public class ContinuumMetricsAction implements RootAction {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Override
+    public String getIconFileName() {
+        // not shown in the side panel
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "continuum-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType(CONTENT_TYPE);
+        rsp.setHeader("Cache-Control", "no-cache");
+        PrintWriter writer = rsp.getWriter();
+        write(writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes all the metrics.
+     */
+    static void write(PrintWriter writer) {
+        long[] buckets = ContinuumMetrics.getBuckets();
+        writeCalls(writer, "continuum_request", "HTTP requests to Continuum",
+                ContinuumMetrics.getRequests(), buckets);
+        writeCalls(writer, "continuum_step", "Continuum steps",
+                ContinuumMetrics.getSteps(), buckets);
+
+        List<ServerExecutors.Stats> executors = ServerExecutors.getStats();
+        header(writer, "continuum_executor_active_threads", "gauge", "Threads running a Continuum step");
+        for (ServerExecutors.Stats stats : executors) {
+            sample(writer, "continuum_executor_active_threads", executorLabels(stats), stats.getActiveThreads());
+        }
+        header(writer, "continuum_executor_pool_size", "gauge", "Threads of the executor, busy or idle");
+        for (ServerExecutors.Stats stats : executors) {
+            sample(writer, "continuum_executor_pool_size", executorLabels(stats), stats.getPoolSize());
+        }
+        header(writer, "continuum_executor_queue_depth", "gauge", "Continuum steps waiting for a thread");
+        for (ServerExecutors.Stats stats : executors) {
+            sample(writer, "continuum_executor_queue_depth", executorLabels(stats), stats.getQueueDepth());
+        }
+        header(writer, "continuum_executor_rejected_total", "counter",
+                "Continuum steps rejected because the executor queue was full");
+        for (ServerExecutors.Stats stats : executors) {
+            sample(writer, "continuum_executor_rejected_total", executorLabels(stats), stats.getRejectedCount());
+        }
+
+        List<RateLimiter.Stats> rateLimiters = RateLimiter.getStats();
+        header(writer, "continuum_rate_limit_requests_per_second", "gauge",
+                "Requests per second currently allowed to a Continuum server");
+        for (RateLimiter.Stats stats : rateLimiters) {
+            writer.print("continuum_rate_limit_requests_per_second{" + rateLimiterLabels(stats) + "} "
+                    + BigDecimal.valueOf(stats.getRate()).setScale(3, BigDecimal.ROUND_HALF_UP).stripTrailingZeros()
+                            .toPlainString() + '\n');
+        }
+        header(writer, "continuum_rate_limit_throttled_total", "counter",
+                "HTTP requests to Continuum that waited for the rate limiter");
+        for (RateLimiter.Stats stats : rateLimiters) {
+            sample(writer, "continuum_rate_limit_throttled_total", rateLimiterLabels(stats), stats.getThrottledCount());
+        }
+        header(writer, "continuum_rate_limit_wait_seconds_total", "counter",
+                "Time the HTTP requests to Continuum waited for the rate limiter");
+        for (RateLimiter.Stats stats : rateLimiters) {
+            writer.print("continuum_rate_limit_wait_seconds_total{" + rateLimiterLabels(stats) + "} "
+                    + seconds(stats.getWaitedNanos()) + '\n');
+        }
+        header(writer, "continuum_rate_limit_decreases_total", "counter",
+                "Rate decreases after a Continuum server answered 429 or 503, or slowed down");
+        for (RateLimiter.Stats stats : rateLimiters) {
+            sample(writer, "continuum_rate_limit_decreases_total", rateLimiterLabels(stats), stats.getDecreaseCount());
+        }
+    }
+
+    private static void writeCalls(PrintWriter writer, String prefix, String help, List<ContinuumMetrics.Call> calls,
+            long[] buckets) {
+        String duration = prefix + "_duration_seconds";
+        header(writer, duration, "histogram", "Duration of the " + help);
+        for (ContinuumMetrics.Call call : calls) {
+            String labels = callLabels(call);
+            long[] counts = call.getCumulativeCounts();
+            for (int i = 0; i < buckets.length; i++) {
+                sample(writer, duration + "_bucket", labels + ",le=\"" + seconds(buckets[i] * 1000000L) + '"',
+                        counts[i]);
+            }
+            sample(writer, duration + "_bucket", labels + ",le=\"+Inf\"", counts[buckets.length]);
+            writer.print(duration + "_sum{" + labels + "} " + seconds(call.getTotalNanos()) + '\n');
+            sample(writer, duration + "_count", labels, counts[buckets.length]);
+        }
+
+        String inFlight = prefix + "s_in_flight";
+        header(writer, inFlight, "gauge", help + " in progress");
+        for (ContinuumMetrics.Call call : calls) {
+            sample(writer, inFlight, callLabels(call), call.getInFlight());
+        }
+
+        String errors = prefix + "_errors_total";
+        header(writer, errors, "counter", "Failed " + help + " by HTTP status, io if there was no response");
+        for (ContinuumMetrics.Call call : calls) {
+            for (Map.Entry<String, Long> e : call.getErrors().entrySet()) {
+                sample(writer, errors, callLabels(call) + ",status=\"" + escape(e.getKey()) + '"', e.getValue());
+            }
+        }
+    }
+
+    private static String callLabels(ContinuumMetrics.Call call) {
+        return "server=\"" + escape(call.getServer()) + "\",command=\"" + escape(call.getCommand()) + '"';
+    }
+
+    private static String executorLabels(ServerExecutors.Stats stats) {
+        return "server=\"" + escape(stats.getKey()) + "\",fanOut=\"" + stats.isFanOut() + '"';
+    }
+
+    private static String rateLimiterLabels(RateLimiter.Stats stats) {
+        return "server=\"" + escape(stats.getKey()) + '"';
+    }
+
+    private static void header(PrintWriter writer, String name, String type, String help) {
+        writer.print("# HELP " + name + ' ' + help + '\n');
+        writer.print("# TYPE " + name + ' ' + type + '\n');
+    }
+
+    private static void sample(PrintWriter writer, String name, String labels, long value) {
+        writer.print(name + '{' + labels + "} " + value + '\n');
+    }
+
+    private static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Escapes a label value: backslashes, double quotes and line feeds.
+     */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.actions;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import net.sf.json.JSONObject;
+
+import hudson.Extension;
+import hudson.model.UnprotectedRootAction;
+import hudson.security.csrf.CrumbExclusion;
+import hudson.util.Secret;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import jenkins.plugins.continuum.steps.PipelineWaiters;
+
+/**
+ * Receives the pipeline status notifications of Continuum at {@code /continuum-webhook/}, and resumes
+ * the {@code ctmWaitForPipeline} steps waiting for them.
+ * <p>
+ * Continuum posts {@code {"serverUrl": "<server URL>", "pi": "<pipeline id>", "status": "<status>"}}, the server URL
+ * being the one given to the steps, with the secret of the {@link Settings global configuration}
+ * in the {@value #SECRET_HEADER} header. The webhook is disabled, and answers 404, unless the secret is set.
+ */
+@Extension
+public class ContinuumWebhook implements UnprotectedRootAction {
+
+    private static final Logger LOGGER = Logger.getLogger(ContinuumWebhook.class.getName());
+
+    static final String URL_NAME = "continuum-webhook";
+
+    static final String SECRET_HEADER = "X-Continuum-Token";
+
+    /** Maximum size of a notification. */
+    static final int MAX_BODY_BYTES = 64 * 1024;
+
+    static final String FIELD_SERVER_URL = "serverUrl";
+    static final String FIELD_PIPELINE_ID = "pi";
+    static final String FIELD_STATUS = "status";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    /**
+     * Whether Continuum can notify the pipeline statuses, i.e. whether the secret is set.
+     */
+    public static boolean isEnabled() {
+        return getSecret() != null;
+    }
+
+    private static String getSecret() {
+        Jenkins jenkins = Jenkins.getInstance();
+        Settings settings = jenkins == null ? null : jenkins.getDescriptorByType(Settings.class);
+        String secret = settings == null ? "" : Secret.toString(settings.getSecret());
+        return secret.length() == 0 ? null : secret;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        handle(req, rsp);
+    }
+
+    static void handle(HttpServletRequest req, HttpServletResponse rsp) throws IOException {
+        handle(req, rsp, getSecret());
+    }
+
+    /**
+     * @param secret the secret of the notifications, null if the webhook is disabled
+     */
+    static void handle(HttpServletRequest req, HttpServletResponse rsp, String secret) throws IOException {
+        if (secret == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!"POST".equals(req.getMethod())) {
+            rsp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        // not a query parameter, which would end up in the access logs
+        String token = req.getHeader(SECRET_HEADER);
+        if (token == null || !MessageDigest.isEqual(secret.getBytes(UTF_8), token.getBytes(UTF_8))) {
+            LOGGER.log(Level.FINE, "Continuum notification with a wrong secret from {0}", req.getRemoteAddr());
+            rsp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        if (req.getContentLength() > MAX_BODY_BYTES) {
+            rsp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        String[] notification;
+        try {
+            notification = read(req.getInputStream());
+        } catch (JsonProcessingException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Not a JSON object");
+            return;
+        } catch (TooLargeException e) {
+            rsp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if (notification[0] == null || notification[1] == null || notification[2] == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected the " + FIELD_SERVER_URL + ", "
+                    + FIELD_PIPELINE_ID + " and " + FIELD_STATUS + " fields");
+            return;
+        }
+        int resumed;
+        try {
+            resumed = PipelineWaiters.notify(notification[2], notification[0], notification[1]);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid " + FIELD_SERVER_URL);
+            return;
+        }
+        LOGGER.log(Level.FINE, "Pipeline {0} of {1} is {2}, {3} steps resumed",
+                new Object[] { notification[0], notification[2], notification[1], resumed });
+        rsp.setStatus(HttpServletResponse.SC_OK);
+        rsp.setContentType("application/json; charset=utf-8");
+        PrintWriter writer = rsp.getWriter();
+        writer.print("{\"resumed\":" + resumed + "}");
+        writer.flush();
+    }
+
+    /**
+     * Reads the pipeline id, the status and the server URL of a notification, ignoring the other fields.
+     *
+     * @return the pipeline id, the status and the server URL, null if missing
+     */
+    static String[] read(InputStream in) throws IOException {
+        String[] notification = new String[3];
+        JsonParser parser = JSON_FACTORY.createParser(new LimitedInputStream(in, MAX_BODY_BYTES));
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_STRING && FIELD_PIPELINE_ID.equals(field)) {
+                    notification[0] = parser.getText();
+                }
+                else if (value == JsonToken.VALUE_STRING && FIELD_STATUS.equals(field)) {
+                    notification[1] = parser.getText();
+                }
+                else if (value == JsonToken.VALUE_STRING && FIELD_SERVER_URL.equals(field)) {
+                    notification[2] = parser.getText();
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return notification;
+    }
+
+    /**
+     * Fails once more than a given number of bytes are read, for the notifications without a Content-Length.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consume(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                consume(n);
+            }
+            return n;
+        }
+
+        private void consume(int n) throws IOException {
+            this.remaining -= n;
+            if (this.remaining < 0) {
+                throw new TooLargeException();
+            }
+        }
+    }
+
+    private static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException() {
+            super("Notification larger than " + MAX_BODY_BYTES + " bytes");
+        }
+    }
+
+    /**
+     * Global configuration of the webhook, under Manage Jenkins > Configure System.
+     */
+    @Extension
+    public static class Settings extends GlobalConfiguration {
+        /** The secret Continuum sends with the notifications, the webhook is disabled if empty. */
+        private Secret secret;
+
+        public Settings() {
+            load();
+        }
+
+        public Secret getSecret() {
+            return this.secret;
+        }
+
+        @DataBoundSetter
+        public void setSecret(Secret secret) {
+            this.secret = secret;
+            save();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Continuum webhook";
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            req.bindJSON(this, json);
+            return true;
+        }
+    }
+
+    /**
+     * Lets Continuum post without a crumb, the notifications being authenticated by the secret.
+     */
+    @Extension
+    public static class CrumbExclusionImpl extends CrumbExclusion {
+        @Override
+        public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+                throws IOException, ServletException {
+            String pathInfo = req.getPathInfo();
+            if (pathInfo != null && (pathInfo.equals('/' + URL_NAME) || pathInfo.startsWith('/' + URL_NAME + '/'))) {
+                chain.doFilter(req, resp);
+                return true;
+            }
+            return false;
+        }
+    }
+}
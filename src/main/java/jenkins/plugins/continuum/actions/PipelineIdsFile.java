@@ -0,0 +1,280 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.actions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pipeline ids of a build, in a file of the build directory rather than in build.xml.
+ * <p>
+ * The file is a log of records, appended as the pipelines are initiated: each server URL is written once
+ * and then referred to by its index, and the ids made of 24 hexadecimal digits (the Continuum ids)
+ * are packed in 12 bytes. A record cut short, by a crash while appending, is dropped when the file is read.
+ * A file that cannot be read is moved aside, the pipeline ids registered from then on going to a new file.
+ */
+final class PipelineIdsFile {
+
+    private static final Logger LOGGER = Logger.getLogger(PipelineIdsFile.class.getName());
+
+    /** Name of the file, in the build directory. */
+    static final String NAME = "continuum-pipelines.bin";
+
+    /** "CPI" and the version of the format. */
+    private static final int MAGIC = 0x43504901;
+
+    private static final int SERVER = 1;
+    private static final int PACKED_ID = 2;
+    private static final int ID = 3;
+    private static final int RESET = 4;
+
+    private static final int PACKED_ID_BYTES = 12;
+
+    private final File file;
+
+    /** Index of the servers already in the file, guarded by this. */
+    private final Map<String, Integer> servers = new HashMap<String, Integer>();
+
+    /** Whether the file could neither be read nor moved aside, and is only replaced, guarded by this. */
+    private boolean unreadable;
+
+    PipelineIdsFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the pipeline ids, in their registration order, per server.
+     * A file cut short is written again without its last record.
+     *
+     * @throws IOException if the file cannot be read, in which case it is moved aside
+     */
+    synchronized Map<String, List<String>> read() throws IOException {
+        this.servers.clear();
+        Map<String, Set<String>> ids = new LinkedHashMap<String, Set<String>>();
+        if (!this.file.isFile()) {
+            return new LinkedHashMap<String, List<String>>();
+        }
+        List<String> serverUrls = new ArrayList<String>();
+        boolean truncated = false;
+        IOException failure = null;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a pipeline ids file: " + this.file);
+            }
+            int type;
+            while ((type = in.read()) >= 0) {
+                if (type == SERVER) {
+                    String serverUrl = in.readUTF();
+                    serverUrls.add(serverUrl);
+                    ids.put(serverUrl, new LinkedHashSet<String>());
+                    continue;
+                }
+                int server = in.readUnsignedShort();
+                if (server >= serverUrls.size()) {
+                    throw new IOException("Unknown server " + server + " in " + this.file);
+                }
+                Set<String> serverIds = ids.get(serverUrls.get(server));
+                if (type == PACKED_ID) {
+                    byte[] packed = new byte[PACKED_ID_BYTES];
+                    in.readFully(packed);
+                    serverIds.add(unpack(packed));
+                }
+                else if (type == ID) {
+                    serverIds.add(in.readUTF());
+                }
+                else if (type == RESET) {
+                    serverIds.clear();
+                }
+                else {
+                    throw new IOException("Unknown record " + type + " in " + this.file);
+                }
+            }
+        } catch (EOFException e) {
+            truncated = true;
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            in.close();
+        }
+        if (failure != null) {
+            // the servers of the file are unknown, appending to it would only add records that cannot be read
+            File corrupt = new File(this.file.getPath() + ".corrupt");
+            if (corrupt.exists() && !corrupt.delete() || !this.file.renameTo(corrupt)) {
+                this.unreadable = true;
+                throw new IOException("Unable to read " + this.file + ", nor to move it aside", failure);
+            }
+            throw new IOException("Unable to read " + this.file + ", moved to " + corrupt, failure);
+        }
+
+        Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, Set<String>> e : ids.entrySet()) {
+            result.put(e.getKey(), new ArrayList<String>(e.getValue()));
+        }
+        if (truncated) {
+            LOGGER.log(Level.WARNING, "Dropping the last pipeline id of {0}, it was not fully written", this.file);
+            write(result);
+        }
+        else {
+            for (String serverUrl : serverUrls) {
+                this.servers.put(serverUrl, this.servers.size());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the content of the file.
+     */
+    synchronized void write(Map<String, ? extends Collection<String>> ids) throws IOException {
+        this.servers.clear();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)));
+        try {
+            out.writeInt(MAGIC);
+            for (Map.Entry<String, ? extends Collection<String>> e : ids.entrySet()) {
+                int server = writeServer(out, e.getKey());
+                for (String pipelineId : e.getValue()) {
+                    writeId(out, server, pipelineId);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        this.unreadable = false;
+    }
+
+    /**
+     * Appends a pipeline id.
+     */
+    synchronized void append(String serverUrl, String pipelineId) throws IOException {
+        DataOutputStream out = openForAppend();
+        try {
+            Integer server = this.servers.get(serverUrl);
+            writeId(out, server != null ? server : writeServer(out, serverUrl), pipelineId);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Appends the removal of the pipeline ids of a server.
+     */
+    synchronized void reset(String serverUrl) throws IOException {
+        Integer server = this.servers.get(serverUrl);
+        if (server == null) {
+            return;
+        }
+        DataOutputStream out = openForAppend();
+        try {
+            out.write(RESET);
+            out.writeShort(server);
+        } finally {
+            out.close();
+        }
+    }
+
+    private DataOutputStream openForAppend() throws IOException {
+        if (this.unreadable) {
+            throw new IOException("Not appending to " + this.file + ", which could not be read");
+        }
+        boolean created = !this.file.exists();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file, true)));
+        if (created) {
+            this.servers.clear();
+            out.writeInt(MAGIC);
+        }
+        return out;
+    }
+
+    private int writeServer(DataOutputStream out, String serverUrl) throws IOException {
+        int server = this.servers.size();
+        if (server > 0xFFFF) {
+            throw new IOException("Too many Continuum servers in " + this.file);
+        }
+        out.write(SERVER);
+        out.writeUTF(serverUrl);
+        this.servers.put(serverUrl, server);
+        return server;
+    }
+
+    private static void writeId(DataOutputStream out, int server, String pipelineId) throws IOException {
+        byte[] packed = pack(pipelineId);
+        out.write(packed != null ? PACKED_ID : ID);
+        out.writeShort(server);
+        if (packed != null) {
+            out.write(packed);
+        }
+        else {
+            out.writeUTF(pipelineId);
+        }
+    }
+
+    /**
+     * Packs an id of 24 lower case hexadecimal digits in 12 bytes.
+     *
+     * @return the packed id, null if the id is not made of 24 lower case hexadecimal digits
+     */
+    static byte[] pack(String pipelineId) {
+        if (pipelineId.length() != 2 * PACKED_ID_BYTES) {
+            return null;
+        }
+        byte[] packed = new byte[PACKED_ID_BYTES];
+        for (int i = 0; i < packed.length; i++) {
+            int high = digit(pipelineId.charAt(2 * i));
+            int low = digit(pipelineId.charAt(2 * i + 1));
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            packed[i] = (byte) (high << 4 | low);
+        }
+        return packed;
+    }
+
+    static String unpack(byte[] packed) {
+        char[] chars = new char[2 * packed.length];
+        for (int i = 0; i < packed.length; i++) {
+            chars[2 * i] = Character.forDigit((packed[i] >> 4) & 0xF, 16);
+            chars[2 * i + 1] = Character.forDigit(packed[i] & 0xF, 16);
+        }
+        return new String(chars);
+    }
+
+    private static int digit(char c) {
+        // upper case digits would not be restored as they were
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        return c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+    }
+}
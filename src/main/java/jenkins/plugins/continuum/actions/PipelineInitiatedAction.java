@@ -1,62 +1,285 @@
 package jenkins.plugins.continuum.actions;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
 
 /**
  * Invisible action to store in the current run after a Continuum pipeline is initiated,
  * so that downstream steps can use the pipeline ids
+ * <p>
+ * Parallel branches register their pipeline ids concurrently: the registrations to a server are serialized
+ * by a lock of that server only, and the lookups never lock.
+ * <p>
+ * The pipeline ids are not saved in build.xml but in {@value PipelineIdsFile#NAME}, see {@link PipelineIdsFile},
+ * and only read when a step looks them up, so that loading the builds does not read them.
  */
-public class PipelineInitiatedAction extends InvisibleAction {
-    
-    private final Map<String, Set<String>> serverPipelineIds;
+public class PipelineInitiatedAction extends InvisibleAction implements RunAction2 {
+
+    private static final Logger LOGGER = Logger.getLogger(PipelineInitiatedAction.class.getName());
+
+    /** Serializes the creation of the actions, the runs being shared by the branches. */
+    private static final Object CREATE_LOCK = new Object();
+
+    /** The pipeline ids per server, null until they are read. */
+    private transient volatile ConcurrentMap<String, PipelineIds> pipelineIds;
+
+    /** Where the pipeline ids are saved, null until the action is attached to its run. */
+    private transient volatile PipelineIdsFile file;
+
+    /** Pipeline ids of the builds saved before they were moved out of build.xml, only read when loaded. */
+    private Map<String, Set<String>> serverPipelineIds;
 
     public PipelineInitiatedAction(String serverUrl, String pipelineId) {
-        this.serverPipelineIds = new HashMap<String, Set<String>>();
-        Set<String> pis = new LinkedHashSet<String>();
-        pis.add(pipelineId);
-        this.serverPipelineIds.put(serverUrl, pis);
+        this.pipelineIds = new ConcurrentHashMap<String, PipelineIds>();
+        addPipelineId(serverUrl, pipelineId);
     }
 
-    public Set<String> getPipelineIds(String serverUrl) {
-        if (!this.serverPipelineIds.containsKey(serverUrl)) {
-            return Collections.EMPTY_SET;
+    private PipelineInitiatedAction(Run<?, ?> run) {
+        this.pipelineIds = new ConcurrentHashMap<String, PipelineIds>();
+        onAttached(run);
+    }
+
+    /**
+     * Registers a pipeline id in the action of the run, adding the action on the first pipeline id.
+     *
+     * @return whether the pipeline id was not registered yet
+     */
+    public static boolean addPipelineId(Run<?, ?> run, String serverUrl, String pipelineId) {
+        PipelineInitiatedAction action = run.getAction(PipelineInitiatedAction.class);
+        if (action == null) {
+            synchronized (CREATE_LOCK) {
+                action = run.getAction(PipelineInitiatedAction.class);
+                if (action == null) {
+                    // attached before it is added, so that the pipeline ids registered from then on are saved
+                    action = new PipelineInitiatedAction(run);
+                    action.addPipelineId(serverUrl, pipelineId);
+                    run.addAction(action);
+                    return true;
+                }
+            }
         }
-        return Collections.unmodifiableSet(this.serverPipelineIds.get(serverUrl));
+        return action.addPipelineId(serverUrl, pipelineId);
+    }
+
+    /**
+     * Gets the pipeline ids initiated on a server, in the order they were registered.
+     * The set is a read-only view, reflecting the pipeline ids registered while it is iterated or not.
+     */
+    public Set<String> getPipelineIds(String serverUrl) {
+        PipelineIds ids = getServers().get(serverUrl);
+        return ids == null ? Collections.<String>emptySet() : ids.view;
     }
 
     public boolean addPipelineId(String serverUrl, String pipelineId) {
-        Set<String> pis = null;
-        if (!this.serverPipelineIds.containsKey(serverUrl)) {
-           pis = new LinkedHashSet<String>();
-           this.serverPipelineIds.put(serverUrl, pis);
+        ConcurrentMap<String, PipelineIds> servers = getServers();
+        PipelineIds ids = servers.get(serverUrl);
+        if (ids == null) {
+            PipelineIds newIds = new PipelineIds();
+            ids = servers.putIfAbsent(serverUrl, newIds);
+            if (ids == null) {
+                ids = newIds;
+            }
         }
-        else {
-            pis = this.serverPipelineIds.get(serverUrl);
+        synchronized (ids) {
+            if (!ids.add(pipelineId)) {
+                return false;
+            }
+            PipelineIdsFile f = this.file;
+            if (f != null) {
+                try {
+                    f.append(serverUrl, pipelineId);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Unable to save the Continuum pipeline id " + pipelineId, e);
+                }
+            }
+            return true;
         }
-        return pis.add(pipelineId);
     }
 
     public String getLastPipelineId(String serverUrl) {
-        Set<String> pis = this.serverPipelineIds.containsKey(serverUrl) ? this.serverPipelineIds.get(serverUrl) : null;
-        String pi = null;
-        if (pis != null) {
-            Iterator<String> piIt = pis.iterator();
-            while (piIt.hasNext()) { pi = piIt.next(); }
-        }
-        return pi;
+        PipelineIds ids = getServers().get(serverUrl);
+        return ids == null ? null : ids.last;
     }
 
     public void reset(String serverUrl) {
-        Set<String> pis = this.serverPipelineIds.containsKey(serverUrl) ? this.serverPipelineIds.get(serverUrl) : null;
-        if (pis != null) {
-            pis.clear();
+        PipelineIds ids = getServers().get(serverUrl);
+        if (ids != null) {
+            synchronized (ids) {
+                ids.clear();
+                PipelineIdsFile f = this.file;
+                if (f != null) {
+                    try {
+                        f.reset(serverUrl);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Unable to save the reset of the Continuum pipeline ids", e);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        if (this.file != null) {
+            return;
+        }
+        // a new action, whose pipeline ids were registered in memory so far
+        PipelineIdsFile f = new PipelineIdsFile(new File(r.getRootDir(), PipelineIdsFile.NAME));
+        write(f);
+        this.file = f;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        PipelineIdsFile f = new PipelineIdsFile(new File(r.getRootDir(), PipelineIdsFile.NAME));
+        if (this.serverPipelineIds != null) {
+            // moved out of build.xml, which no longer has them once the build is saved again
+            write(f);
+            this.serverPipelineIds = null;
+        }
+        this.file = f;
+    }
+
+    private void write(PipelineIdsFile f) {
+        Map<String, Collection<String>> ids = new LinkedHashMap<String, Collection<String>>();
+        for (Map.Entry<String, PipelineIds> e : getServers().entrySet()) {
+            ids.put(e.getKey(), new ArrayList<String>(e.getValue().view));
+        }
+        try {
+            f.write(ids);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the Continuum pipeline ids", e);
+        }
+    }
+
+    /**
+     * Gets the pipeline ids per server, reading them on the first call.
+     */
+    private ConcurrentMap<String, PipelineIds> getServers() {
+        ConcurrentMap<String, PipelineIds> servers = this.pipelineIds;
+        if (servers == null) {
+            synchronized (this) {
+                servers = this.pipelineIds;
+                if (servers == null) {
+                    servers = read();
+                    this.pipelineIds = servers;
+                }
+            }
+        }
+        return servers;
+    }
+
+    private ConcurrentMap<String, PipelineIds> read() {
+        ConcurrentMap<String, PipelineIds> servers = new ConcurrentHashMap<String, PipelineIds>();
+        PipelineIdsFile f = this.file;
+        if (f == null) {
+            return servers;
+        }
+        try {
+            for (Map.Entry<String, List<String>> e : f.read().entrySet()) {
+                PipelineIds ids = new PipelineIds();
+                for (String pipelineId : e.getValue()) {
+                    ids.add(pipelineId);
+                }
+                servers.put(e.getKey(), ids);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read the Continuum pipeline ids", e);
+        }
+        return servers;
+    }
+
+    protected Object readResolve() {
+        if (this.serverPipelineIds != null) {
+            ConcurrentMap<String, PipelineIds> servers = new ConcurrentHashMap<String, PipelineIds>();
+            for (Map.Entry<String, Set<String>> e : this.serverPipelineIds.entrySet()) {
+                PipelineIds ids = new PipelineIds();
+                for (String pipelineId : e.getValue()) {
+                    ids.add(pipelineId);
+                }
+                servers.put(e.getKey(), ids);
+            }
+            this.pipelineIds = servers;
+        }
+        return this;
+    }
+
+    /**
+     * The pipeline ids of a server. The changes are guarded by the instance, the lookups do not lock.
+     */
+    private static final class PipelineIds {
+        private final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<String>();
+        private final Set<String> view = new View();
+        private volatile String last;
+
+        boolean add(String pipelineId) {
+            if (!this.ids.add(pipelineId)) {
+                return false;
+            }
+            this.order.add(pipelineId);
+            this.last = pipelineId;
+            return true;
+        }
+
+        void clear() {
+            this.last = null;
+            this.order.clear();
+            this.ids.clear();
+        }
+
+        /**
+         * Read-only view of the pipeline ids, in their registration order.
+         */
+        private final class View extends AbstractSet<String> {
+            @Override
+            public Iterator<String> iterator() {
+                final Iterator<String> it = order.iterator();
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return it.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ids.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return ids.contains(o);
+            }
         }
     }
 }
@@ -17,18 +17,34 @@
 package jenkins.plugins.continuum.steps;
 
 import static org.apache.commons.lang.StringUtils.isBlank;
-import static org.apache.commons.lang.StringUtils.replaceChars;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
 
+import org.acegisecurity.Authentication;
+import org.apache.http.concurrent.FutureCallback;
 import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
@@ -39,30 +55,41 @@ import org.kohsuke.stapler.QueryParameter;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
-import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import com.google.common.collect.ImmutableSet;
 
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.model.Item;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.security.ACL;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
-import hudson.util.Secret;
+import jenkins.model.Jenkins;
 import jenkins.plugins.continuum.BuildToContinuumAPI;
+import jenkins.plugins.continuum.CommandInputBuilder;
+import jenkins.plugins.continuum.CommandPayload;
 import jenkins.plugins.continuum.ContinuumClient;
 import jenkins.plugins.continuum.ContinuumConstants;
+import jenkins.plugins.continuum.ContinuumEvents;
+import jenkins.plugins.continuum.ContinuumMetrics;
+import jenkins.plugins.continuum.CredentialsCache;
+import jenkins.plugins.continuum.EnvVarFilter;
+import jenkins.plugins.continuum.Outbox;
+import jenkins.plugins.continuum.ResponseReader;
+import jenkins.plugins.continuum.ResponseReaders;
+import jenkins.plugins.continuum.actions.ContinuumCallsAction;
 import jenkins.plugins.continuum.steps.CtmInitiatePipelineStep.CtmInitiatePipelineStepExecution;
+import jenkins.security.NotReallyRoleSensitiveCallable;
+import jenkins.util.Timer;
 
 /**
  * Base class for Continuum command steps
  */
 public abstract class CtmCommandStep extends Step {
 
-	private static final char DOT_REPLACEMENT = '_';
-
     /** The root URL to the Continuum server. */
     private final String ctmUrl;
 
@@ -139,14 +166,38 @@ public abstract class CtmCommandStep extends Step {
      */
     public static abstract class CtmCommandStepExecution<T extends CtmCommandStep> extends SynchNonBlockingStepExecution<Void> {
         private static final long serialVersionUID = 1L;
+        private static final Logger LOGGER = Logger.getLogger(CtmCommandStepExecution.class.getName());
 
         /** Message for invalid Continuum server URL */
         public static String LOG_MESSAGE_INVALID_URL = "The URL to the Continuum server is missing.";
 
+        /** Whether steps wait for Continuum with non-blocking I/O, instead of holding a pool thread per request */
+        public static boolean ASYNC = Boolean.getBoolean(CtmCommandStep.class.getName() + ".async");
+
+        /** Maximum number of command groups (e.g. pipelines) a step sends to concurrently */
+        public static int MAX_PARALLEL_REQUESTS = Integer.getInteger(CtmCommandStep.class.getName() + ".maxParallelRequests", 8);
+
         protected transient T step;
         protected transient TaskListener listener;
         protected transient Run<?,?> run;
         protected transient BuildToContinuumAPI converter;
+        private transient volatile AsyncCommands asyncCommands;
+        /** Whether the non-blocking commands are being prepared, until they start or the step is stopped. */
+        private transient AtomicBoolean preparing;
+        /** Identifies the commands of this execution in the {@link Outbox}, survives restarts. */
+        private final String outboxId = UUID.randomUUID().toString();
+        private transient volatile Map<Map<String, Object>, Outbox.Entry> outboxEntries;
+        private transient Map<Map<String, Object>, CommandPayload> payloads;
+        private transient EnvVars envVars;
+        private transient boolean envVarsLoaded;
+        private transient EnvVarFilter envVarFilter;
+        private transient boolean envVarDotsReplaced;
+        private transient EnvVarFilter.Selection envVarSelection;
+        /** When the step started, so that its duration includes the wait for a thread. */
+        private transient long startedAt;
+        private transient volatile ContinuumMetrics.Call stepMetrics;
+        /** The first failure of the step, counted in the step metrics. */
+        private transient volatile Exception failure;
         
         public CtmCommandStepExecution(final T step, @Nonnull final StepContext ctx)
                 throws IOException, InterruptedException {
@@ -154,60 +205,602 @@ public abstract class CtmCommandStep extends Step {
             this.step = step;
             this.listener = getContext().get(TaskListener.class);
             this.run = getContext().get(Run.class);
+            this.startedAt = System.nanoTime();
+        }
+
+        /**
+         * Validates the step and builds the parameters of each command to send.
+         *
+         * @return the command parameters, or null if there is nothing to send
+         */
+        protected abstract List<Map<String, Object>> prepareCommands(PrintStream consoleLogger) throws Exception;
+
+        /**
+         * Handles the successful response to one of the commands returned by {@link #prepareCommands}.
+         *
+         * @param response what the {@link #getResponseReader() response reader} read from the response
+         */
+        protected abstract void onCommandResponse(Map<String, Object> commandParameters, String response,
+                PrintStream consoleLogger) throws Exception;
+
+        /**
+         * Handles a failure to prepare or execute the commands.
+         */
+        protected abstract void onCommandFailure(Exception e, PrintStream consoleLogger);
+
+        /**
+         * Handles a failure to execute a command. No further commands of its group are sent afterwards.
+         */
+        protected void onCommandFailure(Map<String, Object> commandParameters, Exception e, PrintStream consoleLogger) {
+            onCommandFailure(e, consoleLogger);
+        }
+
+        /**
+         * Gets the group of a command. Commands of a group are sent one after the other,
+         * different groups are sent concurrently and don't stop on each other's failures.
+         *
+         * @return the group key, null puts all the commands in a single group
+         */
+        protected Object getCommandGroup(Map<String, Object> commandParameters) {
+            return null;
+        }
+
+        /**
+         * Gets the reader of the successful responses, by default the whole body.
+         * Queued writes always read the whole body.
+         */
+        protected ResponseReader<String> getResponseReader() {
+            return ResponseReaders.BODY;
+        }
+
+        /**
+         * Whether the commands are writes that can go through the controller-wide write queue,
+         * to be sent in batches with the writes of other steps, when the queue is enabled.
+         */
+        protected boolean isQueuedWrite() {
+            return false;
+        }
+
+        /**
+         * Gets the key of the value a queued write sets, so that a pending write of the same value
+         * is replaced by this one instead of being sent too.
+         *
+         * @return the key, or null if the write must always be sent
+         */
+        protected String getCoalesceKey(Map<String, Object> commandParameters) {
+            return null;
+        }
+
+        /**
+         * Whether the commands can be sent again after a restart, when it is unknown whether Continuum
+         * processed them. Commands that are not replayable fail the step when it resumes.
+         */
+        protected boolean isReplayable() {
+            return false;
+        }
+
+        /**
+         * Handles the response to a command sent again after a restart, when the step parameters are gone.
+         *
+         * @param group the group of the command, see {@link #getCommandGroup}
+         */
+        protected void onReplayedResponse(String group, String response, PrintStream consoleLogger) throws Exception {
+            log("Sent again after a restart" + (group == null ? "" : " (" + group + ")") + ": " + response,
+                    consoleLogger);
+        }
+
+        @Override
+        protected Void run() throws Exception {
+            beginStepMetrics();
+            try {
+                return runCommands();
+            } finally {
+                endStepMetrics();
+            }
+        }
+
+        private Void runCommands() throws Exception {
+            PrintStream consoleLogger = this.listener.getLogger();
+            List<List<Map<String, Object>>> groups;
+            String serverUrl;
+            String apiToken;
+            try {
+                List<Map<String, Object>> commands = prepareCommands(consoleLogger);
+                if (commands == null || commands.isEmpty()) {
+                    return null;
+                }
+                groups = groupCommands(commands);
+                // Resolve the server and credentials once for all the commands
+                serverUrl = getServerUrl();
+                apiToken = getAPIToken();
+                prepareRequests(commands);
+                recordCommands(commands, serverUrl, apiToken);
+            } catch (Exception e) {
+                reportFailure(null, e, consoleLogger);
+                return null;
+            }
+            try {
+                int parallelism = Math.min(MAX_PARALLEL_REQUESTS, groups.size());
+                if (parallelism <= 1) {
+                    // the first command waited for this thread since the step started
+                    long readyAt = this.startedAt;
+                    for (List<Map<String, Object>> group : groups) {
+                        readyAt = executeGroup(group, serverUrl, apiToken, consoleLogger, readyAt);
+                    }
+                }
+                else {
+                    executeGroups(groups, parallelism, serverUrl, apiToken, consoleLogger);
+                }
+            } finally {
+                // including the commands of groups stopped by a failure, which were never sent
+                completeCommands();
+            }
+            return null;
+        }
+
+        /**
+         * Serializes the payload of each command, once for all its attempts.
+         */
+        private void prepareRequests(List<Map<String, Object>> commands) throws Exception {
+            Map<Map<String, Object>, CommandPayload> commandPayloads =
+                    new IdentityHashMap<Map<String, Object>, CommandPayload>();
+            for (Map<String, Object> commandParameters : commands) {
+                commandPayloads.put(commandParameters, serialize(commandParameters));
+            }
+            this.payloads = commandPayloads;
+        }
+
+        /**
+         * Whether the commands are recorded in the outbox before they are sent.
+         */
+        private boolean isRecorded() {
+            return isReplayable() && Outbox.isEnabled();
+        }
+
+        /**
+         * Records the commands in the outbox before they are sent, so that they are sent again if Jenkins
+         * restarts before they are handled. Only the replayable commands are recorded.
+         */
+        private void recordCommands(List<Map<String, Object>> commands, String serverUrl, String apiToken) {
+            if (!isRecorded()) {
+                return;
+            }
+            boolean markUnstable = this.step == null || this.step.markUnstable;
+            Map<Map<String, Object>, Outbox.Entry> entries = new IdentityHashMap<Map<String, Object>, Outbox.Entry>();
+            List<Outbox.Entry> entryList = new ArrayList<Outbox.Entry>(commands.size());
+            for (Map<String, Object> commandParameters : commands) {
+                Object group = getCommandGroup(commandParameters);
+                Outbox.Entry entry = new Outbox.Entry(this.outboxId, serverUrl, getCommandName(), apiToken,
+                        group == null ? null : group.toString(), this.payloads.get(commandParameters), markUnstable);
+                entries.put(commandParameters, entry);
+                entryList.add(entry);
+            }
+            if (Outbox.record(entryList)) {
+                this.outboxEntries = entries;
+            }
+        }
+
+        private CommandPayload serialize(Map<String, Object> commandParameters) throws Exception {
+            ContinuumEvents.Span event = ContinuumEvents.serialization(getCommandName());
+            try {
+                CommandPayload payload;
+                if (converter instanceof CommandInputBuilder) {
+                    payload = ((CommandInputBuilder) converter).toPayload(run, commandParameters);
+                }
+                else {
+                    payload = CommandPayload.of(converter.toContinuumAPI(run, commandParameters));
+                }
+                event.complete(payload.getLength(), ContinuumEvents.OUTCOME_OK);
+                return payload;
+            } catch (Exception e) {
+                event.complete(-1, e.getClass().getSimpleName());
+                throw e;
+            }
+        }
+
+        /**
+         * Gets the payload sent for the command, serialized only once.
+         */
+        protected CommandPayload getRequestPayload(Map<String, Object> commandParameters) throws Exception {
+            Map<Map<String, Object>, CommandPayload> commandPayloads = this.payloads;
+            CommandPayload payload = commandPayloads == null ? null : commandPayloads.get(commandParameters);
+            return payload != null ? payload : serialize(commandParameters);
+        }
+
+        private Outbox.Entry getOutboxEntry(Map<String, Object> commandParameters) {
+            Map<Map<String, Object>, Outbox.Entry> entries = this.outboxEntries;
+            return entries == null ? null : entries.get(commandParameters);
+        }
+
+        private void completeCommand(Map<String, Object> commandParameters) {
+            Outbox.Entry entry = getOutboxEntry(commandParameters);
+            if (entry != null) {
+                Outbox.complete(entry);
+            }
+        }
+
+        private void completeCommands() {
+            Map<Map<String, Object>, Outbox.Entry> entries = this.outboxEntries;
+            if (entries != null) {
+                Outbox.complete(entries.values());
+            }
+        }
+
+        @Override
+        protected boolean isSuspended() {
+            // commands failing while Jenkins shuts down are sent again when the step resumes
+            return this.outboxEntries != null && Outbox.isClosed();
+        }
+
+        @Override
+        public void onResume() {
+            final List<Outbox.Entry> entries = Outbox.getPending(this.outboxId);
+            if (entries.isEmpty()) {
+                super.onResume();
+                return;
+            }
+            try {
+                this.listener = getContext().get(TaskListener.class);
+                this.run = getContext().get(Run.class);
+            } catch (Exception e) {
+                Outbox.complete(entries);
+                getContext().onFailure(e);
+                return;
+            }
+            if (!isReplayable()) {
+                Outbox.complete(entries);
+                getContext().onFailure(new AbortException("The Continuum " + getCommandName()
+                        + " request was interrupted by a restart and is not sent again,"
+                        + " check whether Continuum processed it"));
+                return;
+            }
+            try {
+                ServerExecutors.get(ContinuumClient.getServerKey(entries.get(0).getServerUrl())).submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        replay(entries);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Outbox.complete(entries);
+                getContext().onFailure(e);
+            }
+        }
+
+        /**
+         * Sends the commands left pending by a restart again, in order. A failure stops the rest of its group.
+         */
+        private void replay(List<Outbox.Entry> entries) {
+            PrintStream consoleLogger = this.listener.getLogger();
+            log("Resuming after a restart, sending " + entries.size() + " pending request(s) again", consoleLogger);
+            Set<String> failedGroups = new HashSet<String>();
+            for (Outbox.Entry entry : entries) {
+                if (!failedGroups.contains(entry.getGroup())) {
+                    try {
+                        String response = ContinuumClient.post(entry.getServerUrl(), entry.getApiToken(),
+                                entry.getCommand(), entry.getPayload(), getResponseReader());
+                        onReplayedResponse(entry.getGroup(), response, consoleLogger);
+                    } catch (Exception e) {
+                        if (Outbox.isClosed()) {
+                            // restarting again, the commands stay pending
+                            return;
+                        }
+                        failedGroups.add(entry.getGroup());
+                        log("Failed to send again after a restart: " + e.getMessage(), consoleLogger);
+                        log("Request payload: " + entry.getPayload(), consoleLogger);
+                        if (entry.isMarkUnstable()) {
+                            markUnstable();
+                        }
+                    }
+                }
+                Outbox.complete(entry);
+            }
+            getContext().onSuccess(null);
+        }
+
+        private List<List<Map<String, Object>>> groupCommands(List<Map<String, Object>> commands) {
+            Map<Object, List<Map<String, Object>>> groups = new LinkedHashMap<Object, List<Map<String, Object>>>();
+            for (Map<String, Object> commandParameters : commands) {
+                Object groupKey = getCommandGroup(commandParameters);
+                List<Map<String, Object>> group = groups.get(groupKey);
+                if (group == null) {
+                    group = new ArrayList<Map<String, Object>>();
+                    groups.put(groupKey, group);
+                }
+                group.add(commandParameters);
+            }
+            return new ArrayList<List<Map<String, Object>>>(groups.values());
+        }
+
+        /**
+         * Sends the commands of a group one after the other, stopping at the first failure.
+         *
+         * @param readyAt when the first command could have been sent, to measure how long it waited
+         * @return when the group was done
+         */
+        private long executeGroup(List<Map<String, Object>> group, String serverUrl, String apiToken,
+                PrintStream consoleLogger, long readyAt) {
+            for (Map<String, Object> commandParameters : group) {
+                try {
+                    String response = executeCommand(commandParameters, serverUrl, apiToken, readyAt);
+                    onCommandResponse(commandParameters, response, consoleLogger);
+                } catch (Exception e) {
+                    if (isSuspended()) {
+                        break;
+                    }
+                    reportFailure(commandParameters, e, consoleLogger);
+                    break;
+                } finally {
+                    completeCommand(commandParameters);
+                    readyAt = System.nanoTime();
+                }
+            }
+            return readyAt;
+        }
+
+        /**
+         * Sends the groups concurrently on the fan-out executor of the server, with at most 'parallelism'
+         * of them in flight. When the executor is saturated, this thread sends the group itself.
+         */
+        private void executeGroups(List<List<Map<String, Object>>> groups, int parallelism,
+                final String serverUrl, final String apiToken, final PrintStream consoleLogger) throws Exception {
+            CompletionService<Void> completionService =
+                    new ExecutorCompletionService<Void>(ServerExecutors.getFanOutExecutor(getServerKey(serverUrl)));
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(groups.size());
+            Iterator<List<Map<String, Object>>> pending = groups.iterator();
+            int running = 0;
+            try {
+                while (pending.hasNext() || running > 0) {
+                    if (running < parallelism && pending.hasNext()) {
+                        List<Map<String, Object>> group = pending.next();
+                        try {
+                            futures.add(completionService.submit(newGroupTask(group, serverUrl, apiToken, consoleLogger)));
+                            running++;
+                        } catch (RejectedExecutionException e) {
+                            executeGroup(group, serverUrl, apiToken, consoleLogger, System.nanoTime());
+                        }
+                    }
+                    else {
+                        completionService.take().get();
+                        running--;
+                    }
+                }
+            } finally {
+                // only has an effect if this thread was interrupted by stop()
+                for (Future<Void> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        private Callable<Void> newGroupTask(final List<Map<String, Object>> group, final String serverUrl,
+                final String apiToken, final PrintStream consoleLogger) {
+            final long submittedAt = System.nanoTime();
+            return new Callable<Void>() {
+                @Override
+                public Void call() {
+                    executeGroup(group, serverUrl, apiToken, consoleLogger, submittedAt);
+                    return null;
+                }
+            };
+        }
+
+        @Override
+        protected String getExecutorKey() {
+            String serverUrl = getServerUrl();
+            return isBlank(serverUrl) ? null : getServerKey(serverUrl);
+        }
+
+        private static String getServerKey(String serverUrl) {
+            try {
+                return ContinuumClient.getServerKey(serverUrl);
+            } catch (IllegalArgumentException e) {
+                // invalid URL, the step fails when it tries to use it
+                return serverUrl;
+            }
+        }
+
+        @Override
+        protected boolean startAsync() throws Exception {
+            if (!ASYNC) {
+                return false;
+            }
+            beginStepMetrics();
+            this.preparing = new AtomicBoolean(true);
+            // the commands, credentials and outbox may read from disk, not on the thread running the pipeline
+            final Authentication auth = Jenkins.getAuthentication();
+            Timer.get().execute(new Runnable() {
+                @Override
+                public void run() {
+                    ACL.impersonate(auth, new NotReallyRoleSensitiveCallable<Void, RuntimeException>() {
+                        @Override
+                        public Void call() {
+                            prepareAsync();
+                            return null;
+                        }
+                    });
+                }
+            });
+            return true;
+        }
+
+        private void prepareAsync() {
+            PrintStream consoleLogger = this.listener.getLogger();
+            AsyncCommands commands = null;
+            List<Map<String, Object>> commandList = null;
+            try {
+                commandList = prepareCommands(consoleLogger);
+                if (commandList != null && !commandList.isEmpty()) {
+                    String serverUrl = getServerUrl();
+                    String apiToken = getAPIToken();
+                    prepareRequests(commandList);
+                    commands = new AsyncCommands(groupCommands(commandList), serverUrl, apiToken, consoleLogger);
+                }
+            } catch (Exception e) {
+                reportFailure(null, e, consoleLogger);
+            }
+            if (commands == null) {
+                if (this.preparing.compareAndSet(true, false)) {
+                    endStepMetrics();
+                    getContext().onSuccess(null);
+                }
+                return;
+            }
+            // set first, so that stop() cancels the commands once they are no longer being prepared
+            this.asyncCommands = commands;
+            if (!this.preparing.compareAndSet(true, false)) {
+                return;
+            }
+            recordCommands(commandList, commands.serverUrl, commands.apiToken);
+            commands.start();
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            AtomicBoolean prepare = this.preparing;
+            if (prepare != null && prepare.compareAndSet(true, false)) {
+                ContinuumMetrics.Call metrics = this.stepMetrics;
+                if (metrics != null) {
+                    metrics.discard();
+                }
+                getContext().onFailure(cause);
+                super.stop(cause);
+                return;
+            }
+            AsyncCommands commands = this.asyncCommands;
+            if (commands != null && commands.cancel()) {
+                getContext().onFailure(cause);
+            }
+            super.stop(cause);
+        }
+
+        @Override
+        public @Nonnull String getStatus() {
+            AsyncCommands commands = this.asyncCommands;
+            if (commands != null) {
+                return commands.isDone() ? "completed" : "waiting for the Continuum " + getCommandName() + " response";
+            }
+            return super.getStatus();
+        }
+
+        /**
+         * Counts the failure in the step metrics, then lets the step report it.
+         *
+         * @param commandParameters the command that failed, null if the commands could not be prepared
+         */
+        private void reportFailure(Map<String, Object> commandParameters, Exception e, PrintStream consoleLogger) {
+            if (this.failure == null) {
+                this.failure = e;
+            }
+            if (commandParameters == null) {
+                onCommandFailure(e, consoleLogger);
+            }
+            else {
+                onCommandFailure(commandParameters, e, consoleLogger);
+            }
+        }
+
+        private void beginStepMetrics() {
+            ContinuumMetrics.Call metrics = ContinuumMetrics.step(getServerUrl(), getCommandName());
+            metrics.begin();
+            this.stepMetrics = metrics;
+        }
+
+        private void endStepMetrics() {
+            ContinuumMetrics.Call metrics = this.stepMetrics;
+            if (metrics != null) {
+                metrics.end(this.startedAt, this.failure);
+            }
         }
 
         protected String executeCommand(Map<String,Object> commandParameters) throws Exception {
-        	String payload = converter.toContinuumAPI(run, commandParameters);
+        	return executeCommand(commandParameters, getServerUrl(), getAPIToken());
+        }
+
+        protected String executeCommand(Map<String,Object> commandParameters, String serverUrl, String apiToken)
+        		throws Exception {
+        	return executeCommand(commandParameters, serverUrl, apiToken, System.nanoTime());
+        }
+
+        private String executeCommand(Map<String,Object> commandParameters, String serverUrl, String apiToken,
+        		long readyAt) throws Exception {
+        	CommandPayload payload = getRequestPayload(commandParameters);
+        	CallTimer timer = new CallTimer(serverUrl, payload, readyAt);
         	try {
-        		String commandResult = ContinuumClient.post(getServerUrl(), getAPIToken(),
-        				getCommandName(), payload);
+        		String commandResult;
+        		if (isQueued()) {
+        			commandResult = waitFor(postQueued(commandParameters, serverUrl, apiToken, payload, null));
+        			timer.setResponse(commandResult);
+        		}
+        		else {
+        			commandResult = ContinuumClient.post(serverUrl, apiToken,
+        					getCommandName(), payload, timer.measure(getResponseReader()));
+        		}
+        		timer.stop(null);
         		return commandResult;
         	}
         	catch (Exception e) {
+        		timer.stop(e);
         		log("Request payload: " + payload, this.listener.getLogger());
         		throw e;
         	}
         }
 
+        private boolean isQueued() {
+            return isQueuedWrite() && ContinuumClient.isWriteQueueEnabled();
+        }
+
+        private Future<String> postQueued(Map<String, Object> commandParameters, String serverUrl, String apiToken,
+                CommandPayload payload, FutureCallback<String> callback) {
+            return ContinuumClient.postQueued(serverUrl, apiToken, getCommandName(), payload,
+                    String.valueOf(getCommandGroup(commandParameters)), getCoalesceKey(commandParameters), callback);
+        }
+
+        private static String waitFor(Future<String> future) throws Exception {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                throw e;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+
+        /**
+         * Gets the environment variables, read from the context once per execution.
+         */
         protected EnvVars getEnvVars() {
-        	return getEnvVars(null /* subset */, false /* replaceDots */);
+            if (!this.envVarsLoaded) {
+                try {
+                    this.envVars = getContext().get(EnvVars.class);
+                } catch (InterruptedException e) {
+                } catch (IOException e) {
+                }
+                this.envVarsLoaded = true;
+            }
+            return this.envVars;
         }
 
         /**
-         * Gets the environment variables.
-         * If 'subset' parameter is specified, the result includes the variables in the subset only,
-         * If 'replaceDots' is true, then the '.' chars in variables names are replaced with DOT_REPLACEMENT,
-         * The the variable names in the 'subset' are assumed to be the original names (i.e. with dots)
+         * Gets the environment variables selected by the filter, selected once per execution.
+         * If 'replaceDots' is true, then the '.' chars in variables names are replaced with {@link EnvVarFilter#DOT_REPLACEMENT},
+         * the filter matches the original names (i.e. with dots)
          */
-        protected EnvVars getEnvVars(String[] subset, boolean replaceDots) {
-        	try {
-        		EnvVars r = getContext().get(EnvVars.class);
-        		if (r != null  && !r.isEmpty() &&
-        				(replaceDots || (subset != null && subset.length > 0))) {
-        			Set<String> varSet = (subset == null || subset.length == 0) ?
-        					null : new HashSet<String>(Arrays.asList(subset));
-        			boolean replaced = false;
-        			EnvVars n = new EnvVars();
-        			for (String varName : r.keySet()) {
-        				boolean includeVar = varSet == null || varSet.contains(varName);
-        				if (includeVar) {
-        					String useVarName = varName;
-        					if (replaceDots) {
-        						useVarName = replaceChars(useVarName, '.', DOT_REPLACEMENT);
-        						replaced |= !varName.equals(useVarName);
-        					}
-        					n.put(useVarName, r.get(varName));
-        				}
-        			}
-        			if (replaced || r.size() != n.size()) {
-        				r = n;
-        			}
-        		}
-        		return r;
-        	} catch (InterruptedException e) {
-        	} catch (IOException e) {
-			}
-    		return null;
+        protected EnvVarFilter.Selection getEnvVars(EnvVarFilter filter, boolean replaceDots) {
+            EnvVarFilter.Selection selection = this.envVarSelection;
+            if (selection == null || filter != this.envVarFilter || replaceDots != this.envVarDotsReplaced) {
+                EnvVars env = getEnvVars();
+                if (env == null) {
+                    return null;
+                }
+                selection = filter.select(env, replaceDots);
+                this.envVarFilter = filter;
+                this.envVarDotsReplaced = replaceDots;
+                this.envVarSelection = selection;
+            }
+            return selection;
         }
 
         protected String getServerUrl() {
@@ -235,23 +828,14 @@ public abstract class CtmCommandStep extends Step {
         protected String getAPIToken() {
             String token = this.step.apiToken;
             if (isBlank(token)) {
-                StandardCredentials sc = getCredentials();
-                if (sc instanceof StandardUsernamePasswordCredentials) {
-                    Secret secret = ((StandardUsernamePasswordCredentials) sc).getPassword(); 
-                    token = secret == null ? null : secret.getPlainText();
-                }
-                else {
-                    try {
-                        java.lang.reflect.Method m = sc.getClass().getMethod("getSecret");
-                        Object obj = m.invoke(sc);
-                        if (obj instanceof Secret) {
-                            token = ((Secret) obj).getPlainText();
-                        }
-                    }
-                    catch (Exception e) {
-                        // ignore
-                    }
+                ContinuumEvents.Span event = ContinuumEvents.credentials(getCommandName(), getServerUrl());
+                try {
+                    token = CredentialsCache.getApiToken(getCredentials());
+                } catch (RuntimeException e) {
+                    event.complete(-1, e.getClass().getSimpleName());
+                    throw e;
                 }
+                event.complete(-1, token == null ? "missing" : ContinuumEvents.OUTCOME_OK);
             }
             return token;
         }
@@ -281,22 +865,19 @@ public abstract class CtmCommandStep extends Step {
          * @param printStream
          */
         protected void log(String msg, PrintStream printStream) {
-            printStream.print("Continuum " + getCommandName() + " - ");
-            printStream.println(msg);
+            // commands may complete concurrently, keep the prefix and message on the same line
+            synchronized (printStream) {
+                printStream.print("Continuum " + getCommandName() + " - ");
+                printStream.println(msg);
+            }
         }
 
+        /**
+         * Gets the credentials with the given id, resolved once for all the steps, see {@link CredentialsCache}.
+         */
         public static StandardCredentials getCredentials(Item owner,
                 String credentialsId, String serverUrl) {
-            StandardCredentials result = null;
-            if (!isBlank(credentialsId)) {
-                for (StandardCredentials c : lookupCredentials(owner, serverUrl)) {
-                    if (c.getId().equals(credentialsId)) {
-                        result = c;
-                        break;
-                    }
-                }
-            }
-            return result;
+            return CredentialsCache.getCredentials(owner, credentialsId, serverUrl);
         }
 
         public static List<StandardCredentials> lookupCredentials(Item owner, String serverUrl) {
@@ -305,5 +886,237 @@ public abstract class CtmCommandStep extends Step {
             return CredentialsProvider.lookupCredentials(
                     StandardCredentials.class, owner, null, rBuilder.build());
         }
+
+        /**
+         * Measures a command for the {@link ContinuumCallsAction} of the build.
+         */
+        private final class CallTimer {
+            private final String serverUrl;
+            private final long payloadBytes;
+            private final long readyAt;
+            private final long sentAt = System.nanoTime();
+            private final long time = System.currentTimeMillis();
+            private final AtomicLong responseBytes = new AtomicLong(-1L);
+
+            /**
+             * Starts measuring a command sent now.
+             *
+             * @param readyAt when the command could have been sent
+             */
+            CallTimer(String serverUrl, CommandPayload payload, long readyAt) {
+                this.serverUrl = serverUrl;
+                this.payloadBytes = payload.getLength();
+                this.readyAt = readyAt;
+            }
+
+            /** Wraps the reader of the response to measure its size. */
+            <R> ResponseReader<R> measure(ResponseReader<R> reader) {
+                return ResponseReaders.counting(reader, this.responseBytes);
+            }
+
+            /** Measures a response that was read as a whole. */
+            void setResponse(String response) {
+                this.responseBytes.set(response == null ? 0L : response.length());
+            }
+
+            void stop(Exception failure) {
+                long wire = System.nanoTime() - this.sentAt;
+                try {
+                    ContinuumCallsAction.record(run, new ContinuumCallsAction.Call(this.time,
+                            getServerKey(this.serverUrl), getCommandName(), this.payloadBytes, this.responseBytes.get(),
+                            TimeUnit.NANOSECONDS.toMicros(Math.max(0L, this.sentAt - this.readyAt)),
+                            TimeUnit.NANOSECONDS.toMicros(wire),
+                            failure == null ? null : ContinuumMetrics.getStatus(failure)));
+                } catch (RuntimeException e) {
+                    // the timing report is not worth failing the step
+                    LOGGER.log(Level.FINE, "Unable to record the timing of a Continuum call", e);
+                }
+            }
+        }
+
+        /**
+         * Sends the command groups with the non-blocking client, at most {@link #MAX_PARALLEL_REQUESTS}
+         * groups at a time. No thread waits for Continuum: each response is handled on the timer,
+         * since handling it may write to disk (e.g. the ids of the pipelines initiated), which the I/O thread
+         * that received it must not do.
+         */
+        private final class AsyncCommands {
+            private final Iterator<List<Map<String, Object>>> groups;
+            private final String serverUrl;
+            private final String apiToken;
+            private final PrintStream consoleLogger;
+            private final AtomicBoolean done = new AtomicBoolean();
+            private final Set<AsyncGroup> running = new HashSet<AsyncGroup>();
+
+            AsyncCommands(List<List<Map<String, Object>>> groups, String serverUrl, String apiToken,
+                    PrintStream consoleLogger) {
+                this.groups = groups.iterator();
+                this.serverUrl = serverUrl;
+                this.apiToken = apiToken;
+                this.consoleLogger = consoleLogger;
+            }
+
+            void start() {
+                if (isDone()) {
+                    // stopped while the commands were recorded
+                    completeCommands();
+                    return;
+                }
+                List<AsyncGroup> started = new ArrayList<AsyncGroup>();
+                synchronized (this) {
+                    while (started.size() < Math.max(1, MAX_PARALLEL_REQUESTS) && this.groups.hasNext()) {
+                        AsyncGroup group = new AsyncGroup(this.groups.next().iterator());
+                        this.running.add(group);
+                        started.add(group);
+                    }
+                }
+                for (AsyncGroup group : started) {
+                    group.sendNext();
+                }
+            }
+
+            void groupDone(AsyncGroup group) {
+                AsyncGroup next = null;
+                boolean finished;
+                synchronized (this) {
+                    this.running.remove(group);
+                    if (this.groups.hasNext()) {
+                        next = new AsyncGroup(this.groups.next().iterator());
+                        this.running.add(next);
+                    }
+                    finished = this.running.isEmpty();
+                }
+                if (next != null) {
+                    next.sendNext();
+                }
+                else if (finished && this.done.compareAndSet(false, true)) {
+                    completeCommands();
+                    endStepMetrics();
+                    getContext().onSuccess(null);
+                }
+            }
+
+            boolean cancel() {
+                if (this.done.compareAndSet(false, true)) {
+                    List<AsyncGroup> cancelled;
+                    synchronized (this) {
+                        cancelled = new ArrayList<AsyncGroup>(this.running);
+                    }
+                    for (AsyncGroup group : cancelled) {
+                        group.cancel();
+                    }
+                    completeCommands();
+                    ContinuumMetrics.Call metrics = stepMetrics;
+                    if (metrics != null) {
+                        metrics.discard();
+                    }
+                    return true;
+                }
+                return false;
+            }
+
+            boolean isDone() {
+                return this.done.get();
+            }
+
+            /**
+             * Sends the commands of a group one after the other.
+             */
+            private final class AsyncGroup implements FutureCallback<String> {
+                private final Iterator<Map<String, Object>> commands;
+                private volatile Map<String, Object> current;
+                private volatile CommandPayload payload;
+                private volatile CallTimer timer;
+                private volatile Future<String> request;
+
+                AsyncGroup(Iterator<Map<String, Object>> commands) {
+                    this.commands = commands;
+                }
+
+                void sendNext() {
+                    if (isDone()) {
+                        return;
+                    }
+                    if (!this.commands.hasNext()) {
+                        groupDone(this);
+                        return;
+                    }
+                    this.current = this.commands.next();
+                    try {
+                        this.payload = getRequestPayload(this.current);
+                        this.timer = new CallTimer(serverUrl, this.payload, System.nanoTime());
+                        this.request = isQueued() ?
+                                postQueued(this.current, serverUrl, apiToken, this.payload, this) :
+                                ContinuumClient.postAsync(serverUrl, apiToken, getCommandName(), this.payload,
+                                        this.timer.measure(getResponseReader()), this);
+                    } catch (Exception e) {
+                        reportFailure(this.current, e, consoleLogger);
+                        groupDone(this);
+                    }
+                }
+
+                @Override
+                public void completed(final String response) {
+                    Timer.get().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            onCompleted(response);
+                        }
+                    });
+                }
+
+                @Override
+                public void failed(final Exception e) {
+                    Timer.get().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            onFailed(e);
+                        }
+                    });
+                }
+
+                private void onCompleted(String response) {
+                    if (isDone()) {
+                        return;
+                    }
+                    completeCommand(this.current);
+                    if (isQueued()) {
+                        this.timer.setResponse(response);
+                    }
+                    this.timer.stop(null);
+                    try {
+                        onCommandResponse(this.current, response, consoleLogger);
+                    } catch (Exception e) {
+                        reportFailure(this.current, e, consoleLogger);
+                        groupDone(this);
+                        return;
+                    }
+                    sendNext();
+                }
+
+                private void onFailed(Exception e) {
+                    if (isDone() || isSuspended()) {
+                        return;
+                    }
+                    completeCommand(this.current);
+                    this.timer.stop(e);
+                    log("Request payload: " + this.payload, consoleLogger);
+                    reportFailure(this.current, e, consoleLogger);
+                    groupDone(this);
+                }
+
+                @Override
+                public void cancelled() {
+                    // only cancelled by stop(), which completes the context
+                }
+
+                void cancel() {
+                    Future<String> r = this.request;
+                    if (r != null) {
+                        r.cancel(true);
+                    }
+                }
+            }
+        }
     }
 }
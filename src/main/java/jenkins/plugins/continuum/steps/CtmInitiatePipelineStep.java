@@ -20,7 +20,10 @@ import static org.apache.commons.lang.StringUtils.isBlank;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -32,13 +35,15 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.util.FormValidation;
 import jenkins.plugins.continuum.ContinuumConstants;
+import jenkins.plugins.continuum.EnvVarFilter;
 import jenkins.plugins.continuum.InitiatePipelineInputBuilder;
+import jenkins.plugins.continuum.PipelineIndex;
+import jenkins.plugins.continuum.ResponseReader;
+import jenkins.plugins.continuum.ResponseReaders;
 import jenkins.plugins.continuum.actions.PipelineInitiatedAction;
-import net.sf.json.JSONObject;
 
 /**
  * Step for Continuum initiate-pipeline command
@@ -57,7 +62,7 @@ public class CtmInitiatePipelineStep extends CtmCommandStep {
     /** An explicit name for the unique pipeline instance (Autogenerated if omitted.) */
     @DataBoundSetter public String instanceName;
 
-    /** Comma-separated list of environment variables whose values to be included as details. */
+    /** Comma-separated list of environment variables whose values to be included as details, see {@link EnvVarFilter}. */
     @DataBoundSetter public String environmentVariables;
 
     @DataBoundConstructor
@@ -116,6 +121,25 @@ public class CtmInitiatePipelineStep extends CtmCommandStep {
         public FormValidation doCheckDefinition(@QueryParameter String definition) {
             return FormValidation.validateRequired(definition);
         }
+
+        /**
+         * Validates the patterns of the environment variables to include.
+         *
+         * @param environmentVariables
+         *            the comma-separated patterns provided by the user
+         * @return whether or not the validation succeeded
+         */
+        public FormValidation doCheckEnvironmentVariables(@QueryParameter String environmentVariables) {
+            if (isBlank(environmentVariables)) {
+                return FormValidation.ok();
+            }
+            try {
+                EnvVarFilter.get(environmentVariables);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
     }
 
     public static class CtmInitiatePipelineStepExecution extends CtmCommandStepExecution<CtmInitiatePipelineStep> {
@@ -142,8 +166,7 @@ public class CtmInitiatePipelineStep extends CtmCommandStep {
         }
 
         @Override
-        protected Void run() throws Exception {
-            PrintStream consoleLogger = this.listener.getLogger();
+        protected List<Map<String, Object>> prepareCommands(PrintStream consoleLogger) throws Exception {
             String serverUrl = getServerUrl();
             if (isBlank(serverUrl)) {
                 markUnstable(consoleLogger, LOG_MESSAGE_INVALID_URL);
@@ -167,72 +190,63 @@ public class CtmInitiatePipelineStep extends CtmCommandStep {
                 markUnstable(consoleLogger, LOG_MESSAGE_INVALID_DEFINITION);
                 return null;
             }
+            initialize();
+            Map<String, Object> commandParams = new HashMap<String, Object>();
+            commandParams.put(ContinuumConstants.COMMAND_PARAMETER__PROJECT, step.project);
+            commandParams.put(ContinuumConstants.COMMAND_PARAMETER__GROUP, step.group);
+            commandParams.put(ContinuumConstants.COMMAND_PARAMETER__DEFINITION, step.definition);
+            if (!isBlank(this.step.instanceName)) {
+                commandParams.put(ContinuumConstants.COMMAND_PARAMETER__INSTANCE_NAME, step.instanceName);
+            }
             try {
-                initialize();
-                Map<String, Object> commandParams = new HashMap<String, Object>();
-                commandParams.put(ContinuumConstants.COMMAND_PARAMETER__PROJECT, step.project);
-                commandParams.put(ContinuumConstants.COMMAND_PARAMETER__GROUP, step.group);
-                commandParams.put(ContinuumConstants.COMMAND_PARAMETER__DEFINITION, step.definition);
-                if (!isBlank(this.step.instanceName)) {
-                    commandParams.put(ContinuumConstants.COMMAND_PARAMETER__INSTANCE_NAME, step.instanceName);
-                }
-                try {
-                    JSONObject details = getDetails();
-                    if (details != null) {
-                        commandParams.put(ContinuumConstants.COMMAND_PARAMETER__DETAILS, details);
-                    }
-                }
-                catch (Exception detailExc) {
-                    log("Failed to include details: ", consoleLogger);
-                    detailExc.printStackTrace(consoleLogger);
-                }
-                String json = converter.toContinuumAPI(run, commandParams);
-                String pipelineId = executeCommandAndExtractPipelineId(commandParams);
-                if (!isBlank(pipelineId)) {
-                    PipelineInitiatedAction pia = this.run.getAction(PipelineInitiatedAction.class);
-                    if (pia != null) {
-                        pia.addPipelineId(serverUrl, pipelineId);
-                    }
-                    else {
-                        this.run.addAction(new PipelineInitiatedAction(serverUrl, pipelineId));
-                    }
-                    log("Initiated pipeline: " + pipelineId, consoleLogger);
+                Map<String, Object> details = getDetails(consoleLogger);
+                if (details != null) {
+                    commandParams.put(ContinuumConstants.COMMAND_PARAMETER__DETAILS, details);
                 }
-                else {
-                    log("No pipeline id. Input: " + json, consoleLogger);
+            }
+            catch (Exception detailExc) {
+                log("Failed to include details: ", consoleLogger);
+                detailExc.printStackTrace(consoleLogger);
+            }
+            return Collections.singletonList(commandParams);
+        }
+
+        @Override
+        protected ResponseReader<String> getResponseReader() {
+            // only the pipeline id is needed, no need to read the rest of the response
+            return ResponseReaders.PIPELINE_ID;
+        }
+
+        @Override
+        protected void onCommandResponse(Map<String, Object> commandParams, String pipelineId,
+                PrintStream consoleLogger) throws Exception {
+            if (!isBlank(pipelineId)) {
+                String serverUrl = getServerUrl();
+                // parallel branches may initiate pipelines at the same time
+                if (PipelineInitiatedAction.addPipelineId(this.run, serverUrl, pipelineId)) {
+                    PipelineIndex.add(this.run, serverUrl, pipelineId);
                 }
-                
-            } catch (IllegalStateException ise) {
+                log("Initiated pipeline: " + pipelineId, consoleLogger);
+            }
+            else {
+                // the payload that was sent, not serialized a second time
+                log("No pipeline id. Input: " + getRequestPayload(commandParams), consoleLogger);
+            }
+        }
+
+        @Override
+        protected void onCommandFailure(Exception e, PrintStream consoleLogger) {
+            if (e instanceof IllegalStateException) {
                 markUnstable(consoleLogger,
                         "Can't initiate pipeline: this step needs a Jenkins URL " +
                         "(go to Manage Jenkins > Configure System; click Save)");
-                ise.printStackTrace(consoleLogger);
-
-            } catch (Exception e) {
+                e.printStackTrace(consoleLogger);
+            }
+            else {
                 markUnstable(consoleLogger, e.getMessage());
                 log("Can't initiate pipeline, details below", consoleLogger);
                 e.printStackTrace(consoleLogger);
             }
-            return null;
-        }
-
-        protected String executeCommandAndExtractPipelineId(Map<String, Object> commandParams) throws Exception {
-            String commandResult = executeCommand(commandParams);
-            if (!isBlank(commandResult)) {
-                JSONObject commandResultObject = JSONObject.fromObject(commandResult);
-                if (commandResultObject != null) {
-                    if (commandResultObject.has("Response")) {
-                        JSONObject respObj = commandResultObject.getJSONObject("Response");
-                        if (respObj != null && respObj.has("_id")) {
-                            return respObj.getString("_id");
-                        }
-                    }
-                    else {
-                        // TODO try to parse error
-                    }
-                }
-            }
-            return null;
         }
 
         /**
@@ -260,21 +274,24 @@ public class CtmInitiatePipelineStep extends CtmCommandStep {
             }
         }
 
-        private JSONObject getDetails() throws Exception{
+        /**
+         * Gets the details sent with the pipeline: the selected environment variables, if any.
+         * The variables are not copied, the payload is serialized from them directly.
+         */
+        private Map<String, Object> getDetails(PrintStream consoleLogger) throws Exception {
             if (!isBlank(this.step.environmentVariables)) {
-                String[] subset = this.step.environmentVariables.trim().split("\\s*,\\s*");
-                if (subset.length == 1 && "*".equals(subset[0])) {
-                	subset = null;
-                }
-                EnvVars eVars = getEnvVars(subset, true /* replaceDots */);
-                JSONObject details = JSONObject.fromObject(eVars);
-                if (details != null && !details.isEmpty()) {
-                    return new JSONObject()
-                            .element("automation", new JSONObject()
-                                    .element("version", "1.0")
-                                    .element("type", "jenkins")
-                                    .element("environmentVariables", details)
-                            );
+                EnvVarFilter.Selection selection =
+                        getEnvVars(EnvVarFilter.get(this.step.environmentVariables), true /* replaceDots */);
+                if (selection != null && !selection.getVariables().isEmpty()) {
+                    if (selection.getTruncated() > 0 || selection.getOmitted() > 0) {
+                        log("Environment variables truncated: " + selection.getTruncated()
+                                + ", left out: " + selection.getOmitted(), consoleLogger);
+                    }
+                    Map<String, Object> automation = new LinkedHashMap<String, Object>();
+                    automation.put("version", "1.0");
+                    automation.put("type", "jenkins");
+                    automation.put("environmentVariables", selection.getVariables());
+                    return Collections.<String, Object>singletonMap("automation", automation);
                 }
             }
             return null;
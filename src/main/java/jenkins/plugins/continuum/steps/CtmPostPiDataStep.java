@@ -20,9 +20,11 @@ import static org.apache.commons.lang.StringUtils.isBlank;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -40,7 +42,6 @@ import hudson.util.FormValidation;
 import jenkins.plugins.continuum.ContinuumConstants;
 import jenkins.plugins.continuum.PostPiDataInputBuilder;
 import jenkins.plugins.continuum.actions.PipelineInitiatedAction;
-import net.sf.json.JSONObject;
 
 /**
  * Pipeline step for Continuum post-pi-data command 
@@ -56,6 +57,9 @@ public class CtmPostPiDataStep extends CtmCommandStep {
     /** The workspace data value. */
     @DataBoundSetter public String value;
 
+    /** A JSON object of workspace data keys and values, to send along with or instead of 'key'/'value'. */
+    @DataBoundSetter public String data;
+
     /** Whether to post the data to the last initiated pipeline */
     @DataBoundSetter public boolean useLastPi;
 
@@ -84,24 +88,55 @@ public class CtmPostPiDataStep extends CtmCommandStep {
         }
 
         /**
-         * Validates that the user provided a data key.
+         * Validates that the user provided a data key, unless the data is given as a JSON object.
          *
          * @param key
          *            the workspace data key
+         * @param data
+         *            the JSON object of workspace data
          * @return whether or not the validation succeeded
          */
-        public FormValidation doCheckKey(@QueryParameter String key) {
+        public FormValidation doCheckKey(@QueryParameter String key, @QueryParameter String data) {
+            if (isBlank(key) && !isBlank(data)) {
+                return FormValidation.ok();
+            }
             return FormValidation.validateRequired(key);
         }
 
         /**
-         * Validates that the user provided a value for the specified key.
+         * Validates that the workspace data, if any, is a JSON object.
+         *
+         * @param data
+         *            the JSON object of workspace data
+         * @return whether or not the validation succeeded
+         */
+        public FormValidation doCheckData(@QueryParameter String data) {
+            try {
+                PostPiDataInputBuilder.toDataEntries(null, null, data);
+                return FormValidation.ok();
+            }
+            catch (IllegalArgumentException e) {
+                return FormValidation.error(CtmPostPiDataStepExecution.LOG_MESSAGE_INVALID_DATA + " " + e.getMessage());
+            }
+        }
+
+        /**
+         * Validates that the user provided a value for the specified key, unless only the data is given
+         * as a JSON object.
          *
          * @param value
          *            the data value provided by the user
+         * @param key
+         *            the workspace data key
+         * @param data
+         *            the JSON object of workspace data
          * @return whether or not the validation succeeded
          */
-        public FormValidation doCheckValue(@QueryParameter String value) {
+        public FormValidation doCheckValue(@QueryParameter String value, @QueryParameter String key,
+                @QueryParameter String data) {
+            if (isBlank(key) && !isBlank(data)) {
+                return FormValidation.ok();
+            }
             return FormValidation.validateRequired(value);
         }
     }
@@ -116,6 +151,9 @@ public class CtmPostPiDataStep extends CtmCommandStep {
         /** Message for invalid data value */
         public static final String LOG_MESSAGE_INVALID_VALUE = "The worksapce data value is missing.";
 
+        /** Message for invalid data object */
+        public static final String LOG_MESSAGE_INVALID_DATA = "The workspace data is not a JSON object of keys and values.";
+
         public CtmPostPiDataStepExecution(final CtmPostPiDataStep step, @Nonnull final StepContext ctx)
                 throws IOException, InterruptedException {
             super(step, ctx);
@@ -127,8 +165,7 @@ public class CtmPostPiDataStep extends CtmCommandStep {
         }
 
         @Override
-        protected Void run() throws Exception {
-            PrintStream consoleLogger = this.listener.getLogger();
+        protected List<Map<String, Object>> prepareCommands(PrintStream consoleLogger) throws Exception {
             String serverUrl = getServerUrl();
             if (isBlank(serverUrl)) {
                 markUnstable(consoleLogger, LOG_MESSAGE_INVALID_URL);
@@ -136,51 +173,85 @@ public class CtmPostPiDataStep extends CtmCommandStep {
             }
 
             String key = this.step.key;
-            if (isBlank(key)) {
+            String data = this.step.data;
+            if (isBlank(key) && isBlank(data)) {
                 markUnstable(consoleLogger, LOG_MESSAGE_INVALID_KEY);
                 return null;
             }
 
             String value = this.step.value;
-            if (isBlank(value)) {
+            if (!isBlank(key) && isBlank(value)) {
                 markUnstable(consoleLogger, LOG_MESSAGE_INVALID_VALUE);
                 return null;
             }
 
+            Map<String, Object> entries;
             try {
-                initialize();
-                Set<String> pis = getPipelineIds();
-                if (pis == null || pis.isEmpty()) {
-                    log("There are no pipelines to post data to", consoleLogger);
-                    return null;
-                }
-                for (String pi : pis) {
+                entries = PostPiDataInputBuilder.toDataEntries(key, value, data);
+            }
+            catch (IllegalArgumentException e) {
+                markUnstable(consoleLogger, LOG_MESSAGE_INVALID_DATA + " " + e.getMessage());
+                return null;
+            }
+
+            initialize();
+            Set<String> pis = getPipelineIds();
+            if (pis == null || pis.isEmpty()) {
+                log("There are no pipelines to post data to", consoleLogger);
+                return null;
+            }
+            // The API takes one key per request, the commands share the connection and credentials
+            List<Map<String, Object>> commands = new ArrayList<Map<String, Object>>(pis.size() * entries.size());
+            for (String pi : pis) {
+                for (Map.Entry<String, Object> entry : entries.entrySet()) {
                     Map<String, Object> commandParams = new HashMap<String, Object>();
                     commandParams.put(ContinuumConstants.COMMAND_PARAMETER__PI, pi);
-                    commandParams.put(ContinuumConstants.COMMAND_PARAMETER__KEY, key);
-                    Object valueObj = null;
-                    try {
-                        valueObj = JSONObject.fromObject(value);
-                    }
-                    catch (Exception e) {
-                        valueObj = value;
-                    }
-                    commandParams.put(ContinuumConstants.COMMAND_PARAMETER__VALUE, valueObj);
-                    String responseString = executeCommand(commandParams);
-                    log("Pipeline data posted: " + responseString, consoleLogger);
+                    commandParams.put(ContinuumConstants.COMMAND_PARAMETER__KEY, entry.getKey());
+                    commandParams.put(ContinuumConstants.COMMAND_PARAMETER__VALUE, entry.getValue());
+                    commands.add(commandParams);
                 }
+            }
+            return commands;
+        }
+
+        @Override
+        protected Object getCommandGroup(Map<String, Object> commandParams) {
+            // Pipelines get their data concurrently, and independently of each other's failures
+            return commandParams.get(ContinuumConstants.COMMAND_PARAMETER__PI);
+        }
+
+        @Override
+        protected boolean isQueuedWrite() {
+            return true;
+        }
 
-            } catch (IllegalStateException ise) {
+        @Override
+        protected void onCommandResponse(Map<String, Object> commandParams, String response,
+                PrintStream consoleLogger) {
+            log("Pipeline data posted (" + commandParams.get(ContinuumConstants.COMMAND_PARAMETER__PI) + "): "
+                    + response, consoleLogger);
+        }
+
+        @Override
+        protected void onCommandFailure(Map<String, Object> commandParams, Exception e, PrintStream consoleLogger) {
+            log("Failed to post data on pipeline " + commandParams.get(ContinuumConstants.COMMAND_PARAMETER__PI),
+                    consoleLogger);
+            onCommandFailure(e, consoleLogger);
+        }
+
+        @Override
+        protected void onCommandFailure(Exception e, PrintStream consoleLogger) {
+            if (e instanceof IllegalStateException) {
                 markUnstable(consoleLogger,
                         "this step needs a Jenkins URL " +
                         "(go to Manage Jenkins > Configure System; click Save)");
-                ise.printStackTrace(consoleLogger);
-            } catch (Exception e) {
+                e.printStackTrace(consoleLogger);
+            }
+            else {
                 markUnstable(consoleLogger, e.getMessage());
                 log("Failed to post PI data...Details: ", consoleLogger);
                 e.printStackTrace(consoleLogger);
             }
-            return null;
         }
 
         private Set<String> getPipelineIds() {
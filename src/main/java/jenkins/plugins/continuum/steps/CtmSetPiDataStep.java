@@ -20,9 +20,11 @@ import static org.apache.commons.lang.StringUtils.isBlank;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -41,7 +43,6 @@ import jenkins.plugins.continuum.ContinuumConstants;
 import jenkins.plugins.continuum.PostPiDataInputBuilder;
 import jenkins.plugins.continuum.actions.PipelineInitiatedAction;
 import jenkins.plugins.continuum.steps.CtmPostPiDataStep.CtmPostPiDataStepExecution;
-import net.sf.json.JSONObject;
 
 public class CtmSetPiDataStep extends CtmCommandStep {
 
@@ -54,6 +55,9 @@ public class CtmSetPiDataStep extends CtmCommandStep {
     /** The workspace data value. */
     @DataBoundSetter public String value;
 
+    /** A JSON object of workspace data keys and values, to send along with or instead of 'key'/'value'. */
+    @DataBoundSetter public String data;
+
     /** Whether to post the data to the last initiated pipeline */
     @DataBoundSetter public boolean useLastPi;
 
@@ -82,24 +86,55 @@ public class CtmSetPiDataStep extends CtmCommandStep {
         }
 
         /**
-         * Validates that the user provided a data key.
+         * Validates that the user provided a data key, unless the data is given as a JSON object.
          *
          * @param key
          *            the workspace data key
+         * @param data
+         *            the JSON object of workspace data
          * @return whether or not the validation succeeded
          */
-        public FormValidation doCheckKey(@QueryParameter String key) {
+        public FormValidation doCheckKey(@QueryParameter String key, @QueryParameter String data) {
+            if (isBlank(key) && !isBlank(data)) {
+                return FormValidation.ok();
+            }
             return FormValidation.validateRequired(key);
         }
 
         /**
-         * Validates that the user provided a value for the specified key.
+         * Validates that the workspace data, if any, is a JSON object.
+         *
+         * @param data
+         *            the JSON object of workspace data
+         * @return whether or not the validation succeeded
+         */
+        public FormValidation doCheckData(@QueryParameter String data) {
+            try {
+                PostPiDataInputBuilder.toDataEntries(null, null, data);
+                return FormValidation.ok();
+            }
+            catch (IllegalArgumentException e) {
+                return FormValidation.error(CtmPostPiDataStepExecution.LOG_MESSAGE_INVALID_DATA + " " + e.getMessage());
+            }
+        }
+
+        /**
+         * Validates that the user provided a value for the specified key, unless only the data is given
+         * as a JSON object.
          *
          * @param value
          *            the data value provided by the user
+         * @param key
+         *            the workspace data key
+         * @param data
+         *            the JSON object of workspace data
          * @return whether or not the validation succeeded
          */
-        public FormValidation doCheckValue(@QueryParameter String value) {
+        public FormValidation doCheckValue(@QueryParameter String value, @QueryParameter String key,
+                @QueryParameter String data) {
+            if (isBlank(key) && !isBlank(data)) {
+                return FormValidation.ok();
+            }
             return FormValidation.validateRequired(value);
         }
     }
@@ -119,8 +154,7 @@ public class CtmSetPiDataStep extends CtmCommandStep {
         }
 
         @Override
-        protected Void run() throws Exception {
-            PrintStream consoleLogger = this.listener.getLogger();
+        protected List<Map<String, Object>> prepareCommands(PrintStream consoleLogger) throws Exception {
             String serverUrl = getServerUrl();
             if (isBlank(serverUrl)) {
                 markUnstable(consoleLogger, LOG_MESSAGE_INVALID_URL);
@@ -128,51 +162,97 @@ public class CtmSetPiDataStep extends CtmCommandStep {
             }
 
             String key = this.step.key;
-            if (isBlank(key)) {
+            String data = this.step.data;
+            if (isBlank(key) && isBlank(data)) {
                 markUnstable(consoleLogger, CtmPostPiDataStepExecution.LOG_MESSAGE_INVALID_KEY);
                 return null;
             }
 
             String value = this.step.value;
-            if (isBlank(value)) {
+            if (!isBlank(key) && isBlank(value)) {
                 markUnstable(consoleLogger, CtmPostPiDataStepExecution.LOG_MESSAGE_INVALID_VALUE);
                 return null;
             }
 
+            Map<String, Object> entries;
             try {
-                initialize();
-                Set<String> pis = getPipelineIds();
-                if (pis == null || pis.isEmpty()) {
-                    log("There are no pipelines to set data on", consoleLogger);
-                    return null;
-                }
-                for (String pi : pis) {
+                entries = PostPiDataInputBuilder.toDataEntries(key, value, data);
+            }
+            catch (IllegalArgumentException e) {
+                markUnstable(consoleLogger, CtmPostPiDataStepExecution.LOG_MESSAGE_INVALID_DATA + " " + e.getMessage());
+                return null;
+            }
+
+            initialize();
+            Set<String> pis = getPipelineIds();
+            if (pis == null || pis.isEmpty()) {
+                log("There are no pipelines to set data on", consoleLogger);
+                return null;
+            }
+            // The API takes one key per request, the commands share the connection and credentials
+            List<Map<String, Object>> commands = new ArrayList<Map<String, Object>>(pis.size() * entries.size());
+            for (String pi : pis) {
+                for (Map.Entry<String, Object> entry : entries.entrySet()) {
                     Map<String, Object> commandParams = new HashMap<String, Object>();
                     commandParams.put(ContinuumConstants.COMMAND_PARAMETER__PI, pi);
-                    commandParams.put(ContinuumConstants.COMMAND_PARAMETER__KEY, key);
-                    Object valueObj = null;
-                    try {
-                        valueObj = JSONObject.fromObject(value);
-                    }
-                    catch (Exception e) {
-                        valueObj = value;
-                    }
-                    commandParams.put(ContinuumConstants.COMMAND_PARAMETER__VALUE, valueObj);
-                    String responseString = executeCommand(commandParams);
-                    log("Pipeline data set: " + responseString, consoleLogger);
+                    commandParams.put(ContinuumConstants.COMMAND_PARAMETER__KEY, entry.getKey());
+                    commandParams.put(ContinuumConstants.COMMAND_PARAMETER__VALUE, entry.getValue());
+                    commands.add(commandParams);
                 }
+            }
+            return commands;
+        }
+
+        @Override
+        protected Object getCommandGroup(Map<String, Object> commandParams) {
+            // Pipelines get their data concurrently, and independently of each other's failures
+            return commandParams.get(ContinuumConstants.COMMAND_PARAMETER__PI);
+        }
+
+        @Override
+        protected boolean isQueuedWrite() {
+            return true;
+        }
+
+        @Override
+        protected boolean isReplayable() {
+            return true;
+        }
 
-            } catch (IllegalStateException ise) {
+        @Override
+        protected String getCoalesceKey(Map<String, Object> commandParams) {
+            // Setting the same key twice only keeps the last value, a pending write can be skipped
+            return commandParams.get(ContinuumConstants.COMMAND_PARAMETER__PI) + "/"
+                    + commandParams.get(ContinuumConstants.COMMAND_PARAMETER__KEY);
+        }
+
+        @Override
+        protected void onCommandResponse(Map<String, Object> commandParams, String response,
+                PrintStream consoleLogger) {
+            log("Pipeline data set (" + commandParams.get(ContinuumConstants.COMMAND_PARAMETER__PI) + "): "
+                    + response, consoleLogger);
+        }
+
+        @Override
+        protected void onCommandFailure(Map<String, Object> commandParams, Exception e, PrintStream consoleLogger) {
+            log("Failed to set data on pipeline " + commandParams.get(ContinuumConstants.COMMAND_PARAMETER__PI),
+                    consoleLogger);
+            onCommandFailure(e, consoleLogger);
+        }
+
+        @Override
+        protected void onCommandFailure(Exception e, PrintStream consoleLogger) {
+            if (e instanceof IllegalStateException) {
                 markUnstable(consoleLogger,
                         "this step needs a Jenkins URL " +
                         "(go to Manage Jenkins > Configure System; click Save)");
-                ise.printStackTrace(consoleLogger);
-            } catch (Exception e) {
+                e.printStackTrace(consoleLogger);
+            }
+            else {
                 markUnstable(consoleLogger, e.getMessage());
                 log("Failed to set PI data...Details: ", consoleLogger);
                 e.printStackTrace(consoleLogger);
             }
-            return null;
         }
 
         private Set<String> getPipelineIds() {
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.steps;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.plugins.continuum.ContinuumClient;
+import jenkins.plugins.continuum.ContinuumConstants;
+import jenkins.plugins.continuum.CredentialsCache;
+import jenkins.plugins.continuum.actions.ContinuumWebhook;
+import jenkins.plugins.continuum.actions.PipelineInitiatedAction;
+import jenkins.util.Timer;
+
+/**
+ * Pipeline step waiting for a Continuum pipeline instance to reach a status, as notified by Continuum
+ * to the {@link ContinuumWebhook}, or as polled by the {@link PipelinePoller} when the webhook is disabled.
+ * With the webhook, the status is still polled once when the step starts or resumes, then slowly, in case
+ * it was reached before or its notification lost. The step holds no thread while it waits, and returns
+ * the status.
+ */
+public class CtmWaitForPipelineStep extends Step {
+
+    /** The statuses waited for by default, those of the finished pipelines. */
+    public static final String DEFAULT_STATUS = "success,failure,canceled";
+
+    private final String ctmUrl;
+
+    /** The continuum pipeline identifier, the last initiated pipeline if not set */
+    @DataBoundSetter public String pi;
+
+    /** The statuses to wait for, comma-separated */
+    @DataBoundSetter public String status;
+
+    /** Whether to poll Continuum for the status even when the webhook is enabled */
+    @DataBoundSetter public boolean poll;
+
+    /** The credentials of the status queries */
+    @DataBoundSetter public String credentialsId;
+
+    /** Seconds after which the step fails if the pipeline has not reached a status, 0 to wait as long as needed */
+    @DataBoundSetter public int timeout;
+
+    @DataBoundConstructor
+    public CtmWaitForPipelineStep(String serverUrl) {
+        this.ctmUrl = serverUrl;
+    }
+
+    public String getServerUrl() {
+        return this.ctmUrl;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new CtmWaitForPipelineStepExecution(this, context);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends CtmCommandStep.CtmCommandStepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "ctmWaitForPipeline";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Wait for a Continuum pipeline instance to reach a status.";
+        }
+    }
+
+    public static class CtmWaitForPipelineStepExecution extends StepExecution implements PipelineWaiters.Waiter {
+        private static final long serialVersionUID = 1L;
+        private static final Logger LOGGER = Logger.getLogger(CtmWaitForPipelineStepExecution.class.getName());
+
+        private final transient CtmWaitForPipelineStep step;
+        private String serverUrl;
+        private String pipelineId;
+        private Set<String> statuses;
+        /** The server polled for the status, null if the step waits for the webhook. */
+        private String pollServerUrl;
+        private String credentialsId;
+        /** Seconds the step waits at most, 0 for no timeout. */
+        private int timeout;
+        /** When the step fails if still waiting, in milliseconds since the epoch, 0 for no timeout. */
+        private long deadline;
+        private transient volatile ScheduledFuture<?> timeoutTask;
+
+        public CtmWaitForPipelineStepExecution(CtmWaitForPipelineStep step, @Nonnull StepContext context) {
+            super(context);
+            this.step = step;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            EnvVars env = getContext().get(EnvVars.class);
+            String serverUrl = this.step.getServerUrl();
+            if (isBlank(serverUrl)) {
+                serverUrl = env == null ? null : env.get(ContinuumConstants.ENV_VARIABLE__SERVER_URL);
+            }
+            String id = this.step.pi;
+            if (isBlank(id)) {
+                PipelineInitiatedAction pia = getContext().get(Run.class).getAction(PipelineInitiatedAction.class);
+                id = pia == null ? null : pia.getLastPipelineId(serverUrl);
+                if (isBlank(id)) {
+                    throw new AbortException("No pipeline to wait for: no pipeline id given, and no pipeline initiated"
+                            + " on " + serverUrl + " by this build.");
+                }
+            }
+            if (isBlank(serverUrl)) {
+                throw new AbortException("No Continuum server given for pipeline " + id.trim() + ".");
+            }
+            try {
+                ContinuumClient.getServerKey(serverUrl.trim());
+            } catch (IllegalArgumentException e) {
+                throw new AbortException("Invalid Continuum server URL " + serverUrl + ": " + e.getMessage());
+            }
+            this.serverUrl = serverUrl.trim();
+            if (this.step.poll || !ContinuumWebhook.isEnabled()) {
+                this.pollServerUrl = this.serverUrl;
+            }
+            this.credentialsId = this.step.credentialsId;
+            if (isBlank(this.credentialsId) && env != null) {
+                this.credentialsId = env.get(ContinuumConstants.ENV_VARIABLE__CREDENTIAL_ID);
+            }
+            this.pipelineId = id.trim();
+            this.statuses = parseStatuses(isBlank(this.step.status) ? DEFAULT_STATUS : this.step.status);
+            if (this.step.timeout > 0) {
+                this.timeout = this.step.timeout;
+                this.deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(this.timeout);
+            }
+            String apiToken = getAPIToken();
+            if (this.pollServerUrl == null) {
+                log("Waiting for pipeline " + this.pipelineId + " to be " + this.statuses);
+            }
+            else {
+                log("Polling " + this.pollServerUrl + " until pipeline " + this.pipelineId + " is " + this.statuses);
+            }
+            PipelineWaiters.add(this.serverUrl, this.pipelineId, this);
+            scheduleTimeout();
+            // the status may already be reached, with the webhook too
+            watch(apiToken);
+            return false;
+        }
+
+        private void watch(String apiToken) {
+            if (this.pollServerUrl == null) {
+                PipelinePoller.watch(this.serverUrl, apiToken, this.pipelineId, true);
+            }
+            else {
+                PipelinePoller.watch(this.pollServerUrl, apiToken, this.pipelineId, false);
+            }
+        }
+
+        /**
+         * Fails the step at the deadline if it still waits then, right away if the deadline passed.
+         */
+        private void scheduleTimeout() {
+            if (this.deadline <= 0) {
+                return;
+            }
+            this.timeoutTask = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (PipelineWaiters.remove(serverUrl, pipelineId, CtmWaitForPipelineStepExecution.this)) {
+                        String msg = "Pipeline " + pipelineId + " is not " + statuses + " after " + timeout + "s";
+                        log(msg);
+                        getContext().onFailure(new AbortException(msg));
+                    }
+                }
+            }, Math.max(0L, this.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+
+        private void cancelTimeout() {
+            ScheduledFuture<?> task = this.timeoutTask;
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            cancelTimeout();
+            if (this.pipelineId == null || PipelineWaiters.remove(this.serverUrl, this.pipelineId, this)) {
+                getContext().onFailure(cause);
+            }
+        }
+
+        @Override
+        public void onResume() {
+            if (this.pipelineId == null) {
+                return;
+            }
+            // the token is not saved with the step, and the notifications received while Jenkins was down
+            // are lost: the status is read again
+            String apiToken;
+            try {
+                apiToken = getAPIToken();
+            } catch (Exception e) {
+                getContext().onFailure(e);
+                return;
+            }
+            PipelineWaiters.add(this.serverUrl, this.pipelineId, this);
+            scheduleTimeout();
+            watch(apiToken);
+        }
+
+        @Override
+        public String getStatus() {
+            return "waiting for pipeline " + this.pipelineId + " to be " + this.statuses;
+        }
+
+        @Override
+        public boolean isWaitingFor(String status) {
+            return this.statuses.contains(status);
+        }
+
+        @Override
+        public void resume(String status) {
+            cancelTimeout();
+            log("Pipeline " + this.pipelineId + " is " + status);
+            getContext().onSuccess(status);
+        }
+
+        @Override
+        public void fail(Exception cause) {
+            cancelTimeout();
+            String msg = "Unable to read the status of pipeline " + this.pipelineId + " from " + this.serverUrl
+                    + ": " + cause.getMessage();
+            log(msg);
+            getContext().onFailure(new AbortException(msg));
+        }
+
+        /**
+         * Resolves the token of the status queries, null if no credentials are given.
+         */
+        private String getAPIToken() throws IOException, InterruptedException {
+            if (isBlank(this.credentialsId)) {
+                return null;
+            }
+            Run<?, ?> run = getContext().get(Run.class);
+            String token = CredentialsCache.getApiToken(CtmCommandStep.CtmCommandStepExecution.getCredentials(
+                    run.getParent(), this.credentialsId, this.serverUrl));
+            if (token == null) {
+                throw new AbortException("No API token in the credentials " + this.credentialsId
+                        + " for " + this.serverUrl + ".");
+            }
+            return token;
+        }
+
+        private void log(String msg) {
+            try {
+                getContext().get(TaskListener.class).getLogger().println("Continuum - " + msg);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to log " + msg, e);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.FINE, "Unable to log " + msg, e);
+            }
+        }
+
+        static Set<String> parseStatuses(String statuses) {
+            Set<String> result = new LinkedHashSet<String>();
+            for (String status : statuses.split(",")) {
+                if (!isBlank(status)) {
+                    result.add(status.trim().toLowerCase(Locale.ENGLISH));
+                }
+            }
+            return result;
+        }
+    }
+}
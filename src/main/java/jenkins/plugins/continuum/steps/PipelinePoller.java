@@ -0,0 +1,412 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.steps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.concurrent.FutureCallback;
+
+import jenkins.plugins.continuum.CommandPayload;
+import jenkins.plugins.continuum.ContinuumClient;
+import jenkins.plugins.continuum.ContinuumConstants;
+import jenkins.plugins.continuum.ContinuumResponseException;
+import jenkins.plugins.continuum.ResponseReaders;
+import jenkins.util.Timer;
+
+/**
+ * Polls Continuum for the status of the pipelines waited for by {@link PipelineWaiters}, for the controllers
+ * Continuum can't notify through the webhook. With the webhook, the pipelines are still polled as a fallback:
+ * right away, for a status reached before the step waited for it, then every {@link #MAX_INTERVAL}, for a
+ * notification lost.
+ * <p>
+ * A single timer task polls on behalf of every waiting build. Each pipeline is polled after an interval
+ * doubled each time its status is unchanged, from {@link #MIN_INTERVAL} up to {@link #MAX_INTERVAL}, and reset
+ * when the status changes. The pipelines due are queried together per server with the non-blocking client,
+ * at most {@link #MAX_REQUESTS} at a time to each server, and the statuses read are notified to the waiting steps
+ * on the timer, not on the I/O threads. A pipeline is no longer polled once no step waits for it.
+ * <p>
+ * Errors that polling again won't fix, i.e. a 4xx response other than 429 (e.g. 401 for a revoked token,
+ * or an unknown pipeline) or a response without a status, fail the steps waiting for the pipeline.
+ * Other errors are logged, and the pipeline polled again after the next interval. The fallback polling of a
+ * pipeline only stops on such errors, the steps still waiting for the webhook.
+ */
+public final class PipelinePoller {
+
+    private static final Logger LOGGER = Logger.getLogger(PipelinePoller.class.getName());
+
+    /** Milliseconds between two polls of a pipeline whose status just changed. */
+    static final long MIN_INTERVAL = Long.getLong(PipelinePoller.class.getName() + ".minInterval", 5000L);
+
+    /** Maximum milliseconds between two polls of a pipeline. */
+    static final long MAX_INTERVAL = Long.getLong(PipelinePoller.class.getName() + ".maxInterval", 120000L);
+
+    /** Maximum status queries in flight to a server. */
+    static final int MAX_REQUESTS = Integer.getInteger(PipelinePoller.class.getName() + ".maxRequests", 10);
+
+    private static PipelinePoller instance;
+
+    /**
+     * Queries the status of a pipeline.
+     */
+    interface StatusQuery {
+        /**
+         * @param callback completed with the status, null if the response has none
+         */
+        void query(String serverUrl, String apiToken, String pipelineId, FutureCallback<String> callback);
+    }
+
+    private static final StatusQuery CONTINUUM = new StatusQuery() {
+        @Override
+        public void query(String serverUrl, String apiToken, String pipelineId, FutureCallback<String> callback) {
+            Map<String, Object> parameters = new HashMap<String, Object>(2);
+            parameters.put(ContinuumConstants.COMMAND_PARAMETER__PI, pipelineId);
+            CommandPayload payload;
+            try {
+                payload = CommandPayload.of(parameters);
+            } catch (IOException e) {
+                callback.failed(e);
+                return;
+            }
+            ContinuumClient.postAsync(serverUrl, apiToken, ContinuumConstants.COMMAND_NAME__GET_PIPELINE_INSTANCE,
+                    payload, ResponseReaders.PIPELINE_STATUS, callback);
+        }
+    };
+
+    private final ScheduledExecutorService executor;
+    private final StatusQuery statusQuery;
+    private final long minInterval;
+    private final long maxInterval;
+    private final int maxRequests;
+
+    /** The polled pipelines per server URL, guarded by this. */
+    private final Map<String, Server> servers = new HashMap<String, Server>();
+
+    /** The next poll, null if none is scheduled, guarded by this. */
+    private ScheduledFuture<?> nextPoll;
+    private long nextPollTime;
+
+    PipelinePoller(ScheduledExecutorService executor, StatusQuery statusQuery, long minInterval, long maxInterval,
+            int maxRequests) {
+        this.executor = executor;
+        this.statusQuery = statusQuery;
+        this.minInterval = minInterval;
+        this.maxInterval = Math.max(minInterval, maxInterval);
+        this.maxRequests = Math.max(1, maxRequests);
+    }
+
+    static synchronized PipelinePoller get() {
+        // the timer is shut down with Jenkins, and replaced when it starts again in the same JVM
+        if (instance == null || instance.executor.isShutdown()) {
+            instance = new PipelinePoller(Timer.get(), CONTINUUM, MIN_INTERVAL, MAX_INTERVAL, MAX_REQUESTS);
+        }
+        return instance;
+    }
+
+    /**
+     * Polls the status of a pipeline until no step waits for it. The step must wait for the pipeline
+     * in {@link PipelineWaiters} first.
+     *
+     * @param apiToken the token of the queries, replacing the one of the steps already waiting for the pipeline
+     * @param fallback whether the status is notified by the webhook, the pipeline then being polled once right
+     *            away, then only every {@link #MAX_INTERVAL}
+     */
+    public static void watch(String serverUrl, String apiToken, String pipelineId, boolean fallback) {
+        get().add(serverUrl, apiToken, pipelineId, fallback);
+    }
+
+    /** Number of pipelines polled, for all the servers. */
+    public static int size() {
+        return get().count();
+    }
+
+    synchronized void add(String serverUrl, String apiToken, String pipelineId) {
+        add(serverUrl, apiToken, pipelineId, false);
+    }
+
+    synchronized void add(String serverUrl, String apiToken, String pipelineId, boolean fallback) {
+        Server server = this.servers.get(serverUrl);
+        if (server == null) {
+            server = new Server(serverUrl);
+            this.servers.put(serverUrl, server);
+        }
+        Polled polled = server.pipelines.get(pipelineId);
+        if (polled == null) {
+            polled = new Polled(server, pipelineId, fallback);
+            server.pipelines.put(pipelineId, polled);
+        }
+        if (!fallback || polled.fallback) {
+            polled.apiToken = apiToken;
+        }
+        // polled as often as the steps that can't rely on the webhook need
+        polled.fallback &= fallback;
+        // the new step may wait for the current status, notified again once read
+        polled.status = null;
+        polled.interval = polled.fallback ? this.maxInterval : this.minInterval;
+        long now = now();
+        polled.due = now;
+        schedule(now);
+    }
+
+    synchronized int count() {
+        int count = 0;
+        for (Server server : this.servers.values()) {
+            count += server.pipelines.size();
+        }
+        return count;
+    }
+
+    /**
+     * The milliseconds before the next poll of a pipeline after the last one, -1 if the pipeline is not polled.
+     */
+    synchronized long getInterval(String serverUrl, String pipelineId) {
+        Server server = this.servers.get(serverUrl);
+        Polled polled = server == null ? null : server.pipelines.get(pipelineId);
+        return polled == null ? -1L : polled.interval;
+    }
+
+    /**
+     * Sends the queries of the pipelines due, and schedules the next poll.
+     */
+    void poll() {
+        List<Polled> due = new ArrayList<Polled>();
+        synchronized (this) {
+            this.nextPoll = null;
+            long now = now();
+            long next = Long.MAX_VALUE;
+            for (Iterator<Server> servers = this.servers.values().iterator(); servers.hasNext();) {
+                Server server = servers.next();
+                server.heldBack = false;
+                for (Iterator<Polled> pipelines = server.pipelines.values().iterator(); pipelines.hasNext();) {
+                    Polled polled = pipelines.next();
+                    if (polled.inFlight) {
+                        continue;
+                    }
+                    if (!PipelineWaiters.isWaiting(server.url, polled.pipelineId)) {
+                        pipelines.remove();
+                    }
+                    else if (polled.due > now) {
+                        next = Math.min(next, polled.due);
+                    }
+                    else if (server.inFlight < this.maxRequests) {
+                        polled.inFlight = true;
+                        server.inFlight++;
+                        due.add(polled);
+                    }
+                    else {
+                        // polled as soon as a query to the server completes
+                        server.heldBack = true;
+                    }
+                }
+                if (server.pipelines.isEmpty()) {
+                    servers.remove();
+                }
+            }
+            if (next != Long.MAX_VALUE) {
+                schedule(next);
+            }
+        }
+        for (Polled polled : due) {
+            query(polled);
+        }
+    }
+
+    private void query(final Polled polled) {
+        try {
+            this.statusQuery.query(polled.server.url, polled.apiToken, polled.pipelineId, new FutureCallback<String>() {
+                @Override
+                public void completed(String status) {
+                    if (status == null) {
+                        PipelinePoller.this.completed(polled, null, new IOException("The Continuum response to the"
+                                + " status query of pipeline " + polled.pipelineId + " has no status"));
+                    }
+                    else {
+                        PipelinePoller.this.completed(polled, status, null);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    if (isPermanent(e)) {
+                        PipelinePoller.this.completed(polled, null, e);
+                    }
+                    else {
+                        LOGGER.log(Level.FINE, "Unable to poll the status of the Continuum pipeline "
+                                + polled.pipelineId, e);
+                        PipelinePoller.this.completed(polled, null, null);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    PipelinePoller.this.completed(polled, null, null);
+                }
+            });
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Unable to poll the status of the Continuum pipeline " + polled.pipelineId, e);
+            completed(polled, null, null);
+        }
+    }
+
+    /**
+     * Whether a query failed for a reason that polling again won't fix.
+     */
+    static boolean isPermanent(Exception e) {
+        if (e instanceof ContinuumResponseException) {
+            int status = ((ContinuumResponseException) e).getStatusCode();
+            return status >= 400 && status < 500 && status != 429 && status != 408;
+        }
+        return false;
+    }
+
+    /**
+     * Computes the next poll of a pipeline and notifies its status if it changed, or stops polling it
+     * and fails the steps waiting for it.
+     *
+     * @param status the status read, null if the query failed
+     * @param failure the error failing the waiting steps, null to poll the pipeline again
+     */
+    private void completed(final Polled polled, final String status, final Exception failure) {
+        boolean changed;
+        boolean fallback;
+        synchronized (this) {
+            polled.inFlight = false;
+            polled.server.inFlight--;
+            long now = now();
+            if (failure != null) {
+                polled.server.pipelines.remove(polled.pipelineId);
+                changed = false;
+                fallback = polled.fallback;
+                if (polled.server.heldBack) {
+                    schedule(now);
+                }
+            }
+            else {
+                changed = status != null && !status.equals(polled.status);
+                fallback = polled.fallback;
+                if (fallback) {
+                    polled.status = status != null ? status : polled.status;
+                    polled.interval = this.maxInterval;
+                }
+                else if (changed) {
+                    polled.status = status;
+                    polled.interval = this.minInterval;
+                }
+                else {
+                    polled.interval = Math.min(polled.interval * 2, this.maxInterval);
+                }
+                polled.due = now + polled.interval;
+                schedule(polled.server.heldBack ? now : polled.due);
+            }
+        }
+        if (failure != null && fallback) {
+            LOGGER.info("Unable to poll the status of the Continuum pipeline " + polled.pipelineId
+                    + ", the steps waiting for it rely on the webhook only: " + failure.getMessage());
+        }
+        else if (failure != null) {
+            LOGGER.info("Unable to poll the status of the Continuum pipeline " + polled.pipelineId
+                    + ", failing the steps waiting for it: " + failure.getMessage());
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PipelineWaiters.fail(polled.server.url, polled.pipelineId, failure);
+                }
+            });
+        }
+        else if (changed) {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PipelineWaiters.notify(polled.server.url, polled.pipelineId, status);
+                }
+            });
+        }
+    }
+
+    /**
+     * Schedules a poll at the given time, unless one is scheduled before. Guarded by this.
+     */
+    private void schedule(long time) {
+        if (this.nextPoll != null) {
+            if (this.nextPollTime <= time) {
+                return;
+            }
+            this.nextPoll.cancel(false);
+        }
+        this.nextPollTime = time;
+        this.nextPoll = this.executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Unable to poll the Continuum pipelines", e);
+                }
+            }
+        }, Math.max(0L, time - now()), TimeUnit.MILLISECONDS);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * The pipelines polled on a server, guarded by the poller.
+     */
+    private static final class Server {
+        final String url;
+        final Map<String, Polled> pipelines = new HashMap<String, Polled>();
+        int inFlight;
+        /** Whether pipelines were due but not polled because of {@link PipelinePoller#maxRequests}. */
+        boolean heldBack;
+
+        Server(String url) {
+            this.url = url;
+        }
+    }
+
+    /**
+     * A polled pipeline, guarded by the poller.
+     */
+    private static final class Polled {
+        final Server server;
+        final String pipelineId;
+        /** Whether only the steps waiting for the webhook wait for the pipeline. */
+        boolean fallback;
+        String apiToken;
+        /** The last status read, null until it is read. */
+        String status;
+        long interval;
+        long due;
+        boolean inFlight;
+
+        Polled(Server server, String pipelineId, boolean fallback) {
+            this.server = server;
+            this.pipelineId = pipelineId;
+            this.fallback = fallback;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.continuum.steps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import jenkins.plugins.continuum.ContinuumClient;
+
+/**
+ * The steps waiting for a status of a Continuum pipeline, per server and pipeline id, resumed when Continuum
+ * notifies the status through {@link jenkins.plugins.continuum.actions.ContinuumWebhook}, or when
+ * the {@link PipelinePoller} reads it.
+ * The waiting steps hold no thread, only an entry here.
+ * <p>
+ * Pipeline ids are only unique per server, which is identified by its scheme, host and port,
+ * see {@link ContinuumClient#getServerKey}.
+ */
+public final class PipelineWaiters {
+
+    /** Guarded by itself. */
+    private static final Map<Key, List<Waiter>> waiters = new HashMap<Key, List<Waiter>>();
+
+    private PipelineWaiters() {
+    }
+
+    /**
+     * A step waiting for a pipeline.
+     */
+    interface Waiter {
+        /**
+         * Whether the waiter is done once the pipeline reaches a status.
+         *
+         * @param status the status, in lower case
+         */
+        boolean isWaitingFor(String status);
+
+        /**
+         * Resumes the waiter, called once, without any lock held.
+         */
+        void resume(String status);
+
+        /**
+         * Fails the waiter, whose pipeline status can't be read, called once, without any lock held.
+         */
+        void fail(Exception cause);
+    }
+
+    static void add(String serverUrl, String pipelineId, Waiter waiter) {
+        Key key = new Key(serverUrl, pipelineId);
+        synchronized (waiters) {
+            List<Waiter> pipelineWaiters = waiters.get(key);
+            if (pipelineWaiters == null) {
+                pipelineWaiters = new ArrayList<Waiter>(1);
+                waiters.put(key, pipelineWaiters);
+            }
+            pipelineWaiters.add(waiter);
+        }
+    }
+
+    /**
+     * @return whether the waiter was still waiting
+     */
+    static boolean remove(String serverUrl, String pipelineId, Waiter waiter) {
+        Key key = new Key(serverUrl, pipelineId);
+        synchronized (waiters) {
+            List<Waiter> pipelineWaiters = waiters.get(key);
+            if (pipelineWaiters == null || !pipelineWaiters.remove(waiter)) {
+                return false;
+            }
+            if (pipelineWaiters.isEmpty()) {
+                waiters.remove(key);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Whether steps are waiting for a pipeline.
+     */
+    static boolean isWaiting(String serverUrl, String pipelineId) {
+        Key key = new Key(serverUrl, pipelineId);
+        synchronized (waiters) {
+            return waiters.containsKey(key);
+        }
+    }
+
+    /**
+     * Notifies the status of a pipeline, resuming the steps waiting for it.
+     *
+     * @return the number of steps resumed
+     * @throws IllegalArgumentException if the server URL is not valid
+     */
+    public static int notify(String serverUrl, String pipelineId, String status) {
+        Key key = new Key(serverUrl, pipelineId);
+        String normalized = status.toLowerCase(Locale.ENGLISH);
+        List<Waiter> resumed = new ArrayList<Waiter>();
+        synchronized (waiters) {
+            List<Waiter> pipelineWaiters = waiters.get(key);
+            if (pipelineWaiters == null) {
+                return 0;
+            }
+            for (Iterator<Waiter> it = pipelineWaiters.iterator(); it.hasNext();) {
+                Waiter waiter = it.next();
+                if (waiter.isWaitingFor(normalized)) {
+                    it.remove();
+                    resumed.add(waiter);
+                }
+            }
+            if (pipelineWaiters.isEmpty()) {
+                waiters.remove(key);
+            }
+        }
+        for (Waiter waiter : resumed) {
+            waiter.resume(status);
+        }
+        return resumed.size();
+    }
+
+    /**
+     * Fails the steps waiting for a pipeline whose status can't be read, e.g. one unknown to the server.
+     *
+     * @return the number of steps failed
+     */
+    static int fail(String serverUrl, String pipelineId, Exception cause) {
+        Key key = new Key(serverUrl, pipelineId);
+        List<Waiter> failed;
+        synchronized (waiters) {
+            failed = waiters.remove(key);
+        }
+        if (failed == null) {
+            return 0;
+        }
+        for (Waiter waiter : failed) {
+            waiter.fail(cause);
+        }
+        return failed.size();
+    }
+
+    /** Number of steps waiting, for all the pipelines. */
+    public static int size() {
+        int size = 0;
+        synchronized (waiters) {
+            for (List<Waiter> pipelineWaiters : waiters.values()) {
+                size += pipelineWaiters.size();
+            }
+        }
+        return size;
+    }
+
+    private static final class Key {
+        private final String serverKey;
+        private final String pipelineId;
+
+        Key(String serverUrl, String pipelineId) {
+            this.serverKey = ContinuumClient.getServerKey(serverUrl);
+            this.pipelineId = pipelineId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.serverKey.equals(other.serverKey) && this.pipelineId.equals(other.pipelineId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.serverKey.hashCode() + this.pipelineId.hashCode();
+        }
+    }
+}
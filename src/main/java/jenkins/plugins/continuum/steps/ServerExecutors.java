@@ -0,0 +1,350 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.steps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Bounded executors, one per Continuum server, so that a slow server can only exhaust its own threads.
+ * With virtual threads enabled (and supported by the JDK), each step runs on its own virtual thread
+ * instead, and only the number of concurrent steps per server is bounded.
+ */
+public final class ServerExecutors {
+
+    private static final Logger LOGGER = Logger.getLogger(ServerExecutors.class.getName());
+
+    private static final String THREAD_NAME_PREFIX = "jenkins.plugins.continuum.steps.SynchNonBlockingStepExecution";
+
+    /** Key of the executor used when the server is not known. */
+    static final String DEFAULT_KEY = "default";
+
+    /** Maximum number of threads per server. */
+    static final int MAX_THREADS = Integer.getInteger(ServerExecutors.class.getName() + ".maxThreads", 20);
+
+    /** Maximum number of step executions waiting for a thread, per server. */
+    static final int QUEUE_SIZE = Integer.getInteger(ServerExecutors.class.getName() + ".queueSize", 500);
+
+    /** Whether to run steps on virtual threads, when the JDK supports them. */
+    static final boolean VIRTUAL_THREADS = Boolean.getBoolean(ServerExecutors.class.getName() + ".virtualThreads");
+
+    /** Maximum number of steps running on virtual threads, per server. */
+    static final int MAX_VIRTUAL_THREADS =
+            Integer.getInteger(ServerExecutors.class.getName() + ".maxVirtualThreads", 10000);
+
+    /** Maximum number of threads sending to several pipelines at once, per server. */
+    static final int MAX_FAN_OUT_THREADS =
+            Integer.getInteger(ServerExecutors.class.getName() + ".maxFanOutThreads", 20);
+
+    /** Maximum number of command groups waiting for a fan-out thread, per server. */
+    static final int FAN_OUT_QUEUE_SIZE =
+            Integer.getInteger(ServerExecutors.class.getName() + ".fanOutQueueSize", 100);
+
+    /** Seconds after which an idle thread is stopped. */
+    private static final long KEEP_ALIVE = 60L;
+
+    private static final ConcurrentMap<String, ExecutorService> executors =
+            new ConcurrentHashMap<String, ExecutorService>();
+
+    private static final ConcurrentMap<String, ExecutorService> fanOutExecutors =
+            new ConcurrentHashMap<String, ExecutorService>();
+
+    private static volatile boolean virtualThreadsUnsupported;
+
+    private ServerExecutors() {
+    }
+
+    /**
+     * Gets the executor for the given server key, creating it on first use.
+     * When the executor is saturated, submitting to it throws a {@link RejectedExecutionException}.
+     */
+    static ExecutorService get(String key) {
+        return get(executors, key, false);
+    }
+
+    /**
+     * Gets the executor that sends the command groups of steps fanning out to several pipelines of the given
+     * server, creating it on first use. It is separate from the server executor, whose threads wait for
+     * the groups to complete, and saturated like it: the step should then send the groups itself.
+     */
+    static ExecutorService getFanOutExecutor(String key) {
+        return get(fanOutExecutors, key, true);
+    }
+
+    private static ExecutorService get(ConcurrentMap<String, ExecutorService> executors, String key,
+            boolean fanOut) {
+        if (key == null) {
+            key = DEFAULT_KEY;
+        }
+        ExecutorService executor = executors.get(key);
+        if (executor == null) {
+            ExecutorService newExecutor = newExecutor(key, fanOut);
+            executor = executors.putIfAbsent(key, newExecutor);
+            if (executor == null) {
+                executor = newExecutor;
+            }
+            else {
+                newExecutor.shutdown();
+            }
+        }
+        return executor;
+    }
+
+    private static ExecutorService newExecutor(String key, boolean fanOut) {
+        String name = fanOut ? key + " fan-out" : key;
+        if (VIRTUAL_THREADS && !virtualThreadsUnsupported) {
+            ThreadFactory threadFactory = newVirtualThreadFactory(THREAD_NAME_PREFIX + " [" + name + "] #");
+            if (threadFactory != null) {
+                return new VirtualThreadExecutor(key, threadFactory);
+            }
+            virtualThreadsUnsupported = true;
+            LOGGER.log(Level.WARNING, "Virtual threads are not supported by this JDK, using platform threads");
+        }
+        return fanOut ? new ServerExecutor(key, name, MAX_FAN_OUT_THREADS, FAN_OUT_QUEUE_SIZE)
+                : new ServerExecutor(key, name, MAX_THREADS, QUEUE_SIZE);
+    }
+
+    /**
+     * Creates a factory of named virtual threads through reflection, since they need JDK 21.
+     *
+     * @return the factory, or null if virtual threads are not available
+     */
+    static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            // older JDK, or virtual threads still in preview
+            LOGGER.log(Level.FINE, "Virtual threads not available", e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets a snapshot of the load of each executor, the server executors first, then the fan-out ones.
+     */
+    public static List<Stats> getStats() {
+        List<Stats> result = new ArrayList<Stats>(executors.size() + fanOutExecutors.size());
+        addStats(result, executors, false);
+        addStats(result, fanOutExecutors, true);
+        return result;
+    }
+
+    private static void addStats(List<Stats> result, Map<String, ExecutorService> executors, boolean fanOut) {
+        for (Map.Entry<String, ExecutorService> e : executors.entrySet()) {
+            ExecutorService executor = e.getValue();
+            if (executor instanceof ServerExecutor) {
+                ServerExecutor serverExecutor = (ServerExecutor) executor;
+                result.add(new Stats(e.getKey(), fanOut, serverExecutor.getActiveCount(),
+                        serverExecutor.getPoolSize(), serverExecutor.getQueue().size(),
+                        serverExecutor.rejected.get()));
+            }
+            else if (executor instanceof VirtualThreadExecutor) {
+                VirtualThreadExecutor virtualExecutor = (VirtualThreadExecutor) executor;
+                int active = virtualExecutor.getActiveCount();
+                result.add(new Stats(e.getKey(), fanOut, active, active, 0, virtualExecutor.rejected.get()));
+            }
+        }
+    }
+
+    /**
+     * Stops all the executors, letting the running tasks complete. Called when Jenkins shuts down, the
+     * executors being created again on the next use.
+     */
+    public static void shutdown() {
+        shutdown(executors);
+        shutdown(fanOutExecutors);
+    }
+
+    private static void shutdown(ConcurrentMap<String, ExecutorService> executors) {
+        for (String key : executors.keySet()) {
+            ExecutorService executor = executors.remove(key);
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Load of the executor of a Continuum server.
+     */
+    public static final class Stats {
+        private final String key;
+        private final boolean fanOut;
+        private final int activeThreads;
+        private final int poolSize;
+        private final int queueDepth;
+        private final long rejectedCount;
+
+        Stats(String key, boolean fanOut, int activeThreads, int poolSize, int queueDepth, long rejectedCount) {
+            this.key = key;
+            this.fanOut = fanOut;
+            this.activeThreads = activeThreads;
+            this.poolSize = poolSize;
+            this.queueDepth = queueDepth;
+            this.rejectedCount = rejectedCount;
+        }
+
+        /** The server (scheme, host and port) the executor runs steps for. */
+        public String getKey() {
+            return this.key;
+        }
+
+        /** Whether the executor sends the command groups of steps fanning out to several pipelines. */
+        public boolean isFanOut() {
+            return this.fanOut;
+        }
+
+        /** Number of threads currently running a step. */
+        public int getActiveThreads() {
+            return this.activeThreads;
+        }
+
+        /** Number of threads in the pool, busy or idle. */
+        public int getPoolSize() {
+            return this.poolSize;
+        }
+
+        /** Number of step executions waiting for a thread. */
+        public int getQueueDepth() {
+            return this.queueDepth;
+        }
+
+        /** Number of step executions rejected because the queue was full. */
+        public long getRejectedCount() {
+            return this.rejectedCount;
+        }
+    }
+
+    private static final class ServerExecutor extends ThreadPoolExecutor {
+        private final AtomicLong rejected = new AtomicLong();
+
+        ServerExecutor(final String key, String name, int threads, int queueSize) {
+            super(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(queueSize),
+                    new NamingThreadFactory(new DaemonThreadFactory(), THREAD_NAME_PREFIX + " [" + name + "]"),
+                    new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                            ((ServerExecutor) executor).rejected.incrementAndGet();
+                            throw new RejectedExecutionException("Too many pending Continuum calls to " + key
+                                    + " (" + executor.getActiveCount() + " running, "
+                                    + executor.getQueue().size() + " queued)");
+                        }
+                    });
+            allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Starts a new virtual thread for each task, limiting the number of concurrent tasks.
+     */
+    private static final class VirtualThreadExecutor extends AbstractExecutorService {
+        private final String key;
+        private final ThreadFactory threadFactory;
+        private final Semaphore permits = new Semaphore(MAX_VIRTUAL_THREADS);
+        private final AtomicLong rejected = new AtomicLong();
+        private volatile boolean shutdown;
+
+        VirtualThreadExecutor(String key, ThreadFactory threadFactory) {
+            this.key = key;
+            this.threadFactory = threadFactory;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            if (this.shutdown || !this.permits.tryAcquire()) {
+                this.rejected.incrementAndGet();
+                throw new RejectedExecutionException("Too many pending Continuum calls to " + this.key
+                        + " (" + getActiveCount() + " running)");
+            }
+            try {
+                this.threadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            command.run();
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                }).start();
+            } catch (RuntimeException e) {
+                this.permits.release();
+                throw e;
+            }
+        }
+
+        int getActiveCount() {
+            return MAX_VIRTUAL_THREADS - this.permits.availablePermits();
+        }
+
+        @Override
+        public void shutdown() {
+            this.shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            this.shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return this.shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return this.shutdown && getActiveCount() == 0;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                if (System.nanoTime() >= deadline) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        }
+    }
+}
@@ -3,7 +3,6 @@
 package jenkins.plugins.continuum.steps;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
@@ -14,8 +13,6 @@ import org.jenkinsci.plugins.workflow.steps.StepExecution;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.security.ACL;
-import hudson.util.DaemonThreadFactory;
-import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
 
 /**
@@ -28,8 +25,6 @@ public abstract class SynchNonBlockingStepExecution<T> extends StepExecution {
     private transient volatile Future<?> task;
     private transient String threadName;
 
-    private static ExecutorService executorService;
-
     protected SynchNonBlockingStepExecution(@Nonnull StepContext context) {
         super(context);
     }
@@ -41,22 +36,55 @@ public abstract class SynchNonBlockingStepExecution<T> extends StepExecution {
      */
     protected abstract T run() throws Exception;
 
+    /**
+     * Gets the key of the bounded executor this execution runs in, e.g. the server it talks to.
+     * Executions with the same key share their threads, null selects the default executor.
+     */
+    protected String getExecutorKey() {
+        return null;
+    }
+
+    /**
+     * Lets subclasses complete the step without occupying a pool thread, e.g. with non-blocking I/O.
+     *
+     * @return true if the subclass took over the execution, in which case it must complete the context
+     */
+    protected boolean startAsync() throws Exception {
+        return false;
+    }
+
+    /**
+     * Whether the execution was interrupted by Jenkins shutting down, and is to complete in {@link #onResume()}
+     * after the restart. The outcome of {@link #run()} is then ignored.
+     */
+    protected boolean isSuspended() {
+        return false;
+    }
+
     @Override
     public final boolean start() throws Exception {
+        if (startAsync()) {
+            return false;
+        }
         final Authentication auth = Jenkins.getAuthentication();
-        task = getExecutorService().submit(new Runnable() {
+        task = getExecutorService(getExecutorKey()).submit(new Runnable() {
             @SuppressFBWarnings(value="SE_BAD_FIELD", justification="not serializing anything here")
             @Override public void run() {
                 try {
-                    getContext().onSuccess(ACL.impersonate(auth,
+                    T result = ACL.impersonate(auth,
                             new jenkins.security.NotReallyRoleSensitiveCallable<T, Exception>() {
                         @Override public T call() throws Exception {
                             threadName = Thread.currentThread().getName();
                             return SynchNonBlockingStepExecution.this.run();
                         }
-                    }));
+                    });
+                    if (!isSuspended()) {
+                        getContext().onSuccess(result);
+                    }
                 } catch (Exception e) {
-                    getContext().onFailure(e);
+                    if (!isSuspended()) {
+                        getContext().onFailure(e);
+                    }
                 }
             }
         });
@@ -86,12 +114,8 @@ public abstract class SynchNonBlockingStepExecution<T> extends StepExecution {
         }
     }
 
-    static synchronized ExecutorService getExecutorService() {
-        if (executorService == null) {
-            executorService = Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(),
-                    "jenkins.plugins.collabnet.steps.SynchronousNonBlockingStepExecution"));
-        }
-        return executorService;
+    static ExecutorService getExecutorService(String key) {
+        return ServerExecutors.get(key);
     }
 
 }
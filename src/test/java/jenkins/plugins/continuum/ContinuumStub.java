@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stub of the Continuum commands used by the steps, answering on {@link #getUrl()}
+ * with a configurable latency, error rate and throttling.
+ * <ul>
+ * <li>initiate_pipeline answers a new pipeline id</li>
+ * <li>post_pi_data and set_pi_data answer an empty response</li>
+ * <li>other paths answer 404</li>
+ * </ul>
+ * Requests beyond {@link #setMaxConcurrentRequests the maximum concurrent requests} are answered 429
+ * with a Retry-After header, failed requests 500 with a Continuum error.
+ */
+public final class ContinuumStub implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Set<String> COMMANDS = new HashSet<String>(Arrays.asList(
+            ContinuumConstants.COMMAND_NAME__INITIATE_PIPELINE,
+            ContinuumConstants.COMMAND_NAME__POST_PI_DATA,
+            ContinuumConstants.COMMAND_NAME__SET_PI_DATA));
+
+    static {
+        // otherwise the headers and the body go in separate packets, delayed by the acknowledgement of the first one
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random = new Random();
+
+    private volatile long latency;
+    private volatile long latencyJitter;
+    private volatile double errorRate;
+    private volatile int maxConcurrentRequests;
+    private volatile boolean rejectCompressed;
+
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger peakConcurrentRequests = new AtomicInteger();
+    private final AtomicInteger nextPipelineId = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger throttled = new AtomicInteger();
+    private volatile String lastPayload;
+    private final List<String> payloads = new CopyOnWriteArrayList<String>();
+
+    private ContinuumStub(int threads) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    ContinuumStub.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    /**
+     * Starts a stub answering immediately, with 50 threads.
+     */
+    public static ContinuumStub start() throws IOException {
+        return start(50);
+    }
+
+    /**
+     * Starts a stub answering immediately.
+     *
+     * @param threads the requests handled at once, the others wait
+     */
+    public static ContinuumStub start(int threads) throws IOException {
+        return new ContinuumStub(threads);
+    }
+
+    /** The server URL, to configure the steps with. */
+    public String getUrl() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Delays each response by the latency plus a random part of the jitter, in milliseconds.
+     */
+    public ContinuumStub setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.latencyJitter = jitter;
+        return this;
+    }
+
+    /**
+     * Fails the given fraction of the requests with 500.
+     */
+    public ContinuumStub setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Answers 429 to the requests beyond the given number handled at once, 0 for no limit.
+     */
+    public ContinuumStub setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        return this;
+    }
+
+    /**
+     * Answers 415 to compressed requests, like a server that does not support them.
+     */
+    public ContinuumStub setRejectCompressed(boolean rejectCompressed) {
+        this.rejectCompressed = rejectCompressed;
+        return this;
+    }
+
+    /** Number of requests received for the command, including the failed ones. */
+    public int getRequests(String command) {
+        AtomicInteger count = this.requests.get(command);
+        return count == null ? 0 : count.get();
+    }
+
+    /** Number of requests answered 500. */
+    public int getErrors() {
+        return this.errors.get();
+    }
+
+    /** Number of requests answered 429. */
+    public int getThrottled() {
+        return this.throttled.get();
+    }
+
+    public int getPeakConcurrentRequests() {
+        return this.peakConcurrentRequests.get();
+    }
+
+    /** The decompressed body of the last request. */
+    public String getLastPayload() {
+        return this.lastPayload;
+    }
+
+    /** The decompressed bodies of the requests handled, in the order they were received. */
+    public List<String> getPayloads() {
+        return this.payloads;
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String prefix = "/" + ContinuumConstants.PATH_API;
+        String command = path.startsWith(prefix) ? path.substring(prefix.length()) : null;
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        String payload = readPayload(exchange.getRequestBody(), encoding);
+        if (command == null || !COMMANDS.contains(command)) {
+            respond(exchange, 404, "{\"ErrorMessage\": \"Unknown command\"}");
+            return;
+        }
+        count(command);
+        if (encoding != null && this.rejectCompressed) {
+            respond(exchange, 415, "{\"ErrorMessage\": \"Unsupported content encoding\"}");
+            return;
+        }
+        this.lastPayload = payload;
+        this.payloads.add(payload);
+        int concurrent = this.concurrentRequests.incrementAndGet();
+        try {
+            updatePeak(concurrent);
+            int max = this.maxConcurrentRequests;
+            if (max > 0 && concurrent > max) {
+                this.throttled.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, "{\"ErrorMessage\": \"Too many requests\"}");
+                return;
+            }
+            sleep();
+            if (nextDouble() < this.errorRate) {
+                this.errors.incrementAndGet();
+                respond(exchange, 500, "{\"ErrorCode\": \"STUB\", \"ErrorMessage\": \"Stub failure\"}");
+                return;
+            }
+            if (ContinuumConstants.COMMAND_NAME__INITIATE_PIPELINE.equals(command)) {
+                String pipelineId = Integer.toHexString(0x5a000000 + this.nextPipelineId.incrementAndGet());
+                respond(exchange, 200, "{\"Method\": \"" + command + "\", \"Response\": {\"_id\": \"" + pipelineId + "\"}}");
+            }
+            else {
+                respond(exchange, 200, "{\"Method\": \"" + command + "\", \"Response\": {}}");
+            }
+        } finally {
+            this.concurrentRequests.decrementAndGet();
+        }
+    }
+
+    private static String readPayload(InputStream body, String encoding) throws IOException {
+        InputStream in = body;
+        if ("gzip".equalsIgnoreCase(encoding)) {
+            in = new GZIPInputStream(body);
+        }
+        else if ("deflate".equalsIgnoreCase(encoding)) {
+            in = new InflaterInputStream(body);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private void count(String command) {
+        AtomicInteger count = this.requests.get(command);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = this.requests.putIfAbsent(command, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private void updatePeak(int concurrent) {
+        int peak;
+        while (concurrent > (peak = this.peakConcurrentRequests.get())) {
+            if (this.peakConcurrentRequests.compareAndSet(peak, concurrent)) {
+                break;
+            }
+        }
+    }
+
+    private void sleep() {
+        long delay = this.latency;
+        long jitter = this.latencyJitter;
+        if (jitter > 0) {
+            delay += (long) (nextDouble() * jitter);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private double nextDouble() {
+        synchronized (this.random) {
+            return this.random.nextDouble();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestCircuitBreaker {
+
+    private static ContinuumResponseException response(int status) {
+        return new ContinuumResponseException(status, "Status " + status, null, null, null, -1L);
+    }
+
+    private static void assertOpen(CircuitBreaker circuitBreaker) {
+        try {
+            circuitBreaker.beforeRequest();
+            fail("circuit open expected");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+    }
+
+    private static void open(CircuitBreaker circuitBreaker) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.beforeRequest();
+            circuitBreaker.onFailure(new SocketTimeoutException("Read timed out"));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void opensAfterConsecutiveServerFailures() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("http://ctm", 3, 1L, TimeUnit.MINUTES);
+        circuitBreaker.beforeRequest();
+        circuitBreaker.onFailure(response(500));
+        circuitBreaker.beforeRequest();
+        circuitBreaker.onFailure(new IOException("reset"));
+        // a success in between resets the count
+        circuitBreaker.beforeRequest();
+        circuitBreaker.onSuccess();
+        circuitBreaker.beforeRequest();
+        circuitBreaker.onFailure(response(503));
+        circuitBreaker.beforeRequest();
+        circuitBreaker.onFailure(response(429));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.beforeRequest();
+        circuitBreaker.onFailure(response(502));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertOpen(circuitBreaker);
+    }
+
+    @Test
+    public void clientErrorsDoNotOpenTheCircuit() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("http://ctm", 3, 1L, TimeUnit.MINUTES);
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.beforeRequest();
+            circuitBreaker.onFailure(response(i % 2 == 0 ? 400 : 401));
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.beforeRequest();
+    }
+
+    @Test
+    public void halfOpenCircuitLetsASingleTrialThrough() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("http://ctm", 3, 50L, TimeUnit.MILLISECONDS);
+        open(circuitBreaker);
+        assertOpen(circuitBreaker);
+        Thread.sleep(100L);
+
+        circuitBreaker.beforeRequest();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertOpen(circuitBreaker);
+        // a trial without an outcome lets another one through
+        circuitBreaker.release();
+        circuitBreaker.beforeRequest();
+        circuitBreaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.beforeRequest();
+        circuitBreaker.beforeRequest();
+    }
+
+    @Test
+    public void failedTrialOpensTheCircuitAgain() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("http://ctm", 3, 50L, TimeUnit.MILLISECONDS);
+        open(circuitBreaker);
+        Thread.sleep(100L);
+
+        circuitBreaker.beforeRequest();
+        circuitBreaker.onFailure(new IOException("Connection refused"));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertOpen(circuitBreaker);
+    }
+
+    @Test
+    public void zeroThresholdDisablesTheCircuitBreaker() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("http://ctm", 0, 1L, TimeUnit.MINUTES);
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.beforeRequest();
+            circuitBreaker.onFailure(response(500));
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class TestCommandPayload {
+
+    @Test
+    public void parametersAreSerialized() throws Exception {
+        Map<String, Object> data = new LinkedHashMap<String, Object>();
+        data.put("tests", Arrays.asList(1, 2L));
+        data.put("passed", Boolean.TRUE);
+        data.put("note", null);
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put("pi", "5a1");
+        params.put("data", data);
+        params.put("tags", new Object[] {"a \"b\"", 1.5d});
+        assertEquals("{\"pi\":\"5a1\",\"data\":{\"tests\":[1,2],\"passed\":true,\"note\":null},\"tags\":[\"a \\\"b\\\"\",1.5]}",
+                CommandPayload.of(params).toString());
+    }
+
+    @Test
+    public void entitySendsThePayloadBytes() throws Exception {
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        List<Object> values = new ArrayList<Object>();
+        for (int i = 0; i < 1000; i++) {
+            values.add("value \u00e9 " + i);
+        }
+        params.put("values", values);
+        CommandPayload payload = CommandPayload.of(params);
+        HttpEntity entity = payload.toEntity();
+        assertEquals(payload.getLength(), entity.getContentLength());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        assertEquals(payload.toString(), out.toString("UTF-8"));
+        assertEquals(payload.toString(), CommandPayload.of(payload.toString()).toString());
+    }
+
+    @Test
+    public void payloadIsCompressedOnce() throws Exception {
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        List<Object> values = new ArrayList<Object>();
+        for (int i = 0; i < 1000; i++) {
+            values.add("PATH=/usr/local/bin:/usr/bin:/bin");
+        }
+        params.put("values", values);
+        CommandPayload payload = CommandPayload.of(params);
+        CommandPayload compressed = payload.compress(RequestCompression.GZIP);
+        assertSame(compressed, payload.compress(RequestCompression.GZIP));
+        assertTrue(compressed.getLength() < payload.getLength() / 10);
+        HttpEntity entity = compressed.toEntity();
+        assertEquals("gzip", entity.getContentEncoding().getValue());
+        assertEquals(payload.toString(), EntityUtils.toString(
+                new InputStreamEntity(new GZIPInputStream(entity.getContent())), "UTF-8"));
+        assertNull(payload.toEntity().getContentEncoding());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestContinuumClient {
+
+    private ContinuumStub stub;
+
+    @Before
+    public void startStub() throws Exception {
+        this.stub = ContinuumStub.start();
+    }
+
+    @After
+    public void stopStub() {
+        this.stub.close();
+    }
+
+    @Test
+    public void postReadsTheBody() throws Exception {
+        // twice, the second call reuses the pooled connection
+        for (int i = 0; i < 2; i++) {
+            String response = ContinuumClient.post(this.stub.getUrl(), "token",
+                    ContinuumConstants.COMMAND_NAME__SET_PI_DATA, "{\"key\": \"value\"}");
+            assertTrue(response, response.contains("\"Response\""));
+        }
+        assertEquals(2, this.stub.getRequests(ContinuumConstants.COMMAND_NAME__SET_PI_DATA));
+        assertEquals("{\"key\": \"value\"}", this.stub.getLastPayload());
+    }
+
+    @Test
+    public void postReadsThePipelineId() throws Exception {
+        String first = ContinuumClient.post(this.stub.getUrl(), "token",
+                ContinuumConstants.COMMAND_NAME__INITIATE_PIPELINE, CommandPayload.of("{}"), ResponseReaders.PIPELINE_ID);
+        String second = ContinuumClient.post(this.stub.getUrl(), "token",
+                ContinuumConstants.COMMAND_NAME__INITIATE_PIPELINE, CommandPayload.of("{}"), ResponseReaders.PIPELINE_ID);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertTrue(!first.equals(second));
+    }
+
+    @Test
+    public void rejectedCompressionIsSentAgainUncompressed() throws Exception {
+        this.stub.setRejectCompressed(true);
+        RequestCompression.enable(this.stub.getUrl());
+        StringBuilder value = new StringBuilder();
+        while (value.length() <= RequestCompression.THRESHOLD) {
+            value.append("compressible ");
+        }
+        String payload = "{\"key\": \"" + value + "\"}";
+        ContinuumClient.post(this.stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__POST_PI_DATA, payload);
+        ContinuumClient.post(this.stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__POST_PI_DATA, payload);
+        assertEquals(payload, this.stub.getLastPayload());
+        // the server is remembered, the second call is not compressed
+        assertEquals(3, this.stub.getRequests(ContinuumConstants.COMMAND_NAME__POST_PI_DATA));
+    }
+
+    @Test
+    public void serverErrorIsNotRetried() throws Exception {
+        this.stub.setErrorRate(1.0);
+        try {
+            ContinuumClient.post(this.stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__POST_PI_DATA, "{}");
+            fail("500 expected");
+        } catch (ContinuumResponseException e) {
+            assertEquals(500, e.getStatusCode());
+            assertEquals("Stub failure", e.getErrorMessage());
+        }
+        assertEquals(1, this.stub.getRequests(ContinuumConstants.COMMAND_NAME__POST_PI_DATA));
+    }
+
+    @Test
+    public void requestsRejectedByTheCircuitBreakerTakeNoToken() throws Exception {
+        this.stub.setErrorRate(1.0);
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            try {
+                ContinuumClient.post(this.stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__POST_PI_DATA, "{}");
+                fail("500 expected");
+            } catch (ContinuumResponseException e) {
+                // opens the circuit
+            }
+        }
+        // more than the bucket holds, they would wait for the rate limiter if they took a token
+        for (int i = 0; i < 2 * RateLimiter.MAX_RATE; i++) {
+            try {
+                ContinuumClient.post(this.stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__POST_PI_DATA, "{}");
+                fail("open circuit expected");
+            } catch (CircuitOpenException e) {
+                // expected
+            }
+        }
+        assertEquals(0, RateLimiter.get(ContinuumClient.getServerKey(this.stub.getUrl())).getSnapshot()
+                .getThrottledCount());
+        assertEquals(CircuitBreaker.FAILURE_THRESHOLD,
+                this.stub.getRequests(ContinuumConstants.COMMAND_NAME__POST_PI_DATA));
+    }
+
+    @Test
+    public void postAsyncReadsTheBody() throws Exception {
+        Future<String> response = ContinuumClient.postAsync(this.stub.getUrl(), "token",
+                ContinuumConstants.COMMAND_NAME__SET_PI_DATA, "{\"key\": \"value\"}", null);
+        String body = response.get(10, TimeUnit.SECONDS);
+        assertTrue(body, body.contains("\"Response\""));
+        assertEquals("{\"key\": \"value\"}", this.stub.getLastPayload());
+    }
+
+    @Test
+    public void postAsyncFailsOnServerError() throws Exception {
+        this.stub.setErrorRate(1.0);
+        Future<String> response = ContinuumClient.postAsync(this.stub.getUrl(), "token",
+                ContinuumConstants.COMMAND_NAME__POST_PI_DATA, "{}", null);
+        try {
+            response.get(10, TimeUnit.SECONDS);
+            fail("500 expected");
+        } catch (ExecutionException e) {
+            assertEquals(500, ((ContinuumResponseException) e.getCause()).getStatusCode());
+        }
+        assertEquals(1, this.stub.getRequests(ContinuumConstants.COMMAND_NAME__POST_PI_DATA));
+    }
+
+    @Test
+    public void clientIsCreatedAgainAfterAShutdown() throws Exception {
+        ContinuumClient.post(this.stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__SET_PI_DATA, "{}");
+        // without a Jenkins instance, as when the plugin is used again in the same JVM
+        ContinuumClient.shutdown();
+        assertTrue(!ContinuumClient.isShutdown());
+        ContinuumClient.post(this.stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__SET_PI_DATA, "{}");
+        assertEquals(2, this.stub.getRequests(ContinuumConstants.COMMAND_NAME__SET_PI_DATA));
+    }
+
+    @Test
+    public void postAsyncFailsWhenTheServerIsUnreachable() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        Future<String> response = ContinuumClient.postAsync("http://127.0.0.1:" + port, "token",
+                ContinuumConstants.COMMAND_NAME__POST_PI_DATA, "{}", null);
+        try {
+            response.get(30, TimeUnit.SECONDS);
+            fail("connection refused expected");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+        }
+    }
+}
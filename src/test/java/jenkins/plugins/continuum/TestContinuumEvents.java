@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class TestContinuumEvents {
+
+    @Test
+    public void callsAreRecordedWithTheirOutcome() throws Exception {
+        Assume.assumeTrue(FlightRecorder.isAvailable());
+        File file = File.createTempFile("continuum", ".jfr");
+        ContinuumStub stub = ContinuumStub.start();
+        Recording recording = new Recording();
+        try {
+            recording.enable("jenkins.plugins.continuum.Call");
+            recording.start();
+            ContinuumClient.post(stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__POST_PI_DATA, "{}");
+            stub.setErrorRate(1.0);
+            try {
+                ContinuumClient.post(stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__POST_PI_DATA, "{}");
+                fail("500 expected");
+            } catch (ContinuumResponseException e) {
+                // expected
+            }
+            recording.stop();
+            recording.dump(file.toPath());
+
+            List<String> outcomes = new ArrayList<String>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                if (event.getEventType().getName().equals("jenkins.plugins.continuum.Call")) {
+                    assertEquals(ContinuumConstants.COMMAND_NAME__POST_PI_DATA, event.getString("command"));
+                    assertEquals(stub.getUrl(), event.getString("server"));
+                    assertEquals(2L, event.getLong("payloadBytes"));
+                    outcomes.add(event.getString("outcome"));
+                }
+            }
+            List<String> expected = new ArrayList<String>();
+            expected.add(ContinuumEvents.OUTCOME_OK);
+            expected.add("500");
+            assertEquals(expected, outcomes);
+        } finally {
+            recording.close();
+            stub.close();
+            file.delete();
+        }
+    }
+}
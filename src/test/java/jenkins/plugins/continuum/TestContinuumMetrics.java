@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestContinuumMetrics {
+
+    @Test
+    public void callsAreCountedInTheirBucket() {
+        ContinuumMetrics.Call call = ContinuumMetrics.request("http://buckets.example.com:8080/path", "set_pi_data");
+        assertEquals("http://buckets.example.com:8080", call.getServer());
+
+        long startedAt = call.begin();
+        assertEquals(1, call.getInFlight());
+        call.end(startedAt, null);
+        call.begin();
+        call.end(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(60), null);
+        call.begin();
+        call.end(System.nanoTime() - TimeUnit.SECONDS.toNanos(60), null);
+        assertEquals(0, call.getInFlight());
+
+        long[] counts = call.getCumulativeCounts();
+        assertEquals(ContinuumMetrics.BUCKETS.length + 1, counts.length);
+        assertEquals(1, counts[0]);
+        // 60ms is above the 50ms bucket
+        assertEquals(1, counts[3]);
+        assertEquals(2, counts[4]);
+        assertEquals(2, counts[ContinuumMetrics.BUCKETS.length - 1]);
+        assertEquals(3, counts[ContinuumMetrics.BUCKETS.length]);
+    }
+
+    @Test
+    public void requestsAreMeasuredWithTheirStatus() throws Exception {
+        ContinuumStub stub = ContinuumStub.start();
+        try {
+            ContinuumMetrics.Call call =
+                    ContinuumMetrics.request(stub.getUrl(), ContinuumConstants.COMMAND_NAME__POST_PI_DATA);
+            ContinuumClient.post(stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__POST_PI_DATA, "{}");
+            stub.setErrorRate(1.0);
+            try {
+                ContinuumClient.post(stub.getUrl(), "token", ContinuumConstants.COMMAND_NAME__POST_PI_DATA, "{}");
+                fail("500 expected");
+            } catch (ContinuumResponseException e) {
+                // expected
+            }
+            long[] counts = call.getCumulativeCounts();
+            assertEquals(2, counts[counts.length - 1]);
+            assertEquals(Long.valueOf(1), call.getErrors().get("500"));
+            assertEquals(0, call.getInFlight());
+        } finally {
+            stub.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+
+public class TestCredentialsCache {
+
+    private static final String SERVER_URL = "https://continuum.example.com/";
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    private static Credentials credentials(String password) {
+        return new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, "ctm", "Continuum", "jenkins", password);
+    }
+
+    private static String getApiToken(FreeStyleProject p) {
+        return CredentialsCache.getApiToken(CredentialsCache.getCredentials(p, "ctm", SERVER_URL));
+    }
+
+    @Test
+    public void savedCredentialsInvalidateTheCache() throws Exception {
+        FreeStyleProject p = jenkins.createFreeStyleProject("p");
+        SystemCredentialsProvider provider = SystemCredentialsProvider.getInstance();
+        List<Credentials> stored = provider.getCredentials();
+        stored.add(credentials("first"));
+        provider.save();
+        assertEquals("first", getApiToken(p));
+
+        // not saved, the resolved credentials are reused
+        stored.set(0, credentials("second"));
+        assertEquals("first", getApiToken(p));
+
+        provider.save();
+        assertEquals("second", getApiToken(p));
+
+        stored.clear();
+        provider.save();
+        assertNull(CredentialsCache.getCredentials(p, "ctm", SERVER_URL));
+    }
+
+    @Test
+    public void savedBuildsDoNotInvalidateTheCache() throws Exception {
+        FreeStyleProject p = jenkins.createFreeStyleProject("p");
+        FreeStyleBuild b1 = jenkins.buildAndAssertSuccess(p);
+        SystemCredentialsProvider provider = SystemCredentialsProvider.getInstance();
+        provider.getCredentials().add(credentials("first"));
+        provider.save();
+        assertEquals("first", getApiToken(p));
+
+        provider.getCredentials().set(0, credentials("second"));
+        CredentialsCache.InvalidatingListener listener = new CredentialsCache.InvalidatingListener();
+        listener.onChange(b1, null);
+        assertEquals("first", getApiToken(p));
+        // e.g. a folder holding credentials
+        listener.onChange(p, null);
+        assertEquals("second", getApiToken(p));
+    }
+}
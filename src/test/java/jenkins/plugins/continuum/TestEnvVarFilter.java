@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class TestEnvVarFilter {
+
+    private static Map<String, String> env() {
+        Map<String, String> env = new TreeMap<String, String>();
+        env.put("BUILD_URL", "http://jenkins/job/a/1/");
+        env.put("GIT_BRANCH", "master");
+        env.put("GIT_COMMIT", "abc");
+        env.put("JOB_NAME", "a");
+        env.put("my.var", "x");
+        return env;
+    }
+
+    @Test
+    public void namesGlobsAndRegexesAreMatched() {
+        EnvVarFilter filter = EnvVarFilter.get("BUILD_URL, GIT_*, /JOB_(NAME|URL)/");
+        assertTrue(filter.matches("BUILD_URL"));
+        assertTrue(filter.matches("GIT_BRANCH"));
+        assertTrue(filter.matches("JOB_NAME"));
+        assertFalse(filter.matches("JOB_NAMES"));
+        assertFalse(filter.matches("BUILD_ID"));
+        assertSame(filter, EnvVarFilter.get("BUILD_URL, GIT_*, /JOB_(NAME|URL)/"));
+    }
+
+    @Test
+    public void exclusionsAloneSelectTheOtherVariables() {
+        EnvVarFilter filter = EnvVarFilter.get("!GIT_*, !JOB_NAME");
+        Map<String, String> selected = filter.select(env(), false).getVariables();
+        assertEquals(Arrays.asList("BUILD_URL", "my.var"), Arrays.asList(selected.keySet().toArray()));
+    }
+
+    @Test
+    public void unchangedVariablesAreNotCopied() {
+        Map<String, String> env = env();
+        env.remove("my.var");
+        assertSame(env, EnvVarFilter.get("*").select(env, true).getVariables());
+        Map<String, String> withDots = env();
+        Map<String, String> selected = EnvVarFilter.get("*").select(withDots, true).getVariables();
+        assertEquals(5, selected.size());
+        assertEquals("x", selected.get("my_var"));
+    }
+
+    @Test
+    public void valuesAreCapped() {
+        Map<String, String> env = env();
+        char[] big = new char[EnvVarFilter.MAX_VALUE_BYTES + 10];
+        Arrays.fill(big, 'v');
+        env.put("BIG", new String(big));
+        EnvVarFilter.Selection selection = EnvVarFilter.get("*").select(env, false);
+        assertEquals(EnvVarFilter.MAX_VALUE_BYTES, selection.getVariables().get("BIG").length());
+        assertEquals(1, selection.getTruncated());
+        assertEquals(0, selection.getOmitted());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRegexIsRejected() {
+        EnvVarFilter.get("/JOB_(/");
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestJournal {
+
+    private static final int MAGIC = 0x54455354;
+    private static final int HEADER_BYTES = 8;
+    /** Type and value. */
+    private static final int RECORD_BYTES = 5;
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private File file;
+
+    /** Owner of a journal of a set of values. */
+    private static final class Values implements Journal.Reader, Journal.Writer {
+        final Set<Integer> values = new LinkedHashSet<Integer>();
+        final Journal journal;
+
+        Values(File file) {
+            this.journal = new Journal(file, MAGIC, 1);
+        }
+
+        void add(int value) throws IOException {
+            DataOutputStream o = this.journal.open();
+            o.writeByte(RECORD_ADD);
+            o.writeInt(value);
+            o.flush();
+            this.values.add(value);
+        }
+
+        void remove(int value) throws IOException {
+            DataOutputStream o = this.journal.open();
+            o.writeByte(RECORD_REMOVE);
+            o.writeInt(value);
+            o.flush();
+            this.values.remove(value);
+            this.journal.addGarbage(2);
+        }
+
+        @Override
+        public void read(int type, DataInputStream in) throws IOException {
+            if (type == RECORD_ADD) {
+                this.values.add(in.readInt());
+            }
+            else if (type == RECORD_REMOVE) {
+                this.values.remove(in.readInt());
+            }
+            else {
+                throw new IOException("Unknown record type " + type);
+            }
+        }
+
+        @Override
+        public void write(DataOutputStream out) throws IOException {
+            for (int value : this.values) {
+                out.writeByte(RECORD_ADD);
+                out.writeInt(value);
+            }
+        }
+    }
+
+    @Before
+    public void createFile() throws Exception {
+        this.file = File.createTempFile("continuum", ".journal");
+        this.file.delete();
+    }
+
+    @After
+    public void deleteFile() {
+        this.file.delete();
+        corrupt().delete();
+    }
+
+    private File corrupt() {
+        return new File(this.file.getPath() + ".corrupt");
+    }
+
+    private Values load() throws Exception {
+        Values values = new Values(this.file);
+        values.journal.load(values, values);
+        return values;
+    }
+
+    @Test
+    public void journalIsCompactedOnceRead() throws Exception {
+        Values values = load();
+        values.add(1);
+        values.add(2);
+        values.add(3);
+        values.remove(2);
+        values.journal.close();
+        assertEquals(HEADER_BYTES + 4 * RECORD_BYTES, this.file.length());
+
+        values = load();
+        assertEquals(Arrays.asList(1, 3), Arrays.asList(values.values.toArray()));
+        assertEquals(HEADER_BYTES + 2 * RECORD_BYTES, this.file.length());
+        assertEquals(0, values.journal.getGarbage());
+        values.journal.close();
+    }
+
+    @Test
+    public void journalIsCompactedOnceTheGarbageOutnumbersTheLiveRecords() throws Exception {
+        Values values = load();
+        for (int i = 0; i < 4; i++) {
+            values.add(i);
+        }
+        values.remove(0);
+        values.journal.compactIfNeeded(2, values.values.size(), values);
+        // fewer records no longer needed than live ones
+        assertEquals(HEADER_BYTES + 5 * RECORD_BYTES, this.file.length());
+
+        values.remove(1);
+        values.journal.compactIfNeeded(2, values.values.size(), values);
+        assertEquals(HEADER_BYTES + 2 * RECORD_BYTES, this.file.length());
+        assertEquals(0, values.journal.getGarbage());
+
+        // records are appended to the compacted journal
+        values.add(4);
+        values.journal.close();
+        assertEquals(Arrays.asList(2, 3, 4), Arrays.asList(load().values.toArray()));
+    }
+
+    @Test
+    public void truncatedRecordIsDropped() throws Exception {
+        Values values = load();
+        values.add(1);
+        values.add(2);
+        values.journal.close();
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try {
+            // a crash while writing the last record
+            raf.setLength(raf.length() - 2);
+        } finally {
+            raf.close();
+        }
+
+        values = load();
+        assertEquals(Arrays.asList(1), Arrays.asList(values.values.toArray()));
+        // new records follow the last complete one
+        values.add(3);
+        values.journal.close();
+        assertEquals(Arrays.asList(1, 3), Arrays.asList(load().values.toArray()));
+    }
+
+    @Test
+    public void unreadableJournalIsMovedAside() throws Exception {
+        Values values = load();
+        values.add(1);
+        values.journal.close();
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try {
+            // a record of a type unknown to this version
+            raf.seek(raf.length());
+            raf.writeByte(9);
+        } finally {
+            raf.close();
+        }
+        long length = this.file.length();
+
+        values = new Values(this.file);
+        try {
+            values.journal.load(values, values);
+            fail("unknown record type expected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(corrupt().getName()));
+        }
+        assertTrue(!this.file.exists());
+        assertEquals(length, corrupt().length());
+
+        // the owner starts again with a new journal
+        values = new Values(this.file);
+        values.add(2);
+        values.journal.close();
+        assertEquals(Arrays.asList(2), Arrays.asList(load().values.toArray()));
+    }
+}
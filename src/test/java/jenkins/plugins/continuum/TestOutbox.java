@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class TestOutbox {
+
+    private static final String SERVER_URL = "https://continuum.example.com/";
+    private static final String COMMAND = ContinuumConstants.COMMAND_NAME__SET_PI_DATA;
+
+    /** The journal encrypts with the key of the Jenkins instance. */
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    private File file;
+
+    @Before
+    public void createFile() throws Exception {
+        this.file = File.createTempFile("continuum", ".journal");
+        this.file.delete();
+    }
+
+    @After
+    public void deleteFile() {
+        this.file.delete();
+    }
+
+    private Outbox load() throws Exception {
+        Outbox outbox = new Outbox(this.file);
+        outbox.load();
+        return outbox;
+    }
+
+    private static Outbox.Entry entry(String executionId, String group, String payload, boolean markUnstable) {
+        return new Outbox.Entry(executionId, SERVER_URL, COMMAND, "secret-token", group, CommandPayload.of(payload),
+                markUnstable);
+    }
+
+    @Test
+    public void pendingCommandsAreReadAfterARestart() throws Exception {
+        Outbox outbox = load();
+        Outbox.Entry first = entry("execution-1", "pi-1", "{\"pi\": \"pi-1\", \"key\": \"k1\"}", true);
+        Outbox.Entry second = entry("execution-1", "pi-2", "{\"pi\": \"pi-2\", \"key\": \"k1\"}", false);
+        Outbox.Entry other = entry("execution-2", null, "{\"pi\": \"pi-3\"}", true);
+        outbox.append(Arrays.asList(first, second));
+        outbox.append(Collections.singletonList(other));
+        outbox.remove(Collections.singletonList(first));
+        outbox.closeFile();
+
+        outbox = load();
+        List<Outbox.Entry> pending = outbox.getEntries("execution-1");
+        assertEquals(1, pending.size());
+        Outbox.Entry entry = pending.get(0);
+        assertEquals(SERVER_URL, entry.getServerUrl());
+        assertEquals(COMMAND, entry.getCommand());
+        assertEquals("secret-token", entry.getApiToken());
+        assertEquals("pi-2", entry.getGroup());
+        assertEquals("{\"pi\": \"pi-2\", \"key\": \"k1\"}", entry.getPayload().toString());
+        assertFalse(entry.isMarkUnstable());
+
+        pending = outbox.getEntries("execution-2");
+        assertEquals(1, pending.size());
+        assertNull(pending.get(0).getGroup());
+        assertTrue(pending.get(0).isMarkUnstable());
+
+        // completed after the restart
+        outbox.remove(pending);
+        outbox.closeFile();
+        assertTrue(load().getEntries("execution-2").isEmpty());
+        assertEquals(1, load().getEntries("execution-1").size());
+    }
+
+    @Test
+    public void tokenAndPayloadAreNotWrittenInClear() throws Exception {
+        Outbox outbox = load();
+        outbox.append(Collections.singletonList(entry("execution-1", "pi-1", "{\"password\": \"hunter2\"}", true)));
+        outbox.closeFile();
+
+        byte[] bytes = new byte[(int) this.file.length()];
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        String content = new String(bytes, "ISO-8859-1");
+        assertFalse(content.contains("secret-token"));
+        assertFalse(content.contains("hunter2"));
+        assertTrue(content.contains(SERVER_URL));
+        // readable with the key of the instance
+        assertEquals(1, load().getEntries("execution-1").size());
+    }
+
+    @Test
+    public void undecryptableCommandIsDropped() throws Exception {
+        Outbox outbox = load();
+        outbox.append(Arrays.asList(entry("execution-1", "pi-1", "{\"pi\": \"pi-1\"}", true),
+                entry("execution-1", "pi-2", "{\"pi\": \"pi-2\"}", true)));
+        outbox.closeFile();
+
+        byte[] bytes = new byte[(int) this.file.length()];
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try {
+            raf.readFully(bytes);
+            // skips the header, then the record type, id, strings and markUnstable of the first command
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            in.skipBytes(8 + 1 + 8);
+            for (int i = 0; i < 5; i++) {
+                in.readUTF();
+            }
+            in.readBoolean();
+            byte[] garbage = new byte[in.readInt()];
+            Arrays.fill(garbage, (byte) 'A');
+            // as encrypted with another key
+            raf.seek(bytes.length - in.available());
+            raf.write(garbage);
+        } finally {
+            raf.close();
+        }
+
+        List<Outbox.Entry> pending = load().getEntries("execution-1");
+        assertEquals(1, pending.size());
+        assertEquals("pi-2", pending.get(0).getGroup());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPipelineIndex {
+
+    private static final String SERVER_URL = "https://continuum.example.com/";
+    private static final String OTHER_SERVER_URL = "https://other.example.com/";
+
+    private File file;
+
+    @Before
+    public void createFile() throws Exception {
+        this.file = File.createTempFile("continuum", ".journal");
+        this.file.delete();
+    }
+
+    @After
+    public void deleteFile() {
+        this.file.delete();
+    }
+
+    private PipelineIndex load() throws Exception {
+        PipelineIndex index = new PipelineIndex(this.file);
+        index.load();
+        return index;
+    }
+
+    @Test
+    public void pipelinesAreFoundByServerAndId() throws Exception {
+        PipelineIndex index = load();
+        index.put("folder/job", 1, SERVER_URL, "pi-1");
+        index.put("folder/job", 2, SERVER_URL, "pi-2");
+        index.put("other", 7, OTHER_SERVER_URL, "pi-1");
+        // registered twice
+        index.put("folder/job", 2, SERVER_URL, "pi-2");
+
+        assertEquals("folder/job #1", String.valueOf(index.find(SERVER_URL, "pi-1")));
+        assertEquals("other #7", String.valueOf(index.find(OTHER_SERVER_URL, "pi-1")));
+        assertNull(index.find(OTHER_SERVER_URL, "pi-2"));
+        assertEquals(2, index.findAll("pi-1").size());
+        assertEquals(3, index.size());
+        index.closeFile();
+
+        index = load();
+        assertEquals(3, index.size());
+        assertEquals(2, index.find(SERVER_URL, "pi-2").getBuildNumber());
+        index.closeFile();
+    }
+
+    @Test
+    public void deletedAndRenamedJobsAreFollowed() throws Exception {
+        PipelineIndex index = load();
+        index.put("folder/job", 1, SERVER_URL, "pi-1");
+        index.put("folder/job", 2, SERVER_URL, "pi-2");
+        index.put("folder/other", 1, SERVER_URL, "pi-3");
+        index.put("folder2/job", 1, SERVER_URL, "pi-4");
+        index.put("renamed", 1, OTHER_SERVER_URL, "pi-5");
+
+        index.removeBuild("folder/job", 1);
+        index.renameJob("folder/job", "job");
+        index.removeJob("folder");
+        assertNull(index.find(SERVER_URL, "pi-1"));
+        assertEquals("job #2", String.valueOf(index.find(SERVER_URL, "pi-2")));
+        assertNull(index.find(SERVER_URL, "pi-3"));
+        assertEquals("folder2/job #1", String.valueOf(index.find(SERVER_URL, "pi-4")));
+        index.closeFile();
+
+        index = load();
+        assertEquals(2 + 1, index.size());
+        assertNull(index.find(SERVER_URL, "pi-1"));
+        assertEquals("job #2", String.valueOf(index.find(SERVER_URL, "pi-2")));
+        assertNull(index.find(SERVER_URL, "pi-3"));
+        index.closeFile();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestRateLimiter {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static ContinuumResponseException response(int status) {
+        return new ContinuumResponseException(status, "Status " + status, null, null, null, -1L);
+    }
+
+    @Test
+    public void requestsBeyondTheBucketWait() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter("http://ctm", 1.0, 10.0, 1.0, 0.5, 0.0, 0L, 0L);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0L, rateLimiter.reserve(0L));
+        }
+        assertEquals(SECOND / 10, rateLimiter.reserve(0L));
+        assertEquals(2 * SECOND / 10, rateLimiter.reserve(0L));
+        // refilled meanwhile
+        assertEquals(0L, rateLimiter.reserve(SECOND));
+
+        RateLimiter.Stats stats = rateLimiter.getSnapshot();
+        assertEquals(2, stats.getThrottledCount());
+        assertEquals(3 * SECOND / 10, stats.getWaitedNanos());
+    }
+
+    @Test
+    public void requestsWaitingTooLongFailAtOnce() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter("http://ctm", 1.0, 2.0, 1.0, 0.5, 0.0, 2 * SECOND, 0L);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(0L, rateLimiter.reserve(0L));
+        }
+        assertEquals(SECOND / 2, rateLimiter.reserve(0L));
+        assertEquals(SECOND, rateLimiter.reserve(0L));
+        assertEquals(3 * SECOND / 2, rateLimiter.reserve(0L));
+        assertEquals(2 * SECOND, rateLimiter.reserve(0L));
+        try {
+            rateLimiter.reserve(0L);
+            fail("too long a wait expected");
+        } catch (RateLimitedException e) {
+            // expected
+        }
+        // the token was given back, and so is the one of a request that did not wait for it
+        rateLimiter.release(0L);
+        assertEquals(2 * SECOND, rateLimiter.reserve(0L));
+        assertEquals(5, rateLimiter.getSnapshot().getThrottledCount());
+    }
+
+    @Test
+    public void rateDecreasesMultiplicativelyAndRecoversAdditively() {
+        RateLimiter rateLimiter = new RateLimiter("http://ctm", 1.0, 10.0, 1.0, 0.5, 0.0, 0L, 0L);
+        rateLimiter.onResponse(0L, MILLISECOND, response(429));
+        assertEquals(5.0, rateLimiter.getRate(), 0.001);
+        // the other responses to the requests already sent are the same signal
+        rateLimiter.onResponse(SECOND / 2, MILLISECOND, response(503));
+        assertEquals(5.0, rateLimiter.getRate(), 0.001);
+        rateLimiter.onResponse(SECOND, MILLISECOND, response(503));
+        assertEquals(2.5, rateLimiter.getRate(), 0.001);
+
+        // other errors are not overload signals
+        rateLimiter.onResponse(3 * SECOND, MILLISECOND, new IOException("reset"));
+        assertEquals(2.5, rateLimiter.getRate(), 0.001);
+        rateLimiter.onResponse(3 * SECOND, MILLISECOND, response(400));
+        assertEquals(4.5, rateLimiter.getRate(), 0.001);
+        rateLimiter.onResponse(4 * SECOND, MILLISECOND, null);
+        assertEquals(5.5, rateLimiter.getRate(), 0.001);
+        rateLimiter.onResponse(20 * SECOND, MILLISECOND, null);
+        assertEquals(10.0, rateLimiter.getRate(), 0.001);
+        assertEquals(2, rateLimiter.getSnapshot().getDecreaseCount());
+
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.onResponse(30 * SECOND + i * SECOND, MILLISECOND, response(429));
+        }
+        assertEquals(1.0, rateLimiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void slowResponsesDecreaseTheRate() {
+        RateLimiter rateLimiter = new RateLimiter("http://ctm", 1.0, 10.0, 1.0, 0.5, 3.0, 0L, 0L);
+        long now = 0L;
+        for (int i = 0; i < 30; i++) {
+            now += SECOND;
+            rateLimiter.onResponse(now, 200 * MILLISECOND, null);
+        }
+        assertEquals(10.0, rateLimiter.getRate(), 0.001);
+        rateLimiter.onResponse(now + SECOND, 500 * MILLISECOND, null);
+        assertEquals(10.0, rateLimiter.getRate(), 0.001);
+        rateLimiter.onResponse(now + 2 * SECOND, 2000 * MILLISECOND, null);
+        assertEquals(5.0, rateLimiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void throttledServerGetsFewerRequests() throws Exception {
+        final ContinuumStub stub = ContinuumStub.start();
+        try {
+            stub.setMaxConcurrentRequests(1);
+            stub.setLatency(50L, 0L);
+            RateLimiter rateLimiter = RateLimiter.get(ContinuumClient.getServerKey(stub.getUrl()));
+            double rate = rateLimiter.getRate();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            ContinuumClient.post(stub.getUrl(), "token",
+                                    ContinuumConstants.COMMAND_NAME__POST_PI_DATA, "{}");
+                        } catch (Exception e) {
+                            // the overload is what is tested
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(stub.getThrottled() > 0);
+            assertTrue(rateLimiter.getRate() < rate);
+        } finally {
+            stub.close();
+        }
+    }
+}
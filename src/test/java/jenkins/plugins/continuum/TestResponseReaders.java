@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+public class TestResponseReaders {
+
+    private static String readPipelineId(String response) throws Exception {
+        return ResponseReaders.PIPELINE_ID.read(new InputStreamEntity(new ByteArrayInputStream(response.getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void pipelineIdIsReadFromResponse() throws Exception {
+        assertEquals("5a1", readPipelineId(
+                "{\"Method\": \"initiate_pipeline\", \"Other\": {\"_id\": \"no\"},"
+                + " \"Response\": {\"details\": {\"_id\": \"no\"}, \"_id\": \"5a1\"}}"));
+    }
+
+    @Test
+    public void pipelineIdReadingStopsOnceFound() throws Exception {
+        // the rest of the response is not even valid, and well beyond the parser buffer
+        StringBuilder response = new StringBuilder("{\"Response\": {\"_id\": \"5a1\", \"big\": [1");
+        while (response.length() < 100000) {
+            response.append(", 2");
+        }
+        ByteArrayInputStream stream = new ByteArrayInputStream(response.toString().getBytes("UTF-8"));
+        assertEquals("5a1", ResponseReaders.PIPELINE_ID.read(new InputStreamEntity(stream)));
+        assertTrue(stream.available() > 0);
+    }
+
+    @Test
+    public void responseWithoutPipelineIdHasNone() throws Exception {
+        assertNull(readPipelineId("{\"Response\": \"no pipeline\"}"));
+        assertNull(readPipelineId("{\"Response\": {\"_id\": null}}"));
+        assertNull(readPipelineId("[]"));
+    }
+
+    @Test
+    public void pipelineStatusIsReadFromResponse() throws Exception {
+        assertEquals("processing", ResponseReaders.PIPELINE_STATUS.read(new StringEntity(
+                "{\"Method\": \"get_pipelineinstance\", \"Response\": {\"_id\": \"5a1\", \"status\": \"processing\"}}")));
+        assertNull(ResponseReaders.PIPELINE_STATUS.read(new StringEntity("{\"Response\": {\"_id\": \"5a1\"}}")));
+    }
+
+    @Test
+    public void errorFieldsAreRead() throws Exception {
+        Map<String, String> error = ResponseReaders.ERROR.read(new StringEntity(
+                "{\"ErrorCode\": \"E42\", \"Response\": {}, \"ErrorMessage\": \"Unknown project\", \"ErrorDetail\": null}"));
+        assertEquals("E42", error.get(ResponseReaders.FIELD_ERROR_CODE));
+        assertEquals("Unknown project", error.get(ResponseReaders.FIELD_ERROR_MESSAGE));
+        assertNull(error.get(ResponseReaders.FIELD_ERROR_DETAIL));
+    }
+
+    @Test
+    public void errorThatIsNotJsonHasNoFields() throws Exception {
+        assertTrue(ResponseReaders.ERROR.read(new StringEntity("<html>Bad Gateway</html>")).isEmpty());
+    }
+
+    @Test
+    public void countingReaderMeasuresTheResponse() throws Exception {
+        String response = "{\"Response\": {\"_id\": \"5a1\"}}";
+        AtomicLong bytes = new AtomicLong(-1);
+        ResponseReader<String> reader = ResponseReaders.counting(ResponseReaders.BODY, bytes);
+
+        assertEquals(response, reader.read(new StringEntity(response)));
+        assertEquals(response.length(), bytes.get());
+
+        // without Content-Length, the bytes read are counted
+        assertEquals(response, reader.read(new InputStreamEntity(new ByteArrayInputStream(response.getBytes("UTF-8")))));
+        assertEquals(response.length(), bytes.get());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.junit.Test;
+
+public class TestRetryPolicy {
+
+    private static final String POST_PI_DATA = ContinuumConstants.COMMAND_NAME__POST_PI_DATA;
+    private static final String SET_PI_DATA = ContinuumConstants.COMMAND_NAME__SET_PI_DATA;
+
+    private final RetryPolicy retryPolicy = new RetryPolicy(3, 100L, 1000L, 5000L);
+
+    private static ContinuumResponseException response(int status, long retryAfter) {
+        return new ContinuumResponseException(status, "Status " + status, null, null, null, retryAfter);
+    }
+
+    @Test
+    public void unprocessedCommandsAreRetried() {
+        assertTrue(this.retryPolicy.isRetryable(POST_PI_DATA, response(429, -1L), 0));
+        assertTrue(this.retryPolicy.isRetryable(POST_PI_DATA, response(503, -1L), 0));
+        assertTrue(this.retryPolicy.isRetryable(POST_PI_DATA, new ConnectException("Connection refused"), 0));
+        assertTrue(this.retryPolicy.isRetryable(POST_PI_DATA, new ConnectTimeoutException("timed out"), 0));
+    }
+
+    @Test
+    public void commandsWithAnUnknownOutcomeAreRetriedOnlyWhenIdempotent() {
+        Exception[] unknown = { response(502, -1L), response(504, -1L), new SocketTimeoutException("Read timed out"),
+                new SocketException("Connection reset") };
+        for (Exception e : unknown) {
+            assertFalse(e.toString(), this.retryPolicy.isRetryable(POST_PI_DATA, e, 0));
+            assertTrue(e.toString(), this.retryPolicy.isRetryable(SET_PI_DATA, e, 0));
+        }
+    }
+
+    @Test
+    public void failedCommandsAreNotRetried() {
+        Exception[] failures = { response(400, -1L), response(401, -1L), response(404, -1L), response(500, -1L),
+                new IOException("Unexpected end of stream") };
+        for (Exception e : failures) {
+            assertFalse(e.toString(), this.retryPolicy.isRetryable(POST_PI_DATA, e, 0));
+            assertFalse(e.toString(), this.retryPolicy.isRetryable(SET_PI_DATA, e, 0));
+        }
+    }
+
+    @Test
+    public void retriesAreBounded() {
+        assertTrue(this.retryPolicy.isRetryable(SET_PI_DATA, response(503, -1L), 2));
+        assertFalse(this.retryPolicy.isRetryable(SET_PI_DATA, response(503, -1L), 3));
+        assertFalse(RetryPolicy.NONE.isRetryable(SET_PI_DATA, response(503, -1L), 0));
+    }
+
+    @Test
+    public void delayGrowsUpToTheMaximum() {
+        for (int i = 0; i < 100; i++) {
+            long first = this.retryPolicy.getDelay(0, response(503, -1L));
+            assertTrue(first >= 0L && first < 100L);
+            long third = this.retryPolicy.getDelay(2, response(503, -1L));
+            assertTrue(third >= 0L && third < 400L);
+            long last = this.retryPolicy.getDelay(40, response(503, -1L));
+            assertTrue(last >= 0L && last < 1000L);
+        }
+    }
+
+    @Test
+    public void retryAfterIsHonouredUpToTheMaximum() {
+        assertEquals(2000L, this.retryPolicy.getDelay(0, response(503, 2000L)));
+        assertEquals(0L, this.retryPolicy.getDelay(2, response(429, 0L)));
+        assertEquals(5000L, this.retryPolicy.getDelay(0, response(429, 60000L)));
+    }
+}
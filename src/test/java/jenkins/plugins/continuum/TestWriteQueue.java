@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWriteQueue {
+
+    private static final String COMMAND = ContinuumConstants.COMMAND_NAME__SET_PI_DATA;
+
+    private ContinuumStub stub;
+
+    @Before
+    public void startStub() throws Exception {
+        this.stub = ContinuumStub.start();
+    }
+
+    @After
+    public void stopStub() {
+        this.stub.close();
+    }
+
+    private Future<String> add(String group, String coalesceKey, int value) throws IOException {
+        return WriteQueue.add(this.stub.getUrl(), "token", COMMAND, CommandPayload.of(payload(group, value)), group,
+                coalesceKey, null);
+    }
+
+    private static String payload(String group, int value) {
+        return "{\"pi\": \"" + group + "\", \"value\": " + value + "}";
+    }
+
+    private void awaitRequests(int requests) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (this.stub.getRequests(COMMAND) < requests && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+        assertEquals(requests, this.stub.getRequests(COMMAND));
+    }
+
+    @Test
+    public void writesOfAGroupAreSentInOrder() throws Exception {
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(add("pi-1", null, i));
+            futures.add(add("pi-2", null, i));
+        }
+        for (Future<String> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        List<String> pi1 = new ArrayList<String>();
+        for (String payload : this.stub.getPayloads()) {
+            if (payload.contains("pi-1")) {
+                pi1.add(payload);
+            }
+        }
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            expected.add(payload("pi-1", i));
+        }
+        assertEquals(expected, pi1);
+    }
+
+    @Test
+    public void pendingWriteIsReplacedByALaterOne() throws Exception {
+        this.stub.setLatency(200L, 0L);
+        Future<String> first = add("pi-1", "key", 1);
+        awaitRequests(1);
+        // pending while the first one is in flight
+        Future<String> second = add("pi-1", "key", 2);
+        Future<String> third = add("pi-1", "key", 3);
+        first.get(10, TimeUnit.SECONDS);
+        assertEquals(third.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+        assertEquals(2, this.stub.getRequests(COMMAND));
+        assertEquals(payload("pi-1", 3), this.stub.getLastPayload());
+    }
+
+    @Test
+    public void slowGroupDoesNotHoldBackTheOthers() throws Exception {
+        this.stub.setLatency(300L, 0L);
+        Future<String> slow = null;
+        for (int i = 0; i < 3; i++) {
+            slow = add("pi-1", null, i);
+        }
+        add("pi-2", null, 0).get(10, TimeUnit.SECONDS);
+        // flushed while the first group is still being sent
+        add("pi-2", null, 1).get(10, TimeUnit.SECONDS);
+        assertFalse(slow.isDone());
+        slow.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void failedWritesFailTheirWaitersOnly() throws Exception {
+        this.stub.setErrorRate(1.0);
+        Future<String> failed = add("pi-1", null, 1);
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            fail("500 expected");
+        } catch (ExecutionException e) {
+            assertEquals(500, ((ContinuumResponseException) e.getCause()).getStatusCode());
+        }
+        this.stub.setErrorRate(0.0);
+        add("pi-1", null, 2).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void writesFailingRightAwayAreAllFailed() throws Exception {
+        CircuitBreaker circuitBreaker = CircuitBreaker.get(ContinuumClient.getServerKey(this.stub.getUrl()));
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            circuitBreaker.onFailure(new IOException("down"));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(add("pi-1", null, i));
+        }
+        for (Future<String> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("circuit open expected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof CircuitOpenException);
+            }
+        }
+        assertEquals(0, this.stub.getRequests(COMMAND));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.actions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestContinuumCallsAction {
+
+    private static ContinuumCallsAction.Call call(String command, long wireMicros, String status) {
+        return new ContinuumCallsAction.Call(0L, "http://server", command, 100, 10, 50, wireMicros, status);
+    }
+
+    @Test
+    public void callsAreTotalledPerCommand() {
+        ContinuumCallsAction action = new ContinuumCallsAction();
+        action.add(call("initiate_pipeline", 1000, null));
+        action.add(call("set_pi_data", 2000, null));
+        action.add(call("set_pi_data", 4000, "500"));
+
+        List<ContinuumCallsAction.Totals> totals = action.getTotals();
+        assertEquals(2, totals.size());
+        assertEquals("initiate_pipeline", totals.get(0).getCommand());
+        ContinuumCallsAction.Totals setPiData = totals.get(1);
+        assertEquals(2, setPiData.getCalls());
+        assertEquals(1, setPiData.getFailures());
+        assertEquals(200, setPiData.getPayloadBytes());
+        assertEquals("6.0", setPiData.getWireMillis());
+        assertEquals("4.1", setPiData.getMaxMillis());
+
+        ContinuumCallsAction.Totals total = action.getTotal();
+        assertEquals(3, total.getCalls());
+        assertEquals("0.2", total.getQueueMillis());
+    }
+
+    @Test
+    public void onlyTheSlowestCallsAreKept() {
+        ContinuumCallsAction action = new ContinuumCallsAction();
+        int calls = ContinuumCallsAction.TOP_CALLS * 3;
+        for (int i = 0; i < calls; i++) {
+            // in no particular order
+            action.add(call("set_pi_data", (i * 7919L) % calls * 1000, null));
+        }
+        List<ContinuumCallsAction.Call> slowest = action.getSlowestCalls();
+        assertEquals(ContinuumCallsAction.TOP_CALLS, slowest.size());
+        for (int i = 0; i < slowest.size(); i++) {
+            assertEquals((calls - 1 - i) * 1000L + 50, slowest.get(i).getTotalMicros());
+        }
+        assertEquals(calls, action.getTotal().getCalls());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.actions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class TestContinuumWebhook {
+
+    private static final String SECRET = "s3cret";
+
+    /** Result of a request: the status and the body. */
+    private static final class Response implements InvocationHandler {
+        private int status = 200;
+        private final StringWriter body = new StringWriter();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("sendError") || method.getName().equals("setStatus")) {
+                this.status = (Integer) args[0];
+            }
+            else if (method.getName().equals("getWriter")) {
+                return new PrintWriter(this.body);
+            }
+            return null;
+        }
+    }
+
+    private static Response post(String secret, String token, String body) throws Exception {
+        return post(secret, token, null, body);
+    }
+
+    private static Response post(String secret, String token, String tokenParameter, String body) throws Exception {
+        final Map<String, Object> request = new HashMap<String, Object>();
+        request.put("getMethod", "POST");
+        request.put("getHeader", token);
+        request.put("getParameter", tokenParameter);
+        request.put("getContentLength", body.length());
+        request.put("getInputStream", new ByteArrayInputStream(body.getBytes("UTF-8")));
+        HttpServletRequest req = (HttpServletRequest) Proxy.newProxyInstance(
+                TestContinuumWebhook.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return request.get(method.getName());
+                    }
+                });
+        Response response = new Response();
+        HttpServletResponse rsp = (HttpServletResponse) Proxy.newProxyInstance(
+                TestContinuumWebhook.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, response);
+        ContinuumWebhook.handle(req, rsp, secret);
+        return response;
+    }
+
+    @Test
+    public void notificationsNeedTheSecret() throws Exception {
+        String notification = "{\"serverUrl\":\"https://ctm.example.com\",\"pi\":\"pi-1\",\"status\":\"success\"}";
+        assertEquals(404, post(null, SECRET, notification).status);
+
+        assertEquals(403, post(SECRET, null, notification).status);
+        assertEquals(403, post(SECRET, "wrong", notification).status);
+        // the secret would end up in the access logs
+        assertEquals(403, post(SECRET, null, SECRET, notification).status);
+        Response response = post(SECRET, SECRET, notification);
+        assertEquals(200, response.status);
+        assertEquals("{\"resumed\":0}", response.body.toString());
+    }
+
+    @Test
+    public void notificationsNeedTheServerPipelineAndStatus() throws Exception {
+        assertEquals(400, post(SECRET, SECRET, "[]").status);
+        assertEquals(400, post(SECRET, SECRET, "{\"pi\":\"pi-1\",\"status\":\"success\"}").status);
+        assertEquals(400, post(SECRET, SECRET, "{\"serverUrl\":\"https://ctm.example.com\",\"pi\":\"pi-1\"}").status);
+        assertEquals(400, post(SECRET, SECRET,
+                "{\"serverUrl\":\"not a url\",\"pi\":\"pi-1\",\"status\":\"success\"}").status);
+    }
+
+    @Test
+    public void otherFieldsAreIgnored() throws Exception {
+        InputStream in = new ByteArrayInputStream(
+                ("{\"event\":{\"pi\":\"nested\"},\"pi\":\"pi-1\",\"tags\":[1,2],\"status\":\"failure\",\"n\":3,"
+                + "\"serverUrl\":\"https://ctm.example.com\"}").getBytes("UTF-8"));
+        String[] notification = ContinuumWebhook.read(in);
+        assertEquals("pi-1", notification[0]);
+        assertEquals("failure", notification[1]);
+        assertEquals("https://ctm.example.com", notification[2]);
+
+        notification = ContinuumWebhook.read(new ByteArrayInputStream("{\"status\":1}".getBytes("UTF-8")));
+        assertNull(notification[0]);
+        assertNull(notification[1]);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.actions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class TestPipelineInitiatedAction {
+
+    private static final String SERVER_URL = "https://continuum.example.com/";
+
+    @Test
+    public void pipelineIdsAreKeptInTheirOrder() {
+        PipelineInitiatedAction action = new PipelineInitiatedAction(SERVER_URL, "pi-1");
+        assertTrue(action.addPipelineId(SERVER_URL, "pi-2"));
+        assertFalse(action.addPipelineId(SERVER_URL, "pi-1"));
+        assertTrue(action.addPipelineId("https://other.example.com/", "pi-3"));
+
+        assertEquals(Arrays.asList("pi-1", "pi-2"), new ArrayList<String>(action.getPipelineIds(SERVER_URL)));
+        assertTrue(action.getPipelineIds(SERVER_URL).contains("pi-2"));
+        assertEquals("pi-2", action.getLastPipelineId(SERVER_URL));
+
+        action.reset(SERVER_URL);
+        assertTrue(action.getPipelineIds(SERVER_URL).isEmpty());
+        assertNull(action.getLastPipelineId(SERVER_URL));
+        assertEquals("pi-3", action.getLastPipelineId("https://other.example.com/"));
+        assertTrue(action.getPipelineIds("https://unknown.example.com/").isEmpty());
+    }
+
+    @Test
+    public void concurrentRegistrationsAreNotLost() throws Exception {
+        final PipelineInitiatedAction action = new PipelineInitiatedAction(SERVER_URL, "pi-0");
+        final int threads = 8;
+        final int idsPerThread = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        for (int i = 0; i < idsPerThread; i++) {
+                            action.addPipelineId(SERVER_URL, "pi-" + thread + "-" + i);
+                            // every thread also registers the ids of the others
+                            action.addPipelineId(SERVER_URL, "pi-" + ((thread + 1) % threads) + "-" + i);
+                            // and reads while the others write
+                            action.getPipelineIds(SERVER_URL).contains("pi-0");
+                        }
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        List<String> ids = new ArrayList<String>(action.getPipelineIds(SERVER_URL));
+        assertEquals(threads * idsPerThread + 1, ids.size());
+        assertEquals(ids.size(), action.getPipelineIds(SERVER_URL).size());
+        assertEquals("pi-0", ids.get(0));
+        assertEquals(ids.get(ids.size() - 1), action.getLastPipelineId(SERVER_URL));
+    }
+
+    @Test
+    public void pipelineIdsAreSavedInTheirFile() throws Exception {
+        File file = File.createTempFile("continuum", ".bin");
+        try {
+            PipelineIdsFile ids = new PipelineIdsFile(file);
+            Map<String, List<String>> initial = new LinkedHashMap<String, List<String>>();
+            initial.put(SERVER_URL, Arrays.asList("5a0c1f2e3d4b5a6978877665"));
+            ids.write(initial);
+            ids.append(SERVER_URL, "not-a-continuum-id");
+            ids.append("https://other.example.com/", "0123456789abcdef01234567");
+            ids.append(SERVER_URL, "0123456789ABCDEF01234567");
+            long beforeReset = file.length();
+            ids.reset("https://other.example.com/");
+            ids.append("https://other.example.com/", "fedcba9876543210fedcba98");
+
+            Map<String, List<String>> read = new PipelineIdsFile(file).read();
+            assertEquals(Arrays.asList(SERVER_URL, "https://other.example.com/"),
+                    new ArrayList<String>(read.keySet()));
+            assertEquals(Arrays.asList("5a0c1f2e3d4b5a6978877665", "not-a-continuum-id", "0123456789ABCDEF01234567"),
+                    read.get(SERVER_URL));
+            assertEquals(Arrays.asList("fedcba9876543210fedcba98"), read.get("https://other.example.com/"));
+            // the server is written once, and the id packed
+            assertEquals(beforeReset + 3 + 1 + 2 + 12, file.length());
+
+            // cut short while appending
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(file.length() - 5);
+            } finally {
+                raf.close();
+            }
+            ids = new PipelineIdsFile(file);
+            read = ids.read();
+            assertTrue(read.get("https://other.example.com/").isEmpty());
+            ids.append("https://other.example.com/", "fedcba9876543210fedcba98");
+            assertEquals(Arrays.asList("fedcba9876543210fedcba98"),
+                    new PipelineIdsFile(file).read().get("https://other.example.com/"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void unreadablePipelineIdsFileIsMovedAside() throws Exception {
+        File file = File.createTempFile("continuum", ".bin");
+        File corrupt = new File(file.getPath() + ".corrupt");
+        file.delete();
+        try {
+            PipelineIdsFile ids = new PipelineIdsFile(file);
+            ids.append(SERVER_URL, "5a0c1f2e3d4b5a6978877665");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // a record of a type unknown to this version
+                raf.seek(raf.length());
+                raf.write(9);
+                raf.writeShort(0);
+            } finally {
+                raf.close();
+            }
+
+            ids = new PipelineIdsFile(file);
+            try {
+                ids.read();
+                fail("unknown record expected");
+            } catch (IOException e) {
+                assertTrue(corrupt.isFile());
+            }
+            // not appended to the unreadable file, whose servers are unknown
+            ids.append(SERVER_URL, "0123456789abcdef01234567");
+            assertEquals(Arrays.asList("0123456789abcdef01234567"), new PipelineIdsFile(file).read().get(SERVER_URL));
+        } finally {
+            file.delete();
+            corrupt.delete();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.steps;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.Result;
+import jenkins.plugins.continuum.ContinuumStub;
+
+/**
+ * Runs concurrent pipelines calling the steps against a {@link ContinuumStub}, and reports the throughput,
+ * the step latencies and the peak thread count.
+ * <p>
+ * Not run by the build, run it with {@code mvn test -Dtest=CtmStepsLoadHarness}, configured with:
+ * <ul>
+ * <li>{@code continuum.load.jobs}: pipelines run at once (default 20)</li>
+ * <li>{@code continuum.load.steps}: ctmPostPiData and ctmSetPiData steps of each pipeline (default 20)</li>
+ * <li>{@code continuum.load.latency} and {@code continuum.load.jitter}: milliseconds of the stub responses
+ * (default 20 and 10)</li>
+ * <li>{@code continuum.load.errorRate}: fraction of the requests failed by the stub (default 0)</li>
+ * <li>{@code continuum.load.maxConcurrent}: requests the stub handles at once before answering 429 (default 0, no limit)</li>
+ * </ul>
+ */
+public class CtmStepsLoadHarness {
+
+    private static final String MARKER = "CTM_STEP_NANOS ";
+    private static final Pattern MARKER_PATTERN = Pattern.compile(MARKER + "(\\d+)");
+
+    private static final int JOBS = Integer.getInteger("continuum.load.jobs", 20);
+    private static final int STEPS = Integer.getInteger("continuum.load.steps", 20);
+    private static final long LATENCY = Long.getLong("continuum.load.latency", 20L);
+    private static final long JITTER = Long.getLong("continuum.load.jitter", 10L);
+    private static final double ERROR_RATE = Double.parseDouble(System.getProperty("continuum.load.errorRate", "0"));
+    private static final int MAX_CONCURRENT = Integer.getInteger("continuum.load.maxConcurrent", 0);
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void runLoad() throws Exception {
+        ContinuumStub stub = ContinuumStub.start()
+                .setLatency(LATENCY, JITTER)
+                .setErrorRate(ERROR_RATE)
+                .setMaxConcurrentRequests(MAX_CONCURRENT);
+        try {
+            List<WorkflowJob> jobs = new ArrayList<WorkflowJob>();
+            for (int i = 0; i < JOBS; i++) {
+                WorkflowJob job = jenkins.jenkins.createProject(WorkflowJob.class, "load" + i);
+                job.setDefinition(new CpsFlowDefinition(getScript(stub.getUrl())));
+                jobs.add(job);
+            }
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            threads.resetPeakThreadCount();
+            long start = System.nanoTime();
+            List<Future<WorkflowRun>> builds = new ArrayList<Future<WorkflowRun>>();
+            for (WorkflowJob job : jobs) {
+                builds.add(job.scheduleBuild2(0));
+            }
+            List<WorkflowRun> runs = new ArrayList<WorkflowRun>();
+            for (Future<WorkflowRun> build : builds) {
+                runs.add(build.get(30, TimeUnit.MINUTES));
+            }
+            long elapsed = System.nanoTime() - start;
+            int peakThreads = threads.getPeakThreadCount();
+
+            List<Long> latencies = new ArrayList<Long>();
+            int unstable = 0;
+            for (WorkflowRun run : runs) {
+                if (run.getResult() != Result.SUCCESS) {
+                    unstable++;
+                }
+                Matcher matcher = MARKER_PATTERN.matcher(JenkinsRule.getLog(run));
+                while (matcher.find()) {
+                    latencies.add(Long.valueOf(matcher.group(1)));
+                }
+            }
+            Collections.sort(latencies);
+
+            double seconds = elapsed / 1e9;
+            System.out.println(String.format(Locale.ROOT,
+                    "Continuum load: %d pipelines x %d steps, stub latency %d+%dms, error rate %.2f, max concurrent %d%n"
+                    + "  elapsed %.2fs, throughput %.1f steps/s, %d builds not successful%n"
+                    + "  step latency p50 %.1fms, p99 %.1fms, max %.1fms%n"
+                    + "  peak threads %d, peak concurrent requests %d, requests answered 500: %d, 429: %d",
+                    JOBS, STEPS * 2 + 1, LATENCY, JITTER, ERROR_RATE, MAX_CONCURRENT,
+                    seconds, latencies.size() / seconds, unstable,
+                    percentile(latencies, 50), percentile(latencies, 99), percentile(latencies, 100),
+                    peakThreads, stub.getPeakConcurrentRequests(), stub.getErrors(), stub.getThrottled()));
+        } finally {
+            stub.close();
+        }
+    }
+
+    /**
+     * The pipeline initiates a pipeline instance then alternates ctmPostPiData and ctmSetPiData on it,
+     * echoing how long each step took.
+     */
+    private static String getScript(String serverUrl) {
+        return "def url = '" + serverUrl + "'\n"
+                + "long t = System.nanoTime()\n"
+                + "ctmInitiatePipeline serverUrl: url, project: 'load', group: 'load', definition: 'load', markUnstable: true\n"
+                + "echo \"" + MARKER + "${System.nanoTime() - t}\"\n"
+                + "for (int i = 0; i < " + STEPS + "; i++) {\n"
+                + "  t = System.nanoTime()\n"
+                + "  ctmPostPiData serverUrl: url, useLastPi: true, key: 'posted' + i, value: 'value' + i, markUnstable: true\n"
+                + "  echo \"" + MARKER + "${System.nanoTime() - t}\"\n"
+                + "  t = System.nanoTime()\n"
+                + "  ctmSetPiData serverUrl: url, useLastPi: true, key: 'set' + i, value: 'value' + i, markUnstable: true\n"
+                + "  echo \"" + MARKER + "${System.nanoTime() - t}\"\n"
+                + "}\n";
+    }
+
+    /** The percentile of the sorted nanoseconds, in milliseconds. */
+    private static double percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return Double.NaN;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+}
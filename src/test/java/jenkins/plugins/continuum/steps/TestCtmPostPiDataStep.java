@@ -16,6 +16,8 @@
 
 package jenkins.plugins.continuum.steps;
 
+import static org.junit.Assert.assertEquals;
+
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
@@ -24,6 +26,8 @@ import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
 import hudson.model.Result;
+import jenkins.plugins.continuum.ContinuumConstants;
+import jenkins.plugins.continuum.ContinuumStub;
 import jenkins.plugins.continuum.steps.CtmPostPiDataStep.CtmPostPiDataStepExecution;
 
 public class TestCtmPostPiDataStep {
@@ -67,4 +71,98 @@ public class TestCtmPostPiDataStep {
         jenkins.assertLogContains(CtmPostPiDataStepExecution.LOG_MESSAGE_INVALID_VALUE, b1);
     }
 
+    @Test
+    public void buildWithInvalidDataMustFail() throws Exception {
+        WorkflowJob p = jenkins.jenkins.createProject(WorkflowJob.class, "p");
+        
+        p.setDefinition(new CpsFlowDefinition(
+                "ctmPostPiData serverUrl: 'http://server.url', data: 'key1234=val12324', markUnstable: true"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.UNSTABLE, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains(CtmPostPiDataStepExecution.LOG_MESSAGE_INVALID_DATA, b1);
+    }
+
+    @Test
+    public void asyncBuildPostsTheData() throws Exception {
+        ContinuumStub stub = ContinuumStub.start();
+        boolean async = CtmPostPiDataStepExecution.ASYNC;
+        CtmPostPiDataStepExecution.ASYNC = true;
+        try {
+            WorkflowJob p = jenkins.jenkins.createProject(WorkflowJob.class, "p");
+
+            p.setDefinition(new CpsFlowDefinition(
+                    "ctmPostPiData serverUrl: '" + stub.getUrl() + "', apiToken: 'token', pi: 'pi-1, pi-2', "
+                    + "key: 'key1234', value: 'val12324', markUnstable: true"
+            ));
+            WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+            jenkins.assertBuildStatusSuccess(jenkins.waitForCompletion(b1));
+            jenkins.assertLogContains("Pipeline data posted (pi-1)", b1);
+            jenkins.assertLogContains("Pipeline data posted (pi-2)", b1);
+            assertEquals(2, stub.getRequests(ContinuumConstants.COMMAND_NAME__POST_PI_DATA));
+        } finally {
+            CtmPostPiDataStepExecution.ASYNC = async;
+            stub.close();
+        }
+    }
+
+    @Test
+    public void asyncBuildWithFailingServerMustBeUnstable() throws Exception {
+        ContinuumStub stub = ContinuumStub.start().setErrorRate(1.0);
+        boolean async = CtmPostPiDataStepExecution.ASYNC;
+        CtmPostPiDataStepExecution.ASYNC = true;
+        try {
+            WorkflowJob p = jenkins.jenkins.createProject(WorkflowJob.class, "p");
+
+            p.setDefinition(new CpsFlowDefinition(
+                    "ctmPostPiData serverUrl: '" + stub.getUrl() + "', apiToken: 'token', pi: 'pi-1', "
+                    + "key: 'key1234', value: 'val12324', markUnstable: true"
+            ));
+            WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+            jenkins.assertBuildStatus(Result.UNSTABLE, jenkins.waitForCompletion(b1));
+            jenkins.assertLogContains("Failed to post data on pipeline pi-1", b1);
+            jenkins.assertLogContains("Stub failure", b1);
+        } finally {
+            CtmPostPiDataStepExecution.ASYNC = async;
+            stub.close();
+        }
+    }
+
+    @Test
+    public void asyncBuildWithEmptyKeyMustFail() throws Exception {
+        boolean async = CtmPostPiDataStepExecution.ASYNC;
+        CtmPostPiDataStepExecution.ASYNC = true;
+        try {
+            WorkflowJob p = jenkins.jenkins.createProject(WorkflowJob.class, "p");
+
+            // the commands are prepared off the pipeline thread, the failure still ends the step
+            p.setDefinition(new CpsFlowDefinition(
+                    "ctmPostPiData serverUrl: 'http://server.url', key: '', value: 'val12324', markUnstable: true"
+            ));
+            WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+            jenkins.assertBuildStatus(Result.UNSTABLE, jenkins.waitForCompletion(b1));
+            jenkins.assertLogContains(CtmPostPiDataStepExecution.LOG_MESSAGE_INVALID_KEY, b1);
+        } finally {
+            CtmPostPiDataStepExecution.ASYNC = async;
+        }
+    }
+
+    @Test
+    public void asyncBuildWithUnreachableServerMustBeUnstable() throws Exception {
+        boolean async = CtmPostPiDataStepExecution.ASYNC;
+        CtmPostPiDataStepExecution.ASYNC = true;
+        try {
+            WorkflowJob p = jenkins.jenkins.createProject(WorkflowJob.class, "p");
+
+            p.setDefinition(new CpsFlowDefinition(
+                    "ctmPostPiData serverUrl: 'http://127.0.0.1:1', apiToken: 'token', pi: 'pi-1', "
+                    + "key: 'key1234', value: 'val12324', markUnstable: true"
+            ));
+            WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+            jenkins.assertBuildStatus(Result.UNSTABLE, jenkins.waitForCompletion(b1));
+        } finally {
+            CtmPostPiDataStepExecution.ASYNC = async;
+        }
+    }
+
 }
@@ -16,6 +16,9 @@
 
 package jenkins.plugins.continuum.steps;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
@@ -24,6 +27,9 @@ import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
 import hudson.model.Result;
+import hudson.util.FormValidation;
+import jenkins.plugins.continuum.ContinuumConstants;
+import jenkins.plugins.continuum.ContinuumStub;
 import jenkins.plugins.continuum.steps.CtmPostPiDataStep.CtmPostPiDataStepExecution;
 
 public class TestCtmSetPiDataStep {
@@ -67,4 +73,51 @@ public class TestCtmSetPiDataStep {
         jenkins.assertLogContains(CtmPostPiDataStepExecution.LOG_MESSAGE_INVALID_VALUE, b1);
     }
 
+    @Test
+    public void buildWithInvalidDataMustFail() throws Exception {
+        WorkflowJob p = jenkins.jenkins.createProject(WorkflowJob.class, "p");
+        
+        p.setDefinition(new CpsFlowDefinition(
+                "ctmSetPiData serverUrl: 'http://server.url', data: 'key1234=val12324', markUnstable: true"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.UNSTABLE, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains(CtmPostPiDataStepExecution.LOG_MESSAGE_INVALID_DATA, b1);
+    }
+
+    @Test
+    public void valueIsOnlyRequiredWithAKey() throws Exception {
+        CtmSetPiDataStep.DescriptorImpl descriptor =
+                jenkins.jenkins.getDescriptorByType(CtmSetPiDataStep.DescriptorImpl.class);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckValue("", "", "{\"key1234\": \"val12324\"}").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckValue("", "key1234", "").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckValue("", "key1234", "{\"k\": \"v\"}").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckValue("", "", "").kind);
+    }
+
+    @Test
+    public void buildWithDataOnlySendsItsParsedValues() throws Exception {
+        ContinuumStub stub = ContinuumStub.start();
+        try {
+            WorkflowJob p = jenkins.jenkins.createProject(WorkflowJob.class, "p");
+
+            // the value of key1 is a JSON object in a string, sent as an object like a 'value' would be
+            p.setDefinition(new CpsFlowDefinition(
+                    "ctmSetPiData serverUrl: '" + stub.getUrl() + "', apiToken: 'token', pi: 'pi-1', "
+                    + "data: '{\"key1\": \"{\\\\\"a\\\\\": 1}\", \"key2\": \"plain\"}', markUnstable: true"
+            ));
+            WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+            jenkins.assertBuildStatusSuccess(jenkins.waitForCompletion(b1));
+            assertEquals(2, stub.getRequests(ContinuumConstants.COMMAND_NAME__SET_PI_DATA));
+            boolean parsed = false;
+            for (String payload : stub.getPayloads()) {
+                parsed |= payload.contains("\"key1\"") && payload.replace(" ", "").contains("{\"a\":1}")
+                        && !payload.contains("\\\"a");
+            }
+            assertTrue(stub.getPayloads().toString(), parsed);
+        } finally {
+            stub.close();
+        }
+    }
+
 }
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.steps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.junit.After;
+import org.junit.Test;
+
+import jenkins.plugins.continuum.ContinuumResponseException;
+
+public class TestPipelinePoller {
+
+    private final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1);
+
+    private final BlockingQueue<Query> queries = new LinkedBlockingQueue<Query>();
+
+    private final PipelinePoller.StatusQuery statusQuery = new PipelinePoller.StatusQuery() {
+        @Override
+        public void query(String serverUrl, String apiToken, String pipelineId, FutureCallback<String> callback) {
+            queries.add(new Query(serverUrl, pipelineId, callback));
+        }
+    };
+
+    private static final class Query {
+        final String serverUrl;
+        final String pipelineId;
+        final FutureCallback<String> callback;
+
+        Query(String serverUrl, String pipelineId, FutureCallback<String> callback) {
+            this.serverUrl = serverUrl;
+            this.pipelineId = pipelineId;
+            this.callback = callback;
+        }
+    }
+
+    private static final class TestWaiter implements PipelineWaiters.Waiter {
+        private final String status;
+        private final CountDownLatch resumed = new CountDownLatch(1);
+        private final CountDownLatch failed = new CountDownLatch(1);
+        private volatile Exception failedWith;
+
+        TestWaiter(String status) {
+            this.status = status;
+        }
+
+        @Override
+        public boolean isWaitingFor(String status) {
+            return this.status.equals(status);
+        }
+
+        @Override
+        public void resume(String status) {
+            this.resumed.countDown();
+        }
+
+        @Override
+        public void fail(Exception cause) {
+            this.failedWith = cause;
+            this.failed.countDown();
+        }
+    }
+
+    @After
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    private Query nextQuery() throws InterruptedException {
+        Query query = this.queries.poll(10, TimeUnit.SECONDS);
+        assertNotNull("no query", query);
+        return query;
+    }
+
+    @Test
+    public void intervalDoublesWhileTheStatusIsUnchanged() throws Exception {
+        PipelinePoller poller = new PipelinePoller(this.executor, this.statusQuery, 10L, 40L, 10);
+        TestWaiter waiter = new TestWaiter("success");
+        PipelineWaiters.add("http://ctm", "poll-1", waiter);
+        poller.add("http://ctm", "token", "poll-1");
+
+        nextQuery().callback.completed("processing");
+        assertEquals(10L, poller.getInterval("http://ctm", "poll-1"));
+        nextQuery().callback.completed("processing");
+        assertEquals(20L, poller.getInterval("http://ctm", "poll-1"));
+        nextQuery().callback.completed("processing");
+        assertEquals(40L, poller.getInterval("http://ctm", "poll-1"));
+        nextQuery().callback.failed(new IOException("down"));
+        assertEquals(40L, poller.getInterval("http://ctm", "poll-1"));
+        assertEquals(1, waiter.resumed.getCount());
+
+        nextQuery().callback.completed("success");
+        assertEquals(10L, poller.getInterval("http://ctm", "poll-1"));
+        assertTrue(waiter.resumed.await(10, TimeUnit.SECONDS));
+
+        // no step waits for it anymore
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (poller.count() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(-1L, poller.getInterval("http://ctm", "poll-1"));
+    }
+
+    @Test
+    public void queriesInFlightAreBoundedPerServer() throws Exception {
+        PipelinePoller poller = new PipelinePoller(this.executor, this.statusQuery, 60000L, 60000L, 2);
+        TestWaiter waiter = new TestWaiter("success");
+        for (int i = 0; i < 4; i++) {
+            PipelineWaiters.add("http://ctm-a", "bounded-" + i, waiter);
+            poller.add("http://ctm-a", null, "bounded-" + i);
+        }
+        PipelineWaiters.add("http://ctm-b", "bounded-b", waiter);
+        poller.add("http://ctm-b", null, "bounded-b");
+
+        int b = 0;
+        Query a = null;
+        for (int i = 0; i < 3; i++) {
+            Query query = nextQuery();
+            if (query.serverUrl.equals("http://ctm-b")) {
+                b++;
+            }
+            else {
+                a = query;
+            }
+        }
+        assertEquals(1, b);
+        assertNull(this.queries.poll(100, TimeUnit.MILLISECONDS));
+
+        // a pipeline held back is polled once a query to its server completes
+        a.callback.completed("processing");
+        assertEquals("http://ctm-a", nextQuery().serverUrl);
+        assertNull(this.queries.poll(100, TimeUnit.MILLISECONDS));
+
+        for (int i = 0; i < 4; i++) {
+            PipelineWaiters.remove("http://ctm-a", "bounded-" + i, waiter);
+        }
+        PipelineWaiters.remove("http://ctm-b", "bounded-b", waiter);
+    }
+
+    private static void awaitUnpolled(PipelinePoller poller, String pipelineId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (poller.getInterval("http://ctm", pipelineId) != -1L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(-1L, poller.getInterval("http://ctm", pipelineId));
+    }
+
+    @Test
+    public void permanentErrorFailsTheWaitingSteps() throws Exception {
+        PipelinePoller poller = new PipelinePoller(this.executor, this.statusQuery, 10L, 40L, 10);
+        TestWaiter waiter = new TestWaiter("success");
+        PipelineWaiters.add("http://ctm", "poll-401", waiter);
+        poller.add("http://ctm", "revoked", "poll-401");
+
+        // transient errors are polled again
+        nextQuery().callback.failed(new ContinuumResponseException(503, "Service Unavailable", null, null, null, -1L));
+        nextQuery().callback.failed(new IOException("Connection reset"));
+        assertEquals(1, waiter.failed.getCount());
+
+        ContinuumResponseException unauthorized =
+                new ContinuumResponseException(401, "Unauthorized", null, null, null, -1L);
+        nextQuery().callback.failed(unauthorized);
+        assertTrue(waiter.failed.await(10, TimeUnit.SECONDS));
+        assertSame(unauthorized, waiter.failedWith);
+        assertEquals(1, waiter.resumed.getCount());
+        awaitUnpolled(poller, "poll-401");
+        assertNull(this.queries.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void responseWithoutStatusFailsTheWaitingSteps() throws Exception {
+        PipelinePoller poller = new PipelinePoller(this.executor, this.statusQuery, 10L, 40L, 10);
+        TestWaiter waiter = new TestWaiter("success");
+        PipelineWaiters.add("http://ctm", "poll-no-status", waiter);
+        poller.add("http://ctm", "token", "poll-no-status");
+
+        nextQuery().callback.completed(null);
+        assertTrue(waiter.failed.await(10, TimeUnit.SECONDS));
+        assertTrue(waiter.failedWith.getMessage(), waiter.failedWith.getMessage().contains("poll-no-status"));
+        awaitUnpolled(poller, "poll-no-status");
+    }
+
+    @Test
+    public void webhookFallbackReadsTheStatusOnceThenSlowly() throws Exception {
+        PipelinePoller poller = new PipelinePoller(this.executor, this.statusQuery, 10L, 200L, 10);
+        TestWaiter waiter = new TestWaiter("success");
+        PipelineWaiters.add("http://ctm", "fallback-1", waiter);
+        poller.add("http://ctm", null, "fallback-1", true);
+
+        // queried right away, the status may be reached already
+        nextQuery().callback.completed("processing");
+        assertEquals(200L, poller.getInterval("http://ctm", "fallback-1"));
+        nextQuery().callback.completed("success");
+        assertEquals(200L, poller.getInterval("http://ctm", "fallback-1"));
+        assertTrue(waiter.resumed.await(10, TimeUnit.SECONDS));
+        awaitUnpolled(poller, "fallback-1");
+    }
+
+    @Test
+    public void webhookFallbackErrorsDoNotFailTheWaitingSteps() throws Exception {
+        PipelinePoller poller = new PipelinePoller(this.executor, this.statusQuery, 10L, 40L, 10);
+        TestWaiter waiter = new TestWaiter("success");
+        PipelineWaiters.add("http://ctm", "fallback-401", waiter);
+        poller.add("http://ctm", null, "fallback-401", true);
+
+        nextQuery().callback.failed(new ContinuumResponseException(401, "Unauthorized", null, null, null, -1L));
+        awaitUnpolled(poller, "fallback-401");
+        assertNull(this.queries.poll(100, TimeUnit.MILLISECONDS));
+        // still waiting for the webhook
+        assertEquals(1, waiter.failed.getCount());
+        assertTrue(PipelineWaiters.remove("http://ctm", "fallback-401", waiter));
+    }
+
+    @Test
+    public void pollingStepsAreNotSlowedDownByTheFallback() throws Exception {
+        PipelinePoller poller = new PipelinePoller(this.executor, this.statusQuery, 10L, 60000L, 10);
+        TestWaiter webhook = new TestWaiter("success");
+        TestWaiter polling = new TestWaiter("success");
+        PipelineWaiters.add("http://ctm", "fallback-mixed", webhook);
+        poller.add("http://ctm", null, "fallback-mixed", true);
+        PipelineWaiters.add("http://ctm", "fallback-mixed", polling);
+        poller.add("http://ctm", "token", "fallback-mixed", false);
+        poller.add("http://ctm", null, "fallback-mixed", true);
+
+        // polled as often as the polling step needs
+        nextQuery().callback.completed("processing");
+        assertEquals(10L, poller.getInterval("http://ctm", "fallback-mixed"));
+        nextQuery().callback.completed("success");
+        assertTrue(webhook.resumed.await(10, TimeUnit.SECONDS));
+        assertTrue(polling.resumed.await(10, TimeUnit.SECONDS));
+        awaitUnpolled(poller, "fallback-mixed");
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jenkins.plugins.continuum.steps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestPipelineWaiters {
+
+    private static final String SERVER_URL = "https://continuum.example.com";
+
+    private static final class TestWaiter implements PipelineWaiters.Waiter {
+        private final Set<String> statuses;
+        private String resumedWith;
+        private Exception failedWith;
+
+        TestWaiter(String statuses) {
+            this.statuses = CtmWaitForPipelineStep.CtmWaitForPipelineStepExecution.parseStatuses(statuses);
+        }
+
+        @Override
+        public boolean isWaitingFor(String status) {
+            return this.statuses.contains(status);
+        }
+
+        @Override
+        public void resume(String status) {
+            this.resumedWith = status;
+        }
+
+        @Override
+        public void fail(Exception cause) {
+            this.failedWith = cause;
+        }
+    }
+
+    @Test
+    public void onlyTheWaitersOfTheStatusAreResumed() {
+        TestWaiter finished = new TestWaiter(CtmWaitForPipelineStep.DEFAULT_STATUS);
+        TestWaiter processing = new TestWaiter(" Processing, success");
+        TestWaiter other = new TestWaiter("success");
+        int waiting = PipelineWaiters.size();
+        PipelineWaiters.add(SERVER_URL, "pi-1", finished);
+        PipelineWaiters.add(SERVER_URL, "pi-1", processing);
+        PipelineWaiters.add(SERVER_URL, "pi-2", other);
+
+        assertEquals(1, PipelineWaiters.notify(SERVER_URL, "pi-1", "PROCESSING"));
+        assertEquals("PROCESSING", processing.resumedWith);
+        assertNull(finished.resumedWith);
+        assertEquals(0, PipelineWaiters.notify(SERVER_URL, "pi-3", "success"));
+
+        assertEquals(1, PipelineWaiters.notify(SERVER_URL, "pi-1", "success"));
+        assertEquals("success", finished.resumedWith);
+        assertEquals(0, PipelineWaiters.notify(SERVER_URL, "pi-1", "success"));
+        assertNull(other.resumedWith);
+
+        assertEquals(waiting + 1, PipelineWaiters.size());
+        PipelineWaiters.remove(SERVER_URL, "pi-2", other);
+        assertFalse(PipelineWaiters.remove(SERVER_URL, "pi-2", other));
+        assertEquals(waiting, PipelineWaiters.size());
+    }
+
+    @Test
+    public void allTheWaitersOfAFailedPipelineAreFailed() {
+        TestWaiter first = new TestWaiter("success");
+        TestWaiter second = new TestWaiter("failure");
+        TestWaiter other = new TestWaiter("success");
+        int waiting = PipelineWaiters.size();
+        PipelineWaiters.add(SERVER_URL, "failed-1", first);
+        PipelineWaiters.add(SERVER_URL, "failed-1", second);
+        PipelineWaiters.add(SERVER_URL, "failed-2", other);
+
+        IOException cause = new IOException("Unknown pipeline");
+        assertEquals(2, PipelineWaiters.fail(SERVER_URL, "failed-1", cause));
+        assertSame(cause, first.failedWith);
+        assertSame(cause, second.failedWith);
+        assertNull(other.failedWith);
+        assertFalse(PipelineWaiters.isWaiting(SERVER_URL, "failed-1"));
+        assertEquals(0, PipelineWaiters.fail(SERVER_URL, "failed-1", cause));
+
+        PipelineWaiters.remove(SERVER_URL, "failed-2", other);
+        assertEquals(waiting, PipelineWaiters.size());
+    }
+
+    @Test
+    public void pipelinesAreWaitedForPerServer() {
+        TestWaiter first = new TestWaiter("success");
+        TestWaiter other = new TestWaiter("success");
+        int waiting = PipelineWaiters.size();
+        PipelineWaiters.add(SERVER_URL, "same-id", first);
+        PipelineWaiters.add("https://other.example.com", "same-id", other);
+
+        assertEquals(0, PipelineWaiters.notify("https://third.example.com", "same-id", "success"));
+        // the same server, as given to another step
+        assertEquals(1, PipelineWaiters.notify(SERVER_URL + "/ctm/", "same-id", "success"));
+        assertEquals("success", first.resumedWith);
+        assertNull(other.resumedWith);
+        assertTrue(PipelineWaiters.isWaiting("https://other.example.com/", "same-id"));
+
+        PipelineWaiters.remove("https://other.example.com", "same-id", other);
+        assertEquals(waiting, PipelineWaiters.size());
+    }
+}
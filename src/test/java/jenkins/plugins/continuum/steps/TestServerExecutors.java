@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 CollabNet, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jenkins.plugins.continuum.steps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestServerExecutors {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final Runnable blocked = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    @After
+    public void releaseTasks() {
+        this.release.countDown();
+    }
+
+    private static ServerExecutors.Stats getStats(String key, boolean fanOut) {
+        for (ServerExecutors.Stats stats : ServerExecutors.getStats()) {
+            if (stats.getKey().equals(key) && stats.isFanOut() == fanOut) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void tasksBeyondTheQueueAreRejected() throws Exception {
+        String key = "http://rejecting:8080";
+        ExecutorService executor = ServerExecutors.get(key);
+        assertSame(executor, ServerExecutors.get(key));
+        for (int i = 0; i < ServerExecutors.MAX_THREADS + ServerExecutors.QUEUE_SIZE; i++) {
+            executor.execute(this.blocked);
+        }
+        try {
+            executor.execute(this.blocked);
+            fail("rejection expected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        ServerExecutors.Stats stats = getStats(key, false);
+        assertNotNull(stats);
+        assertEquals(ServerExecutors.MAX_THREADS, stats.getPoolSize());
+        assertEquals(ServerExecutors.QUEUE_SIZE, stats.getQueueDepth());
+        assertEquals(1L, stats.getRejectedCount());
+    }
+
+    @Test
+    public void serversHaveTheirOwnExecutor() throws Exception {
+        ExecutorService saturated = ServerExecutors.get("http://saturated:8080");
+        for (int i = 0; i < ServerExecutors.MAX_THREADS + ServerExecutors.QUEUE_SIZE; i++) {
+            saturated.execute(this.blocked);
+        }
+        final CountDownLatch ran = new CountDownLatch(1);
+        ServerExecutors.get("http://other:8080").execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        ran.await();
+        assertSame(ServerExecutors.get(ServerExecutors.DEFAULT_KEY), ServerExecutors.get(null));
+    }
+
+    @Test
+    public void virtualThreadsAreCreatedWhenTheJdkHasThem() throws Exception {
+        boolean supported;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            supported = true;
+        } catch (NoSuchMethodException e) {
+            supported = false;
+        }
+        ThreadFactory threadFactory = ServerExecutors.newVirtualThreadFactory("virtual-test #");
+        if (!supported) {
+            assertNull(threadFactory);
+            return;
+        }
+        assertNotNull(threadFactory);
+        final CountDownLatch ran = new CountDownLatch(1);
+        Thread thread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(thread.getName(), thread.getName().startsWith("virtual-test #"));
+        assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+        thread.start();
+        ran.await();
+    }
+
+    @Test
+    public void fanOutExecutorIsBoundedPerServer() throws Exception {
+        String key = "http://fan-out:8080";
+        ExecutorService fanOut = ServerExecutors.getFanOutExecutor(key);
+        assertSame(fanOut, ServerExecutors.getFanOutExecutor(key));
+        // the step threads wait for the groups, they must not share the threads sending them
+        assertNotSame(ServerExecutors.get(key), fanOut);
+        assertNotSame(ServerExecutors.getFanOutExecutor("http://other-fan-out:8080"), fanOut);
+
+        for (int i = 0; i < ServerExecutors.MAX_FAN_OUT_THREADS + ServerExecutors.FAN_OUT_QUEUE_SIZE; i++) {
+            fanOut.execute(this.blocked);
+        }
+        try {
+            fanOut.execute(this.blocked);
+            fail("rejection expected");
+        } catch (RejectedExecutionException e) {
+            // expected, the step then sends the group itself
+        }
+        ServerExecutors.Stats stats = getStats(key, true);
+        assertNotNull(stats);
+        assertEquals(ServerExecutors.MAX_FAN_OUT_THREADS, stats.getPoolSize());
+        assertEquals(ServerExecutors.FAN_OUT_QUEUE_SIZE, stats.getQueueDepth());
+        assertEquals(1L, stats.getRejectedCount());
+        assertEquals(0, getStats(key, false).getQueueDepth());
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        ServerExecutors.getFanOutExecutor("http://other-fan-out:8080").execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        ran.await();
+    }
+
+    @Test
+    public void executorsAreCreatedAgainAfterAShutdown() throws Exception {
+        String key = "http://shutdown:8080";
+        ExecutorService executor = ServerExecutors.get(key);
+        ExecutorService fanOut = ServerExecutors.getFanOutExecutor(key);
+        executor.execute(this.blocked);
+        ServerExecutors.shutdown();
+        assertTrue(executor.isShutdown());
+        assertTrue(fanOut.isShutdown());
+        assertNull(getStats(key, false));
+        assertNull(getStats(key, true));
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        ServerExecutors.get(key).execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        ran.await();
+    }
+}